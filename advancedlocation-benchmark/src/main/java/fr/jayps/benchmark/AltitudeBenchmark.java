@@ -0,0 +1,63 @@
+package fr.jayps.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.jayps.core.TrackStatsEngine;
+
+/**
+ * TrackStatsEngine.onAltitudeChanged(), called for each pressure sensor event
+ * (SENSOR_DELAY_NORMAL is ~5Hz, some devices deliver up to 50Hz).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AltitudeBenchmark {
+
+    private static final int NB_VALUES = 4096; // power of 2
+
+    // median window, in values
+    @Param({"5", "50", "200"})
+    public int window;
+
+    // number of sensor values averaged before the median
+    @Param({"1", "5"})
+    public int decimation;
+
+    private final double[] _altitudes = new double[NB_VALUES];
+    private TrackStatsEngine _engine;
+    private int _index;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < NB_VALUES; i++) {
+            // barometric altitude: slow climb + sensor noise
+            _altitudes[i] = 300 + i * 0.01 + random.nextGaussian() * 0.5;
+        }
+        _engine = new TrackStatsEngine();
+        _engine.setAltitudeFilter(window, decimation);
+        _index = 0;
+    }
+
+    @Benchmark
+    public double onAltitudeChanged() {
+        _engine.onAltitudeChanged(_altitudes[_index++ & (NB_VALUES - 1)]);
+        return _engine.getAltitudeFromPressure();
+    }
+}
@@ -0,0 +1,39 @@
+package fr.jayps.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.jayps.core.TrackStatsEngine;
+
+/**
+ * TrackStatsEngine.bearingText(), called by the UI for each displayed bearing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BearingTextBenchmark {
+
+    private float _bearing = 0;
+
+    @Benchmark
+    public String bearingText() {
+        // all directions, including values around the sector limits
+        _bearing += 7.3f;
+        if (_bearing >= 360) {
+            _bearing -= 360;
+        }
+        return TrackStatsEngine.bearingText(_bearing);
+    }
+}
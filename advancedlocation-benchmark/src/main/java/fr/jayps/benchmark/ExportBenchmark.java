@@ -0,0 +1,121 @@
+package fr.jayps.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.jayps.core.CountingWriter;
+import fr.jayps.core.GpxWriter;
+import fr.jayps.core.RunkeeperJsonWriter;
+import fr.jayps.core.TrackSimplifier;
+
+/**
+ * GPX and Runkeeper exports of a whole track. One op is one complete export,
+ * written to a Writer that only counts the chars (no I/O, no buffering).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int nbPoints;
+
+    private SyntheticRide _ride;
+
+    @Setup
+    public void setup() {
+        _ride = SyntheticRide.generate(SyntheticRide.MOUNTAIN, nbPoints, 42);
+    }
+
+    // discards the chars, counted by CountingWriter
+    private static final Writer NULL_WRITER = new Writer() {
+        @Override
+        public void write(int c) {
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Benchmark
+    public long gpx() throws IOException {
+        return writeGpx(false);
+    }
+
+    @Benchmark
+    public long gpxExtended() throws IOException {
+        return writeGpx(true);
+    }
+
+    // 5m horizontal, 2m vertical, 5bpm, 5rpm
+    @Benchmark
+    public long gpxSimplified() throws IOException {
+        CountingWriter out = new CountingWriter(NULL_WRITER);
+        GpxWriter gpx = new GpxWriter(out, true);
+        gpx.writeHeader("JayPS");
+        TrackSimplifier simplifier = new TrackSimplifier(gpx, 5, 2, 5, 5);
+        SyntheticRide r = _ride;
+        for (int i = 0; i < r.size; i++) {
+            simplifier.writePoint(r.time[i], r.latitude[i], r.longitude[i], r.altitude[i], r.accuracy[i],
+                    r.ascent[i], r.altitude[i], 0, r.heartRate[i], r.cadence[i]);
+        }
+        simplifier.finish();
+        gpx.writeFooter();
+        return out.getCount();
+    }
+
+    private long writeGpx(boolean extended) throws IOException {
+        CountingWriter out = new CountingWriter(NULL_WRITER);
+        GpxWriter gpx = new GpxWriter(out, extended);
+        gpx.writeHeader("JayPS");
+        SyntheticRide r = _ride;
+        for (int i = 0; i < r.size; i++) {
+            gpx.writePoint(r.time[i], r.latitude[i], r.longitude[i], r.altitude[i], r.accuracy[i],
+                    r.ascent[i], r.altitude[i], 0, r.heartRate[i], r.cadence[i]);
+        }
+        gpx.writeFooter();
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long runkeeper() throws IOException {
+        CountingWriter out = new CountingWriter(NULL_WRITER);
+        RunkeeperJsonWriter json = new RunkeeperJsonWriter(out);
+        SyntheticRide r = _ride;
+        json.writeHeader("Cycling", "JayPS", (r.time[r.size - 1] - r.time[0]) / 1000);
+        for (int i = 0; i < r.size; i++) {
+            json.writePoint(r.time[i], r.altitude[i], r.longitude[i], r.latitude[i], r.heartRate[i]);
+        }
+        json.writeFooter();
+        return out.getCount();
+    }
+}
@@ -0,0 +1,103 @@
+package fr.jayps.benchmark;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic bike rides, 1 fix per second, stored in primitive arrays
+ * so that replaying them does not allocate.
+ */
+public final class SyntheticRide {
+
+    public static final String FLAT = "flat";
+    public static final String MOUNTAIN = "mountain";
+    public static final String NOISY = "noisy";
+
+    private static final long START_TIME = 1400000000000L; // in ms
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    public final int size;
+    public final long[] time; // in ms
+    public final double[] latitude;
+    public final double[] longitude;
+    public final double[] altitude; // GPS altitude, in m
+    public final float[] accuracy; // in m
+    public final float[] speed; // in m/s
+    public final float[] bearing; // in degrees
+    public final double[] ascent; // in m
+    public final int[] heartRate;
+    public final int[] cadence;
+
+    private SyntheticRide(int size) {
+        this.size = size;
+        time = new long[size];
+        latitude = new double[size];
+        longitude = new double[size];
+        altitude = new double[size];
+        accuracy = new float[size];
+        speed = new float[size];
+        bearing = new float[size];
+        ascent = new double[size];
+        heartRate = new int[size];
+        cadence = new int[size];
+    }
+
+    // flat: ~30km/h, small altitude changes, good accuracy
+    // mountain: long climbs and descents (+/-400m), speed depending on the slope
+    // noisy: flat ride with accuracy jumping up to 50m and position/altitude noise
+    public static SyntheticRide generate(String profile, int size, long seed) {
+        if (!FLAT.equals(profile) && !MOUNTAIN.equals(profile) && !NOISY.equals(profile)) {
+            throw new IllegalArgumentException("Unknown profile: " + profile);
+        }
+        boolean mountain = MOUNTAIN.equals(profile);
+        boolean noisy = NOISY.equals(profile);
+
+        Random random = new Random(seed);
+        SyntheticRide ride = new SyntheticRide(size);
+
+        double lat = 45.0;
+        double lon = 5.7;
+        double heading = 0; // in radians
+        double ascent = 0;
+        double previousAltitude = 0;
+        for (int i = 0; i < size; i++) {
+            double terrain;
+            double slope;
+            if (mountain) {
+                terrain = 800 + 400 * Math.sin(i / 1800.0);
+                slope = 400 / 1800.0 * Math.cos(i / 1800.0) / 8.0;
+            } else {
+                terrain = 200 + 5 * Math.sin(i / 300.0);
+                slope = 0;
+            }
+            double v = Math.max(2.0, 8.3 - 60 * slope + random.nextGaussian() * 0.3);
+
+            // slowly turning road
+            heading += random.nextGaussian() * 0.02;
+            lat += v * Math.cos(heading) / METERS_PER_DEGREE;
+            lon += v * Math.sin(heading) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+
+            float acc = 3 + random.nextInt(3);
+            double noise = 0;
+            if (noisy && random.nextInt(10) == 0) {
+                acc = 10 + random.nextInt(40);
+                noise = random.nextGaussian() * acc / METERS_PER_DEGREE;
+            }
+
+            ride.time[i] = START_TIME + i * 1000L;
+            ride.latitude[i] = lat + noise;
+            ride.longitude[i] = lon + noise;
+            ride.altitude[i] = terrain + random.nextGaussian() * (noisy ? acc : 2);
+            ride.accuracy[i] = acc;
+            ride.speed[i] = (float) v;
+            ride.bearing[i] = (float) ((Math.toDegrees(heading) % 360 + 360) % 360);
+            if (i > 0 && terrain > previousAltitude) {
+                ascent += terrain - previousAltitude;
+            }
+            previousAltitude = terrain;
+            ride.ascent[i] = ascent;
+            ride.heartRate[i] = (int) (120 + 200 * Math.max(0, slope) + random.nextInt(5));
+            ride.cadence[i] = 80 + random.nextInt(10);
+        }
+        return ride;
+    }
+}
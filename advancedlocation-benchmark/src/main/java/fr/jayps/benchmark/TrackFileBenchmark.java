@@ -0,0 +1,99 @@
+package fr.jayps.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.jayps.core.TrackFileReader;
+import fr.jayps.core.TrackFileWriter;
+import fr.jayps.core.TrackPointSink;
+
+/**
+ * Binary track file: writing a whole track, and reading it back through the memory mapping
+ * (all the points, or one hour). One op is one track.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrackFileBenchmark {
+
+    @Param({"10000", "100000"})
+    public int nbPoints;
+
+    private SyntheticRide _ride;
+    private File _file;
+    private File _writeFile;
+    private TrackFileReader _reader;
+
+    static class CountingSink implements TrackPointSink {
+        long count = 0;
+
+        @Override
+        public void writePoint(long time, double lat, double lon, double ele, float accuracy, double ascent, double eleGps, double elePressure, int hr, int cad) {
+            count += time;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _ride = SyntheticRide.generate(SyntheticRide.MOUNTAIN, nbPoints, 42);
+        _file = File.createTempFile("benchmark", ".jptf");
+        _writeFile = File.createTempFile("benchmark-write", ".jptf");
+        write(_file);
+        _reader = new TrackFileReader(_file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        _file.delete();
+        _writeFile.delete();
+    }
+
+    private void write(File file) throws IOException {
+        file.delete();
+        TrackFileWriter writer = new TrackFileWriter(file);
+        SyntheticRide r = _ride;
+        for (int i = 0; i < r.size; i++) {
+            writer.append(r.time[i], r.latitude[i], r.longitude[i], r.altitude[i], r.altitude[i], 0, r.ascent[i], r.accuracy[i], r.heartRate[i], r.cadence[i]);
+        }
+        writer.close();
+    }
+
+    @Benchmark
+    public long writeTrack() throws IOException {
+        write(_writeFile);
+        return _writeFile.length();
+    }
+
+    @Benchmark
+    public long readAll() throws IOException {
+        CountingSink sink = new CountingSink();
+        _reader.read(sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long readOneHour() throws IOException {
+        CountingSink sink = new CountingSink();
+        long from = _ride.time[_ride.size / 2];
+        _reader.read(from, from + 3600 * 1000, sink);
+        return sink.count;
+    }
+}
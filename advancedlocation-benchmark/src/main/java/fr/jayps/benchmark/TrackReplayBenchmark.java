@@ -0,0 +1,86 @@
+package fr.jayps.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.jayps.core.TrackReplay;
+
+/**
+ * Recomputation of an archive of tracks with TrackReplay, one op is the whole archive.
+ * Compare parallelism=1 with the number of cores to check the scaling.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class TrackReplayBenchmark {
+
+    private static final int NB_TRACKS = 64;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    private final List<RideTrack> _tracks = new ArrayList<RideTrack>();
+    private TrackReplay _replay;
+
+    static class RideTrack implements TrackReplay.Track {
+        private final String _name;
+        private final SyntheticRide _ride;
+
+        RideTrack(String name, SyntheticRide ride) {
+            this._name = name;
+            this._ride = ride;
+        }
+
+        @Override
+        public String getName() {
+            return _name;
+        }
+
+        @Override
+        public void replay(TrackReplay.Player player) {
+            SyntheticRide r = _ride;
+            for (int i = 0; i < r.size; i++) {
+                player.onPoint(r.time[i], r.latitude[i], r.longitude[i], r.altitude[i], 0, r.accuracy[i], r.heartRate[i], r.cadence[i]);
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] profiles = {SyntheticRide.FLAT, SyntheticRide.MOUNTAIN, SyntheticRide.NOISY};
+        for (int i = 0; i < NB_TRACKS; i++) {
+            // 30min to ~4h rides, uneven sizes
+            int size = 1800 + (i * 7919) % 12600;
+            _tracks.add(new RideTrack("track" + i, SyntheticRide.generate(profiles[i % profiles.length], size, i)));
+        }
+        _replay = new TrackReplay(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        _replay.shutdown();
+    }
+
+    @Benchmark
+    public List<TrackReplay.Summary> replayArchive() throws InterruptedException {
+        return _replay.replay(_tracks);
+    }
+}
@@ -0,0 +1,74 @@
+package fr.jayps.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.jayps.core.TrackStatsEngine;
+
+/**
+ * Throughput of TrackStatsEngine.onFix(), the core of AdvancedLocation.onLocationChanged().
+ * One op is one GPS fix.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TrackStatsEngineBenchmark {
+
+    // 24h ride
+    private static final int RIDE_SIZE = 86400;
+
+    @Param({SyntheticRide.FLAT, SyntheticRide.MOUNTAIN, SyntheticRide.NOISY})
+    public String profile;
+
+    // Distance.VINCENTY, Distance.HAVERSINE, Distance.EQUIRECTANGULAR
+    @Param({"0", "1", "2"})
+    public int distanceMode;
+
+    private SyntheticRide _ride;
+    private TrackStatsEngine _engine;
+    private int _index;
+
+    @Setup(Level.Trial)
+    public void generateRide() {
+        _ride = SyntheticRide.generate(profile, RIDE_SIZE, 42);
+    }
+
+    @Setup(Level.Iteration)
+    public void newEngine() {
+        _engine = newTrackStatsEngine();
+        _index = 0;
+    }
+
+    private TrackStatsEngine newTrackStatsEngine() {
+        TrackStatsEngine engine = new TrackStatsEngine();
+        engine.setDistanceMode(distanceMode);
+        return engine;
+    }
+
+    @Benchmark
+    public int onFix() {
+        if (_index == _ride.size) {
+            // end of the ride: restart a new one (time must not go backward)
+            _engine = newTrackStatsEngine();
+            _index = 0;
+        }
+        int i = _index++;
+        return _engine.onFix(_ride.time[i], _ride.latitude[i], _ride.longitude[i], _ride.altitude[i],
+                _ride.accuracy[i], _ride.speed[i], true, _ride.bearing[i], _ride.heartRate[i], _ride.cadence[i]);
+    }
+}
@@ -0,0 +1,76 @@
+package fr.jayps.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.jayps.core.TrackerManager;
+
+/**
+ * Live ingest of NB_STREAMS interleaved streams with TrackerManager, one op is NB_STREAMS * NB_FIXES fixes
+ * put by the benchmark thread and processed by the shards.
+ * Fixes per second = ops/s * NB_STREAMS * NB_FIXES; compare nbShards=1 with the number of cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class TrackerManagerBenchmark {
+
+    private static final int NB_STREAMS = 512;
+    private static final int NB_FIXES = 120; // per stream and op
+
+    @Param({"1", "2", "4", "8"})
+    public int nbShards;
+
+    private final SyntheticRide[] _rides = new SyntheticRide[NB_STREAMS];
+    private final String[] _streamIds = new String[NB_STREAMS];
+    private TrackerManager _manager;
+    private int _nbOps = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] profiles = {SyntheticRide.FLAT, SyntheticRide.MOUNTAIN, SyntheticRide.NOISY};
+        for (int i = 0; i < NB_STREAMS; i++) {
+            _rides[i] = SyntheticRide.generate(profiles[i % profiles.length], NB_FIXES, i);
+            _streamIds[i] = "rider" + i;
+        }
+        _manager = new TrackerManager(nbShards, TrackerManager.DEFAULT_QUEUE_CAPACITY, TrackerManager.DEFAULT_IDLE_TIMEOUT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        _manager.shutdown();
+    }
+
+    @Benchmark
+    public long ingest() throws InterruptedException {
+        // each op continues the streams in time
+        long offset = (long) _nbOps++ * NB_FIXES * 1000;
+        long target = _manager.getNbProcessed() + NB_STREAMS * NB_FIXES;
+        for (int j = 0; j < NB_FIXES; j++) {
+            for (int i = 0; i < NB_STREAMS; i++) {
+                SyntheticRide r = _rides[i];
+                _manager.put(_streamIds[i], r.time[j] + offset, r.latitude[j], r.longitude[j], r.altitude[j], 0, r.accuracy[j], r.heartRate[j], r.cadence[j]);
+            }
+        }
+        while (_manager.getNbProcessed() < target) {
+            Thread.yield();
+        }
+        return _manager.getNbProcessed();
+    }
+}
@@ -0,0 +1,65 @@
+package fr.jayps.android;
+
+import android.location.Location;
+import android.os.Debug;
+
+import junit.framework.TestCase;
+
+public class AdvancedLocationAllocationTest extends TestCase {
+
+    private static final int NB_WARMUP_LOCATIONS = 100;
+    private static final int NB_LOCATIONS = 1000;
+
+    private final Location location = new Location("gps");
+    private int nbLocations = 0;
+
+    // 1 location per second, ~5m/s toward north, rolling terrain
+    private void nextLocation() {
+        nbLocations++;
+        location.setTime(1400000000000L + nbLocations * 1000L);
+        location.setLatitude(45 + nbLocations * 0.000045);
+        location.setLongitude(5.7);
+        location.setAltitude(300 + 50 * Math.sin(nbLocations / 120.0));
+        location.setAccuracy(nbLocations % 7 == 0 ? 15 : 4);
+        location.setSpeed(5);
+    }
+
+    public void testOnLocationChangedDoesNotAllocate() {
+        AdvancedLocation advancedLocation = new AdvancedLocation();
+
+        for (int i = 0; i < NB_WARMUP_LOCATIONS; i++) {
+            nextLocation();
+            advancedLocation.onLocationChanged(location, 120, 80);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < NB_LOCATIONS; i++) {
+            nextLocation();
+            advancedLocation.onLocationChanged(location, 120, 80);
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals("allocations in onLocationChanged", 0, Debug.getThreadAllocCount());
+        assertTrue(advancedLocation.getDistance() > 0);
+    }
+
+    public void testOnAltitudeChangedDoesNotAllocate() {
+        AdvancedLocation advancedLocation = new AdvancedLocation();
+        advancedLocation.setAltitudeFilter(200, 2);
+
+        for (int i = 0; i < 1000; i++) {
+            advancedLocation.onAltitudeChanged(300 + (i % 13) * 0.1);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < 10000; i++) {
+            advancedLocation.onAltitudeChanged(300 + (i % 13) * 0.1);
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals("allocations in onAltitudeChanged", 0, Debug.getThreadAllocCount());
+        assertTrue(advancedLocation.getAltitudeFromPressure() > 0);
+    }
+}
@@ -0,0 +1,78 @@
+package fr.jayps.android;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.location.Location;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AdvancedLocationBatchTest extends AndroidTestCase {
+
+    private static final long T0 = 1400000000000L;
+
+    private AdvancedLocation advancedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        advancedLocation = new AdvancedLocation(getContext());
+        advancedLocation.resetGPX();
+        advancedLocation.setSaveLocation(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        advancedLocation.close();
+        advancedLocation.resetGPX();
+        super.tearDown();
+    }
+
+    // 1 location every 10s, ~5m/s toward north: each one is far enough from the previous one to be saved
+    private static List<Location> batch(int... seconds) {
+        List<Location> locations = new ArrayList<Location>();
+        for (int i : seconds) {
+            Location location = new Location("gps");
+            location.setTime(T0 + i * 10000L);
+            location.setLatitude(45 + i * 0.00045);
+            location.setLongitude(5.7);
+            location.setAltitude(300);
+            location.setAccuracy(4);
+            location.setSpeed(5);
+            locations.add(location);
+        }
+        return locations;
+    }
+
+    // loca_time of the saved locations, in insertion order
+    private long[] savedTimes() {
+        SQLiteDatabase db = AdvancedLocationDbHelper.getInstance(getContext()).getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT loca_time FROM " + AdvancedLocationDbHelper.Location.TABLE_NAME + " ORDER BY _ID ASC", null);
+        try {
+            long[] times = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                times[i] = cursor.getLong(0);
+            }
+            return times;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // unordered batches with duplicates, and a location of the 2nd batch older than the 1st one
+    public void testUnorderedBatchesWithDuplicates() {
+        advancedLocation.onLocationsChanged(batch(3, 1, 2, 2, 5, 4), 120, 80);
+        advancedLocation.onLocationsChanged(batch(4, 6, 8, 7, 8), 120, 80);
+
+        long[] times = savedTimes();
+        assertEquals(advancedLocation.getMetrics().counter("fix.saved").get(), times.length);
+        assertTrue(times.length > 0);
+        for (int i = 1; i < times.length; i++) {
+            assertTrue("not in time order at " + i, times[i] > times[i - 1]);
+        }
+        assertEquals(T0 + 80000, times[times.length - 1]);
+        // 1 to 8, each processed once
+        assertEquals(8, advancedLocation.nbOnLocationChanged);
+    }
+}
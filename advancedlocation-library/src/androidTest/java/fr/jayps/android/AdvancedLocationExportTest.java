@@ -0,0 +1,125 @@
+package fr.jayps.android;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import fr.jayps.core.TrackFileWriter;
+
+public class AdvancedLocationExportTest extends AndroidTestCase {
+
+    private static final int PAGE_SIZE = 3;
+
+    private AdvancedLocation advancedLocation;
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        advancedLocation = new AdvancedLocation(getContext());
+        advancedLocation.resetGPX();
+        db = AdvancedLocationDbHelper.getInstance(getContext()).getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        advancedLocation.resetGPX();
+        super.tearDown();
+    }
+
+    // latitude identifies the location
+    private void insertLocation(long time, int i) {
+        ContentValues values = new ContentValues();
+        values.put("loca_time", time);
+        values.put("loca_lat", 45 + i * 0.001);
+        values.put("loca_lon", 5.0);
+        values.put("loca_altitude", 300.0);
+        values.put("loca_gps_altitude", 300.0);
+        values.put("loca_pressure_altitude", 0.0);
+        values.put("loca_ascent", 0.0);
+        values.put("loca_accuracy", 5.0f);
+        db.insert(AdvancedLocationDbHelper.Location.TABLE_NAME, null, values);
+    }
+
+    private static int count(String s, String pattern) {
+        int n = 0;
+        for (int i = s.indexOf(pattern); i >= 0; i = s.indexOf(pattern, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    // keyset pagination on (loca_time, _ID): pages boundaries inside runs of equal loca_time
+    // neither skip nor repeat locations
+    public void testPaginationWithEqualTimes() throws IOException {
+        int n = 0;
+        for (int i = 0; i < 10; i++) {
+            insertLocation(1000, n++);
+        }
+        for (int i = 0; i < 5; i++) {
+            insertLocation(2000, n++);
+        }
+        insertLocation(3000, n++);
+
+        StringWriter gpx = new StringWriter();
+        advancedLocation.writeGPX(gpx, false, 0, Long.MAX_VALUE, PAGE_SIZE);
+        String s = gpx.toString();
+        assertEquals(n, count(s, "<trkpt "));
+        for (int i = 0; i < n; i++) {
+            String lat = "lat=\"" + (45 + i * 0.001) + "\"";
+            assertEquals(lat, 1, count(s, lat));
+        }
+
+        // fromTime <= loca_time < toTime
+        gpx = new StringWriter();
+        advancedLocation.writeGPX(gpx, false, 1000, 2000, PAGE_SIZE);
+        assertEquals(10, count(gpx.toString(), "<trkpt "));
+        gpx = new StringWriter();
+        advancedLocation.writeGPX(gpx, false, 2000, 3001, PAGE_SIZE);
+        assertEquals(6, count(gpx.toString(), "<trkpt "));
+    }
+
+    // a page size of 1 is the worst case: every page boundary falls inside a run
+    public void testPageSizeOne() throws IOException {
+        for (int i = 0; i < 7; i++) {
+            insertLocation(1000, i);
+        }
+        StringWriter gpx = new StringWriter();
+        advancedLocation.writeGPX(gpx, false, 0, Long.MAX_VALUE, 1);
+        assertEquals(7, count(gpx.toString(), "<trkpt "));
+    }
+
+    // track file mode: time ranges are read from the file, sessions are rejected
+    public void testTrackFile() throws IOException {
+        File file = new File(getContext().getCacheDir(), "export-test.bin");
+        file.delete();
+        TrackFileWriter writer = new TrackFileWriter(file);
+        for (int i = 0; i < 10; i++) {
+            writer.append(1000 + i * 1000L, 45 + i * 0.001, 5, 300, 300, 0, 0, 5, 0, 0);
+        }
+        writer.close();
+        // not in the track file
+        insertLocation(20000, 0);
+
+        advancedLocation.setTrackFile(file);
+        try {
+            String json = advancedLocation.getRunkeeperJson("Cycling", 3000, 8000);
+            assertTrue(json, json.contains("\"duration\": 4,"));
+            assertEquals(5, count(advancedLocation.getGPX(false, 3000, 8000), "<trkpt "));
+            try {
+                advancedLocation.getGPX(false, advancedLocation.startSession("test"));
+                fail("session exported from the track file");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            advancedLocation.stopSession();
+        } finally {
+            advancedLocation.setTrackFile(null);
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package fr.jayps.android;
+
+import android.database.Cursor;
+import android.location.Location;
+import android.test.AndroidTestCase;
+
+import fr.jayps.core.LapEngine;
+
+public class AdvancedLocationLapTest extends AndroidTestCase {
+
+    private AdvancedLocation advancedLocation;
+    private final Location location = new Location("gps");
+    private int nbLocations = 0;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        advancedLocation = new AdvancedLocation(getContext());
+        advancedLocation.resetGPX();
+        advancedLocation.setSaveLocation(true);
+        advancedLocation.setLaps(new LapEngine(LapEngine.DISTANCE, 1000));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        advancedLocation.close();
+        advancedLocation.resetGPX();
+        super.tearDown();
+    }
+
+    // 1 location per second, ~5m/s toward north
+    private void ride(int seconds) {
+        for (int i = 0; i < seconds; i++) {
+            nbLocations++;
+            location.setTime(1400000000000L + nbLocations * 1000L);
+            location.setLatitude(45 + nbLocations * 0.000045);
+            location.setLongitude(5.7);
+            location.setAltitude(300);
+            location.setAccuracy(4);
+            location.setSpeed(5);
+            advancedLocation.onLocationChanged(location, 120, 80);
+        }
+    }
+
+    private static int count(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // 2 km splits and the partial 3rd lap, saved through the write queue
+    public void testLapsOfSession() {
+        advancedLocation.setWriteBehind(64, 60 * 1000);
+        long sessionId = advancedLocation.startSession("laps");
+        ride(500);
+        assertEquals(2, advancedLocation.getLaps().getNbLaps());
+        advancedLocation.stopSession();
+
+        Cursor cursor = advancedLocation.queryLaps(sessionId);
+        try {
+            assertEquals(3, cursor.getCount());
+            cursor.moveToPosition(2);
+            assertEquals(2, cursor.getInt(0));
+            // lap_distance of the partial lap
+            assertTrue(cursor.getDouble(4) > 0 && cursor.getDouble(4) < 1000);
+        } finally {
+            cursor.close();
+        }
+
+        // the next session starts a new lap
+        sessionId = advancedLocation.startSession("laps 2");
+        advancedLocation.stopSession();
+        assertEquals(0, count(advancedLocation.queryLaps(sessionId)));
+    }
+
+    public void testResetDeletesAllLaps() {
+        advancedLocation.startSession("laps");
+        ride(300);
+        advancedLocation.flush();
+        assertEquals(1, count(advancedLocation.queryLaps(0)));
+        advancedLocation.resetGPX();
+        assertEquals(0, count(advancedLocation.queryLaps(0)));
+    }
+}
@@ -0,0 +1,74 @@
+package fr.jayps.android;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.location.Location;
+import android.test.AndroidTestCase;
+
+public class AdvancedLocationSessionTest extends AndroidTestCase {
+
+    private AdvancedLocation advancedLocation;
+    private final Location location = new Location("gps");
+    private int nbLocations = 0;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        advancedLocation = new AdvancedLocation(getContext());
+        advancedLocation.resetGPX();
+        advancedLocation.setSaveLocation(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        advancedLocation.close();
+        advancedLocation.resetGPX();
+        super.tearDown();
+    }
+
+    // 1 location per second, ~5m/s toward north
+    private void ride(int seconds) {
+        for (int i = 0; i < seconds; i++) {
+            nbLocations++;
+            location.setTime(1400000000000L + nbLocations * 1000L);
+            location.setLatitude(45 + nbLocations * 0.000045);
+            location.setLongitude(5.7);
+            location.setAltitude(300);
+            location.setAccuracy(4);
+            location.setSpeed(5);
+            advancedLocation.onLocationChanged(location, 120, 80);
+        }
+    }
+
+    // sess_elapsed_time, sess_distance
+    private double[] sessionStats(long sessionId) {
+        SQLiteDatabase db = AdvancedLocationDbHelper.getInstance(getContext()).getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT sess_elapsed_time, sess_distance FROM " + AdvancedLocationDbHelper.Session.TABLE_NAME + " WHERE _ID = ?", new String[] {Long.toString(sessionId)});
+        try {
+            assertTrue(cursor.moveToFirst());
+            return new double[] {cursor.getLong(0), cursor.getFloat(1)};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // each session stores its own part of the track, not the totals since the engine started
+    public void testBackToBackSessions() {
+        ride(100);
+        long first = advancedLocation.startSession("first");
+        ride(200);
+        assertEquals(199 * 1000, advancedLocation.getSessionElapsedTime(), 2000);
+        advancedLocation.stopSession();
+        long second = advancedLocation.startSession("second");
+        ride(100);
+        advancedLocation.stopSession();
+
+        double[] stats = sessionStats(first);
+        assertEquals(200 * 1000, stats[0], 2000);
+        assertEquals(1000, stats[1], 20);
+        stats = sessionStats(second);
+        assertEquals(100 * 1000, stats[0], 2000);
+        assertEquals(500, stats[1], 20);
+        assertTrue(advancedLocation.getDistance() > 1900);
+    }
+}
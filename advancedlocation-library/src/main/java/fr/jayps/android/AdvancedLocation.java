@@ -11,126 +11,53 @@ import android.util.Log;
 import android.content.Context;
 import android.widget.Toast;
 
-import java.text.SimpleDateFormat;
+import fr.jayps.core.CountingWriter;
+import fr.jayps.core.EngineCheckpoint;
+import fr.jayps.core.FitWriter;
+import fr.jayps.core.GpxWriter;
+import fr.jayps.core.GzipLevelOutputStream;
+import fr.jayps.core.LapEngine;
+import fr.jayps.core.LatencyHistogram;
+import fr.jayps.core.MetricsRegistry;
+import fr.jayps.core.RollingWindow;
+import fr.jayps.core.RunkeeperJsonWriter;
+import fr.jayps.core.StatsListener;
+import fr.jayps.core.StatsSnapshot;
+import fr.jayps.core.StatsSubscription;
+import fr.jayps.core.TrackFileReader;
+import fr.jayps.core.TrackFileWriter;
+import fr.jayps.core.TrackPointSink;
+import fr.jayps.core.TrackSimplifier;
+import fr.jayps.core.TrackStatsEngine;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.Locale;
-
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Android adapter over TrackStatsEngine: feeds it with android.location.Location, saves locations in the database and exports them.
 public class AdvancedLocation {
     private static final String TAG = "AdvancedLocation";
 
-    protected class LocationWithExtraFields extends Location {
-        public float distance = 0; // in m
-
-        // altitude2, a 2nd altitude, provided by a pressure sensor for example
-        private double _altitude2 = 0;
-        private boolean _hasAltitude2 = false;
-        private long _altitude2CalibrationTime = 0;
-        private double _altitude2CalibrationDelta = 0;
-
-        public LocationWithExtraFields(Location l) {
-            super(l);
-            this.distance = _distance;
-            this._altitude2 = altitude2;
-            this._hasAltitude2 = hasAltitude2;
-            this._altitude2CalibrationTime = altitude2CalibrationTime;
-            this._altitude2CalibrationDelta = altitude2CalibrationDelta;
-        }
-
-        public double getAltitude() {
-            if (this._hasAltitude2 && this._altitude2CalibrationTime > 0) {
-                return this._altitude2 + this._altitude2CalibrationDelta;
-            }
-            return super.getAltitude();
-        }
-        public double getAltitudeFromGps() {
-            return super.getAltitude();
-        }
-        public float getAltitudeAccuracy() {
-            if (this._hasAltitude2 && this._altitude2CalibrationTime > 0) {
-                // obtained from a pressure sensor, and calibration already done
-                return 1; // should be below _minAccuracyForAltitudeChangeLevel1
-            }
-            return super.getAccuracy();
-        }
-    }
-
-    protected LocationWithExtraFields currentLocation = null;         // current location
-    protected LocationWithExtraFields lastLocation = null;            // last received location
-    protected LocationWithExtraFields lastGoodLocation = null;        // last location with accuracy below _minAccuracy
-    protected LocationWithExtraFields lastGoodAscentLocation = null;  // last location with changed ascent
-    protected LocationWithExtraFields lastGoodAscentLocation2 = null; // other previous location with changed ascent, older and with better accuracy than lastGoodAscentLocation
-    protected LocationWithExtraFields lastGoodAscentRateLocation = null;  // last location with changed ascentRate
-    protected LocationWithExtraFields lastSavedLocation = null;       // last saved location
-
-
-    // altitude2, a 2nd altitude, provided by a pressure sensor for example
-    protected double altitude2 = 0;
-    protected boolean hasAltitude2 = false;
-    protected long altitude2CalibrationTime = 0;
-    protected float altitude2CalibrationAccuracy = 99;
-    protected double altitude2CalibrationDelta = 0;
-    // constants used to "calibrate" altitude2
-    static final float _minAccuracyForAltitude2Calibration = 5; // in m
-    static final float _minDeltaTimeForAltitude2Calibration = 20 * 60 * 1000; // in ms
-
-
-    static final float _minAccuracyIni = 20; // in m
-    protected float _minAccuracy = _minAccuracyIni;   // in m
-
-    // max value for _minAccuracy
-    static final float _maxMinAccuracy = 50;   // in m
-
-    // always remember that accuracy is 3x worth on altitude than on latitude/longitude
-    static final float _minAccuracyForAltitudeChangeLevel1 = 1; // in m
-    static final float _minAltitudeChangeLevel1 = 3; // in m
-    static final float _minAccuracyForAltitudeChangeLevel2 = 3; // in m
-    static final float _minAltitudeChangeLevel2 = 10; // in m
-    static final float _minAccuracyForAltitudeChangeLevel3 = 6; // in m
-    static final float _minAltitudeChangeLevel3 = 20; // in m
-    static final float _minAccuracyForAltitudeChangeLevel4 = 12; // in m
-    static final float _minAltitudeChangeLevel4 = 50; // in m
-    static final long _minDeltaTimeForAscentRate = 60 * 1000; // in ms
-    static final long _maxDeltaTimeForAscentRate = 3 * 60 * 1000; // in ms
-
-    static final long _minDeltaTimeToSaveLocation = 5 * 60 * 1000; // in ms
-    static final float _minDeltaDistanceToSaveLocation = 20;   // in m
-
-    private static final float MAX_ACCURACY_FOR_MAX_SPEED = 12; // in m
-
-    // min speed to compute _elapsedTime or _ascent
-    // 0.3m/s <=> 1.08km/h
-    static final float _minSpeedToComputeStats = 0.3f; // in m/s
+    protected final TrackStatsEngine _engine = new TrackStatsEngine();
 
     public int nbOnLocationChanged = 0;
     public int nbGoodLocations = 0;
-    protected int _nbBadAccuracyLocations = 0;
-
-    protected float _distance = 0; // in m
-    protected double _ascent = 0; // in m
-    protected long _elapsedTime = 0; // in ms
-
-    protected float _averageSpeed = 0; // in m/s
-    protected float _maxSpeed = 0; // in m/s
-    protected float _ascentRate = 0; // in m/s
-
-    protected float _slope = 0; // in %
-
-    protected int _nbAscent = 0;
-    private double _nbAscentAltitudeLocalMin = 0;
-    private double _nbAscentAltitudeLocalMax = 0;
-    private boolean _nbAscentAscentInProgress = false;
-    private boolean _nbAscentDescentInProgress = false;
-    public static final float MAX_ACCURACY_FOR_NB_ASCENT = 7; // in m
-    public static final float NB_ASCENT_DELTA_ALTITUDE = 50; // in m
-
-    // Height of geoid above WGS84 ellipsoid
-    protected double _geoidHeight = 0; // in m
-
-    private int _hearRate = 0;
-    private int _cadence = 0;
-    private float _sensorSpeed = 0;
-    private long _sensorSpeedTime = 0;
 
     // debug levels
     public int debugLevel = 0;
@@ -138,635 +65,1229 @@ public class AdvancedLocation {
     public String debugTagPrefix = "";
 
     // constants
-    public static final int SKIPPED = 0x0;
-    public static final int NORMAL = 0x1;
-    public static final int SAVED = 0x2;
+    public static final int SKIPPED = TrackStatsEngine.SKIPPED;
+    public static final int NORMAL = TrackStatsEngine.NORMAL;
+    public static final int SAVED = TrackStatsEngine.SAVED;
+
+    public static final float MAX_ACCURACY_FOR_NB_ASCENT = TrackStatsEngine.MAX_ACCURACY_FOR_NB_ASCENT; // in m
+    public static final float NB_ASCENT_DELTA_ALTITUDE = TrackStatsEngine.NB_ASCENT_DELTA_ALTITUDE; // in m
 
     protected Context _context = null;
     private AdvancedLocationDbHelper dbHelper;
     private SQLiteDatabase db;
     private boolean _saveLocation = false;
+    private LocationWriteQueue _writeQueue = null; // write-behind mode if not null
+    private long _sessionId = 0; // current session, 0 if none
+    // stats of the engine when the current session started, the session stats are the differences
+    private long _sessionStartElapsedTime = 0; // in ms
+    private float _sessionStartDistance = 0; // in m
+    private double _sessionStartAscent = 0; // in m
+    private float _sessionStartMaxSpeed = 0; // in m/s
+    private File _trackFile = null; // binary track file instead of the database if not null
+    private TrackFileWriter _trackFileWriter = null;
+    private long _trackFileMaxLatency = DEFAULT_TRACK_FILE_MAX_LATENCY; // in ms
+    private EngineCheckpoint _checkpoint = null; // periodic checkpoints of the engine state if not null
+    private ExecutorService _checkpointExecutor = null; // writes the checkpoints, created on first use
+    private final AtomicReference<byte[]> _pendingCheckpoint = new AtomicReference<byte[]>(); // latest one not written yet
+
+    // simplification of the exports, disabled if _simplifyHorizontalTolerance <= 0
+    private double _simplifyHorizontalTolerance = 0; // in m
+    private double _simplifyVerticalTolerance = 0; // in m
+    private int _simplifyHrTolerance = 0;
+    private int _simplifyCadTolerance = 0;
+    private int _nbDroppedPoints = 0; // in the last export
+
+    // performance metrics, see getMetrics()
+    private final MetricsRegistry _metrics = new MetricsRegistry();
+    private final LatencyHistogram _fixLatency = _metrics.histogram("fix.latency");
+    private final LatencyHistogram _saveLatency = _metrics.histogram("save.latency");
+    private final LatencyHistogram _flushLatency = _metrics.histogram("flush.latency");
+    private final LatencyHistogram _exportDuration = _metrics.histogram("export.duration");
+    private final AtomicLong _nbSkippedFixes = _metrics.counter("fix.skipped");
+    private final AtomicLong _nbNormalFixes = _metrics.counter("fix.normal");
+    private final AtomicLong _nbSavedFixes = _metrics.counter("fix.saved");
+    private final AtomicLong _exportChars = _metrics.counter("export.chars");
+    private final AtomicLong _exportBytes = _metrics.counter("export.bytes");
+
+    // locations read per query by the time-range exports
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    // max location time between two writes to the track file
+    public static final long DEFAULT_TRACK_FILE_MAX_LATENCY = 30 * 1000; // in ms
+
+    private static final String SQL_SELECT_LOCATIONS = "SELECT _ID, loca_time, loca_lat, loca_lon, loca_altitude, loca_accuracy, loca_comment, loca_ascent, loca_gps_altitude, loca_pressure_altitude, loca_hr, loca_cad FROM " + AdvancedLocationDbHelper.Location.TABLE_NAME;
 
     public AdvancedLocation() {
         this._context = null;
+        _engine.setLogListener(_logListener);
+        _registerGauges();
     }
 
     public AdvancedLocation(Context context) {
         this._context = context;
         dbHelper = AdvancedLocationDbHelper.getInstance(context);
         db = dbHelper.getWritableDatabase();
+        _engine.setLogListener(_logListener);
+        _registerGauges();
     }
 
-    // getters
-    public double getAltitude() {
-        if (hasAltitude2 && altitude2CalibrationTime > 0) {
-            return altitude2 + altitude2CalibrationDelta;
+    public TrackStatsEngine getEngine() {
+        return _engine;
+    }
+
+    // Performance metrics (latencies in ns):
+    // fix.latency: processing of a location by onLocationChanged(), without saving
+    // save.latency: saving a location (insert, queue or track file), flush.latency: flush()
+    // export.duration and export.chars: streaming exports (getGPX(), writeRunkeeperJson()...), export.bytes: writeFit()
+    // fix.skipped/normal/saved counters and ratios, engine.min_accuracy...
+    // e.g. getMetrics().addReporter(reporter) and getMetrics().report() on a timer
+    public MetricsRegistry getMetrics() {
+        return _metrics;
+    }
+
+    private void _registerGauges() {
+        _metrics.gauge("engine.min_accuracy", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return _engine.getMinAccuracy();
+            }
+        });
+        _metrics.gauge("engine.bad_accuracy_locations", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return _engine.getNbBadAccuracyLocations();
+            }
+        });
+        _metrics.gauge("fix.skipped_ratio", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return _fixRatio(_nbSkippedFixes.get());
+            }
+        });
+        _metrics.gauge("fix.accepted_ratio", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return _fixRatio(_nbNormalFixes.get() + _nbSavedFixes.get());
+            }
+        });
+        _metrics.gauge("fix.saved_ratio", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return _fixRatio(_nbSavedFixes.get());
+            }
+        });
+        _metrics.gauge("write_queue.dropped", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                LocationWriteQueue writeQueue = _writeQueue;
+                return writeQueue != null ? writeQueue.getNbDropped() : 0;
+            }
+        });
+    }
+
+    private double _fixRatio(long n) {
+        long total = _nbSkippedFixes.get() + _nbNormalFixes.get() + _nbSavedFixes.get();
+        return total > 0 ? (double) n / total : 0;
+    }
+
+    // consistent statistics after the last location, to be used by the other threads (UI, sync...)
+    // instead of the getters below, which must be called from the thread calling onLocationChanged()
+    public StatsSnapshot getSnapshot() {
+        return _engine.getSnapshot();
+    }
+
+    // instead of polling the getters: listener notified on executor (e.g. the UI thread) after onLocationChanged()
+    // or onAltitudeChanged(), at most once per minInterval (in ms)
+    public StatsSubscription addStatsListener(StatsListener listener, Executor executor, long minInterval) {
+        return _engine.addStatsListener(listener, executor, minInterval);
+    }
+
+    // only when one of the fields (StatsSubscription.SPEED...) changed by more than its threshold
+    public StatsSubscription addStatsListener(StatsListener listener, Executor executor, long minInterval, int[] fields, double[] thresholds) {
+        return _engine.addStatsListener(listener, executor, minInterval, fields, thresholds);
+    }
+
+    public void removeStatsListener(StatsListener listener) {
+        _engine.removeStatsListener(listener);
+    }
+
+    // "last 30s" or "last 1km" averages: speed, vertical speed, heart rate, cadence, see RollingWindow
+    // e.g. addRollingWindow(new RollingWindow(RollingWindow.TIME, 30 * 1000)).getSpeed()
+    public RollingWindow addRollingWindow(RollingWindow window) {
+        return _engine.addRollingWindow(window);
+    }
+
+    public void removeRollingWindow(RollingWindow window) {
+        _engine.removeRollingWindow(window);
+    }
+
+    // Laps and splits computed while riding (see LapEngine), e.g. new LapEngine(LapEngine.DISTANCE, 1000) for km splits.
+    // Completed laps are also saved in the lap table (with the current session) when saving locations,
+    // through the write queue in write-behind mode. stopSession() ends the lap in progress.
+    // null to disable laps
+    public void setLaps(LapEngine laps) {
+        LapEngine previous = _engine.getLapEngine();
+        if (previous != null) {
+            previous.setListener(null);
         }
+        if (laps != null) {
+            laps.setListener(_lapListener);
+        }
+        _engine.setLapEngine(laps);
+    }
 
-        if (lastGoodLocation != null) {
-            return lastGoodLocation.getAltitude();
+    public LapEngine getLaps() {
+        return _engine.getLapEngine();
+    }
+
+    // saved laps of a session (0: all), by lap number: lap_number, lap_start_time, lap_end_time, lap_elapsed_time,
+    // lap_distance, lap_ascent, lap_max_speed, lap_hr, lap_cad, lap_nb_ascent
+    public Cursor queryLaps(long sessionId) {
+        String sql = "SELECT lap_number, lap_start_time, lap_end_time, lap_elapsed_time, lap_distance, lap_ascent, lap_max_speed, lap_hr, lap_cad, lap_nb_ascent FROM " + AdvancedLocationDbHelper.Lap.TABLE_NAME;
+        if (sessionId > 0) {
+            return db.rawQuery(sql + " WHERE lap_session_id = ? ORDER BY lap_number ASC", new String[] {Long.toString(sessionId)});
         }
-        return 0;
+        return db.rawQuery(sql + " ORDER BY " + AdvancedLocationDbHelper.Lap._ID + " ASC", null);
     }
-    public double getAltitudeFromGps() {
-        if (currentLocation != null) {
-            return currentLocation.getAltitudeFromGps();
+
+    private final LapEngine.Listener _lapListener = new LapEngine.Listener() {
+        @Override
+        public void onLap(LapEngine laps, int lap) {
+            if (db == null || !_saveLocation) {
+                return;
+            }
+            ContentValues values = new ContentValues();
+            if (_sessionId > 0) {
+                values.put("lap_session_id", _sessionId);
+            }
+            values.put("lap_number", lap);
+            values.put("lap_start_time", laps.getStartTime(lap));
+            values.put("lap_end_time", laps.getEndTime(lap));
+            values.put("lap_elapsed_time", laps.getElapsedTime(lap));
+            values.put("lap_distance", laps.getDistance(lap));
+            values.put("lap_ascent", laps.getAscent(lap));
+            values.put("lap_max_speed", laps.getMaxSpeed(lap));
+            values.put("lap_hr", laps.getHeartRate(lap));
+            values.put("lap_cad", laps.getCadence(lap));
+            values.put("lap_nb_ascent", laps.getNbAscent(lap));
+            if (_writeQueue != null) {
+                _writeQueue.offerLap(values);
+            } else if (db.insert(AdvancedLocationDbHelper.Lap.TABLE_NAME, null, values) < 0) {
+                Logger("Failed to save lap " + lap);
+            }
         }
-        return 0;
+    };
+
+    // ends (and saves) the lap in progress, unless it has no fix after its start
+    private void _endLap() {
+        LapEngine laps = _engine.getLapEngine();
+        if (laps != null && laps.getEndTime(laps.getNbLaps()) > laps.getStartTime(laps.getNbLaps())) {
+            laps.lap();
+        }
+    }
+
+    // getters
+    public double getAltitude() {
+        return _engine.getAltitude();
+    }
+    public double getAltitudeFromGps() {
+        return _engine.getAltitudeFromGps();
     }
     public double getAltitudeFromPressure() {
-        return altitude2;
+        return _engine.getAltitudeFromPressure();
     }
 
 
     public double getGoodAltitude() {
-        if (lastGoodAscentLocation != null) {
-            return lastGoodAscentLocation.getAltitude();
-        }
-        return 0;
+        return _engine.getGoodAltitude();
     }
 
     public float getAccuracy() {
-        if (currentLocation != null) {
-            return currentLocation.getAccuracy();
-        }
-        return 0.0f;
+        return _engine.getAccuracy();
     }
 
     public float getAltitudeAccuracy() {
-        if (currentLocation != null) {
-            return currentLocation.getAltitudeAccuracy();
-        }
-        return 0.0f;
+        return _engine.getAltitudeAccuracy();
     }
 
     public float getSpeed() {
-        if (currentLocation != null) {
-            Logger("getSpeed currentLocation time:" + currentLocation.getTime() + " speed:" + currentLocation.getSpeed() + " sensor time:" + _sensorSpeedTime + " speed:" + _sensorSpeed);
-            if (_sensorSpeed != 0.0 && _sensorSpeedTime > 0 && currentLocation.getTime() < _sensorSpeedTime + 10 * 1000) {
-                // we've got a sensor speed, and no gps speed at least 10s newer
-                return _sensorSpeed;
-            }
-            return currentLocation.getSpeed();
-        } else if (_sensorSpeedTime > 0) {
-            Logger("getSpeed sensor time:" + _sensorSpeedTime + " speed:" + _sensorSpeed);
-            return _sensorSpeed;
-        }
-        return 0.0f;
+        return _engine.getSpeed();
     }
 
     public float getAverageSpeed() {
-        if ((_averageSpeed == 0) && (_elapsedTime > 0)) {
-            // not yet calculated yet?
-            _averageSpeed = (float) _distance / ((float) _elapsedTime / 1000f);
-        }
-        return _averageSpeed;
+        return _engine.getAverageSpeed();
     }
     public float getMaxSpeed() {
-        return _maxSpeed;
+        return _engine.getMaxSpeed();
     }
     public int getNbAscent() {
-        return _nbAscent;
+        return _engine.getNbAscent();
     }
 
     public long getElapsedTime() {
-        return _elapsedTime;
+        return _engine.getElapsedTime();
     }
 
     public long getTime() {
-        if (currentLocation != null) {
-            return currentLocation.getTime();
-        }
-        return 0;
+        return _engine.getTime();
     }
 
     public float getDistance() {
-        return _distance;
+        return _engine.getDistance();
     }
 
     public double getAscent() {
-        return Math.floor(_ascent);
+        return _engine.getAscent();
     }
 
     public float getAscentRate() {
-        return _ascentRate;
+        return _engine.getAscentRate();
     }
 
     public float getSlope() {
-        return _slope;
+        return _engine.getSlope();
     }
 
     public boolean hasBearing() {
-        if (currentLocation != null) {
-            return currentLocation.hasBearing();
-        }
-        return false;
+        return _engine.hasBearing();
     }
 
     public float getBearing() {
-        if (currentLocation != null) {
-            return currentLocation.getBearing();
-        }
-        return 0;
+        return _engine.getBearing();
     }
 
     public String getBearingText() {
-        if (currentLocation != null) {
+        if (_engine.hasLocation()) {
             // getBearing() is guaranteed to be in the range (0.0, 360.0] if the device has a bearing.
-            return bearingText(currentLocation.getBearing());
+            return bearingText(_engine.getBearing());
         }
         return "";
     }
 
     public static String bearingText(float bearing) {
-        String bearingText = "";
-
-        bearing = bearing % 360;
-        if (bearing < 0) {
-            bearing += 360;
-        }
-
-        if (bearing >= 0 && bearing < 22.5) {
-            bearingText = "N";
-        }
-
-        if (bearing >= 22.5 && bearing < 67.5) {
-            bearingText = "NE";
-        }
-
-        if (bearing >= 67.5 && bearing < 112.5) {
-            bearingText = "E";
-        }
-
-        if (bearing >= 112.5 && bearing < 157.5) {
-            bearingText = "SE";
-        }
-
-        if (bearing >= 157.5 && bearing < 202.5) {
-            bearingText = "S";
-        }
-
-        if (bearing >= 202.5 && bearing < 247.5) {
-            bearingText = "SW";
-        }
-
-        if (bearing >= 247.5 && bearing < 292.5) {
-            bearingText = "W";
-        }
-
-        if (bearing >= 292.5 && bearing < 337.5) {
-            bearingText = "NW";
-        }
-
-        if (bearing >= 337.5 && bearing < 360) {
-            bearingText = "N";
-        }
-
-        return bearingText;
+        return TrackStatsEngine.bearingText(bearing);
     }
 
     public double getLatitude() {
-        if (currentLocation != null) {
-            return currentLocation.getLatitude();
-        }
-        return 0;
+        return _engine.getLatitude();
     }
 
     public double getLongitude() {
-        if (currentLocation != null) {
-            return currentLocation.getLongitude();
-        }
-        return 0;
+        return _engine.getLongitude();
     }
 
     public double getGeoidHeight() {
-        return this._geoidHeight;
+        return _engine.getGeoidHeight();
+    }
+
+    public int getDistanceMode() {
+        return _engine.getDistanceMode();
     }
 
     public double getAltitudeCalibrationDelta() {
-        return this.altitude2CalibrationDelta;
+        return _engine.getAltitudeCalibrationDelta();
     }
 
     // setters
     public void setElapsedTime(long elapsedTime) {
-        this._elapsedTime = elapsedTime;
+        _engine.setElapsedTime(elapsedTime);
     }
 
     public void setDistance(float distance) {
-        this._distance = distance;
+        _engine.setDistance(distance);
     }
 
     public void setAscent(double ascent) {
-        this._ascent = ascent;
+        _engine.setAscent(ascent);
     }
 
     public void setGeoidHeight(double geoidHeight) {
-        Logger("setGeoidHeight:" + geoidHeight);
-
-        if (this._geoidHeight != geoidHeight) {
-            this._geoidHeight = geoidHeight;
-
-            // force to recalibrate altitude2 (pressure sensor, if we got one)
-            hasAltitude2 = false;
-            altitude2CalibrationTime = 0;
-        }
+        _engine.setGeoidHeight(geoidHeight);
     }
 
     public void setAltitudeCalibrationDelta(double altitudeCalibrationDelta) {
-        Logger("setAltitudeCalibrationDelta:" + altitudeCalibrationDelta);
-        if (altitudeCalibrationDelta != 0 && this.altitude2CalibrationDelta != altitudeCalibrationDelta) {
-            this.altitude2CalibrationDelta = altitudeCalibrationDelta;
-            this.altitude2CalibrationAccuracy = _minAccuracyForAltitude2Calibration;
-            this.altitude2CalibrationTime = 1; // timestamp in the past
-        }
+        _engine.setAltitudeCalibrationDelta(altitudeCalibrationDelta);
     }
 
+    // Distance.VINCENTY (default), Distance.HAVERSINE or Distance.EQUIRECTANGULAR (fastest, for high-rate fixes)
+    public void setDistanceMode(int distanceMode) {
+        _engine.setDistanceMode(distanceMode);
+    }
     public void setMaxSpeed(float maxSpeed) {
-        this._maxSpeed = maxSpeed;
+        _engine.setMaxSpeed(maxSpeed);
     }
     public void setNbAscent(int nbAscent) {
-        // reset internal data
-        _nbAscentAltitudeLocalMin = _nbAscentAltitudeLocalMax = 0;
-        this._nbAscent = nbAscent;
+        _engine.setNbAscent(nbAscent);
     }
+
     public void setSaveLocation(boolean saveLocation) {
         this._saveLocation = saveLocation;
     }
 
-    public int onLocationChanged(Location location, int heartRate, int cadence) {
-        int returnValue = NORMAL;
-        long deltaTime = 0;
-        float deltaDistance = 0;
-        double deltaAscent = 0;
-        double deltaAltitude = 0;
-        float deltaAltitudeAccuracy = 0;
-        boolean isFirstLocation = false;
+    // Write-behind mode: saved locations are queued and written by a background thread,
+    // in one transaction, every batchSize locations or after maxLatency ms.
+    // batchSize <= 0 goes back to synchronous inserts.
+    public void setWriteBehind(int batchSize, long maxLatency) {
+        if (_writeQueue != null) {
+            _writeQueue.shutdown();
+            _writeQueue = null;
+        }
+        if (batchSize > 0 && db != null) {
+            _writeQueue = new LocationWriteQueue(db, LocationWriteQueue.DEFAULT_CAPACITY, batchSize, maxLatency);
+            _writeQueue.start();
+        }
+    }
+
+    // write the locations queued in write-behind mode
+    public void flush() {
+        long start = System.nanoTime();
+        if (_writeQueue != null) {
+            try {
+                _writeQueue.flush();
+            } catch (RuntimeException e) {
+                // the batch is re-queued for the writer thread, dropped after a 2nd failure in a row
+                Logger("Failed to write locations: " + e);
+            }
+        }
+        if (_trackFileWriter != null) {
+            try {
+                _trackFileWriter.flush();
+            } catch (IOException e) {
+                Logger("Failed to write track file: " + e);
+            }
+        }
+        _flushLatency.recordSince(start);
+    }
 
-        if (this._geoidHeight != 0) {
-        // we get an height of geoid (above WGS84 ellipsoid), use it to correct altitude
-            location.setAltitude(location.getAltitude() - this._geoidHeight);
+    // to be called when the tracking stops: write the queued locations and stop the background writer
+    public void close() {
+        if (_checkpoint == null) {
+            // the lap in progress can't be resumed by restoreCheckpoint(): save it now
+            _endLap();
+        }
+        setWriteBehind(0, 0);
+        if (_checkpoint != null) {
+            _stopCheckpointWriter();
+            try {
+                _checkpoint.write(_engine, _sessionId);
+            } catch (IOException e) {
+                Logger("Failed to write checkpoint: " + e);
+            }
         }
+        try {
+            setTrackFile(null);
+        } catch (IOException e) {
+            Logger("Failed to close track file: " + e);
+        }
+    }
 
-        nbOnLocationChanged++;
-        Logger("onLocationChanged: " +nbGoodLocations+"/"+nbOnLocationChanged+" "+(location.getTime()/1000)+","+location.getLatitude()+","+location.getLongitude()+","+location.getAltitude()+"("+this._geoidHeight+"),"+location.getAccuracy());
+    // Binary track file (see TrackFileWriter): saved locations are appended to this file instead of
+    // the database (~15 bytes per location), and exports read it through a memory mapping.
+    // Locations are written at least every DEFAULT_TRACK_FILE_MAX_LATENCY ms.
+    // Sessions only apply to the database: exports of a session throw IllegalArgumentException.
+    // null to go back to the database.
+    public void setTrackFile(File file) throws IOException {
+        setTrackFile(file, DEFAULT_TRACK_FILE_MAX_LATENCY);
+    }
 
-        if (lastLocation == null) {
-            // save 1st location for next call to onLocationChanged()
-            lastLocation = new LocationWithExtraFields(location);
-            isFirstLocation = true;
+    // maxLatency in ms (of location time), TrackFileWriter.NO_MAX_LATENCY to write full blocks only
+    public void setTrackFile(File file, long maxLatency) throws IOException {
+        if (_trackFileWriter != null) {
+            TrackFileWriter writer = _trackFileWriter;
+            _trackFileWriter = null;
+            _trackFile = null;
+            writer.close();
         }
+        if (file != null) {
+            _trackFileWriter = new TrackFileWriter(file, TrackFileWriter.DEFAULT_POINTS_PER_BLOCK, maxLatency);
+            _trackFile = file;
+            _trackFileMaxLatency = maxLatency;
+        }
+    }
 
-        if (location.getAccuracy() > _minAccuracy) {
-            _nbBadAccuracyLocations++;
-            if (_nbBadAccuracyLocations > 10) {
-                float _prevMinAccuracy = _minAccuracy;
+    // Checkpoints (see EngineCheckpoint): the full state of the engine, its laps and the current session are
+    // written to file every interval ms (of location time), on a background thread, and by close(), so that
+    // restoreCheckpoint() resumes the stats in a few ms after the process has been killed, without the setters
+    // nor replaying the saved locations.
+    // null to disable.
+    public void setCheckpoint(File file, long interval) {
+        _stopCheckpointWriter();
+        _checkpoint = file != null ? new EngineCheckpoint(file, interval) : null;
+    }
 
-                _minAccuracy = (float) Math.floor(1.5f * _minAccuracy);
+    // Restores the engine from the checkpoint file, e.g. on start, returns false if there is no valid checkpoint.
+    // The laps (see setLaps(), to be called before) continue with the next lap number, and the session
+    // continues if it hasn't been stopped.
+    public boolean restoreCheckpoint() {
+        if (_checkpoint == null) {
+            return false;
+        }
+        try {
+            if (!_checkpoint.restore(_engine)) {
+                return false;
+            }
+        } catch (IOException e) {
+            Logger("Failed to read checkpoint: " + e);
+            return false;
+        }
+        nbOnLocationChanged = _engine.getNbFixes();
+        nbGoodLocations = _engine.getNbGoodFixes();
+        if (!_resumeSession(_checkpoint.getSessionId())) {
+            _endSession();
+        }
+        return true;
+    }
 
-                if (_minAccuracy > _maxMinAccuracy) {
-                    // max value for _minAccuracy
-                    _minAccuracy = _maxMinAccuracy;
-                }
+    // removes the checkpoint file, e.g. when a new track starts
+    public void deleteCheckpoint() {
+        if (_checkpoint != null) {
+            _stopCheckpointWriter();
+            _checkpoint.delete();
+        }
+    }
 
-                if (_minAccuracy != _prevMinAccuracy) {
-                    _nbBadAccuracyLocations = 0;
+    // serializes a checkpoint on this thread, written by the checkpoint thread
+    private void _postCheckpoint() {
+        try {
+            _postCheckpoint(EngineCheckpoint.serialize(_engine, _sessionId));
+        } catch (IOException e) {
+            Logger("Failed to write checkpoint: " + e);
+        }
+    }
 
-                    Logger("Accuracy to often above _minAccuracy, augment _minAccuracy to " + _minAccuracy,  LoggerType.TOAST);
+    private void _postCheckpoint(byte[] checkpoint) {
+        if (_pendingCheckpoint.getAndSet(checkpoint) != null) {
+            // not written yet: replaced by the new one
+            return;
+        }
+        if (_checkpointExecutor == null) {
+            _checkpointExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG + "-checkpoint");
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+        }
+        _checkpointExecutor.execute(_checkpointWriter);
+    }
+
+    // checkpoint thread
+    private final Runnable _checkpointWriter = new Runnable() {
+        @Override
+        public void run() {
+            byte[] checkpoint = _pendingCheckpoint.getAndSet(null);
+            if (checkpoint == null) {
+                return;
+            }
+            try {
+                _checkpoint.write(checkpoint);
+            } catch (IOException e) {
+                Logger("Failed to write checkpoint: " + e);
             }
         }
-        if (location.getAccuracy() < MAX_ACCURACY_FOR_MAX_SPEED) {
-            _maxSpeed = Math.max(location.getSpeed(), _maxSpeed);
+    };
+
+    // waits for the pending checkpoint to be written
+    private void _stopCheckpointWriter() {
+        if (_checkpointExecutor == null) {
+            return;
         }
-        _hearRate = heartRate;
-        _cadence = cadence;
+        _checkpointExecutor.shutdown();
+        try {
+            _checkpointExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _checkpointExecutor = null;
+    }
 
-        if ((lastGoodLocation != null) && ((location.getTime() - lastGoodLocation.getTime()) < 500)) {
-            // less than X ms, skip this location
-            return SKIPPED;
+    // continues the session with the stats at its start, returns false if it doesn't exist or has been stopped
+    private boolean _resumeSession(long sessionId) {
+        if (sessionId <= 0 || db == null) {
+            return false;
         }
+        Cursor cursor = db.rawQuery("SELECT sess_end_time, sess_start_elapsed_time, sess_start_distance, sess_start_ascent, sess_start_max_speed FROM " + AdvancedLocationDbHelper.Session.TABLE_NAME + " WHERE _ID = ?", new String[] {Long.toString(sessionId)});
+        try {
+            if (!cursor.moveToFirst() || !cursor.isNull(0)) {
+                return false;
+            }
+            _sessionId = sessionId;
+            // NULL (0) for sessions started before v7
+            _sessionStartElapsedTime = cursor.getLong(1);
+            _sessionStartDistance = cursor.getFloat(2);
+            _sessionStartAscent = cursor.getDouble(3);
+            _sessionStartMaxSpeed = cursor.getFloat(4);
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
 
-        if (hasAltitude2) {
-            if (
-                (location.getAccuracy() < altitude2CalibrationAccuracy - 0.5)
-                ||
-                ((location.getTime() - altitude2CalibrationTime > _minDeltaTimeForAltitude2Calibration)
-                && (location.getAccuracy() < _minAccuracyForAltitude2Calibration))
-                ) {
-                    String s = altitude2CalibrationDelta + "->";
-                    altitude2CalibrationTime = location.getTime();
-                    altitude2CalibrationAccuracy = location.getAccuracy();
-                    altitude2CalibrationDelta = location.getAltitude() - altitude2;
+    // Sessions: locations saved between startSession() and stopSession() are tagged with the session id,
+    // so that a single activity can be exported, counted or deleted using the loca_session_id index.
 
-                    // force to restart computations based on altitude
-                    lastGoodAscentLocation = null;
+    // starts a new session (stopping the current one if any), returns its id
+    public long startSession(String name) {
+        if (_sessionId > 0) {
+            stopSession();
+        }
+        _sessionStartElapsedTime = getElapsedTime();
+        _sessionStartDistance = getDistance();
+        _sessionStartAscent = getAscent();
+        _sessionStartMaxSpeed = getMaxSpeed();
+        ContentValues values = new ContentValues();
+        values.put("sess_name", name);
+        values.put("sess_start_time", System.currentTimeMillis());
+        values.put("sess_start_elapsed_time", _sessionStartElapsedTime);
+        values.put("sess_start_distance", _sessionStartDistance);
+        values.put("sess_start_ascent", _sessionStartAscent);
+        values.put("sess_start_max_speed", _sessionStartMaxSpeed);
+        _sessionId = db.insert(AdvancedLocationDbHelper.Session.TABLE_NAME, null, values);
+        if (_sessionId < 0) {
+            Logger("Failed to create session " + name);
+            _endSession();
+        }
+        if (_checkpoint != null) {
+            _postCheckpoint();
+        }
+        return _sessionId;
+    }
 
-                    s += altitude2CalibrationDelta;
-                    Logger("altitude2CalibrationDelta:" + s);
-                    Logger("delta:" + s, LoggerType.TOAST);
-                }
+    // ends the current session (and its lap in progress) and stores its stats
+    public void stopSession() {
+        if (_sessionId <= 0) {
+            return;
         }
+        _endLap();
+        flush();
+        ContentValues values = new ContentValues();
+        values.put("sess_end_time", System.currentTimeMillis());
+        values.put("sess_elapsed_time", getSessionElapsedTime());
+        values.put("sess_distance", getSessionDistance());
+        values.put("sess_ascent", getSessionAscent());
+        db.update(AdvancedLocationDbHelper.Session.TABLE_NAME, values, "_ID = ?", new String[] {Long.toString(_sessionId)});
+        _endSession();
+        if (_checkpoint != null) {
+            _postCheckpoint();
+        }
+    }
 
-        currentLocation = new LocationWithExtraFields(location);
+    // current session, 0 if none
+    public long getSessionId() {
+        return _sessionId;
+    }
 
-        if (currentLocation.getAccuracy() <= _minAccuracy) {
+    // stats of the current session (of the whole track if none)
+    public long getSessionElapsedTime() {
+        return getElapsedTime() - _sessionStartElapsedTime;
+    }
+    public float getSessionDistance() {
+        return getDistance() - _sessionStartDistance;
+    }
+    public double getSessionAscent() {
+        return getAscent() - _sessionStartAscent;
+    }
+    // 0 if the max speed of the track was reached before the session
+    public float getSessionMaxSpeed() {
+        return getMaxSpeed() > _sessionStartMaxSpeed ? getMaxSpeed() : 0;
+    }
 
-            if (lastGoodLocation == null) {
-                lastGoodLocation = currentLocation;
+    // ids of all the sessions, oldest first
+    public long[] getSessions() {
+        Cursor cursor = db.rawQuery("SELECT _ID FROM " + AdvancedLocationDbHelper.Session.TABLE_NAME + " ORDER BY _ID ASC", null);
+        try {
+            long[] sessions = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                sessions[i++] = cursor.getLong(0);
             }
+            return sessions;
+        } finally {
+            cursor.close();
+        }
+    }
 
-            deltaTime = location.getTime() - lastGoodLocation.getTime();
-            deltaDistance = location.distanceTo(lastGoodLocation);
+    // number of saved locations of a session
+    public int getSessionLocationCount(long sessionId) {
+        flush();
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + AdvancedLocationDbHelper.Location.TABLE_NAME + " WHERE loca_session_id = ?", new String[] {Long.toString(sessionId)});
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
 
-            if (currentLocation.getAccuracy() <= (_minAccuracy / 1.5f)) {
-                float _prevMinAccuracy = _minAccuracy;
+    // deletes a session and its locations
+    public void deleteSession(long sessionId) {
+        flush();
+        String[] args = new String[] {Long.toString(sessionId)};
+        db.beginTransaction();
+        try {
+            db.delete(AdvancedLocationDbHelper.Location.TABLE_NAME, "loca_session_id = ?", args);
+            db.delete(AdvancedLocationDbHelper.Lap.TABLE_NAME, "lap_session_id = ?", args);
+            db.delete(AdvancedLocationDbHelper.Session.TABLE_NAME, "_ID = ?", args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (sessionId == _sessionId) {
+            _endSession();
+        }
+    }
 
-                _minAccuracy = (float) Math.floor(_minAccuracy / 1.5f);
+    private void _endSession() {
+        _sessionId = 0;
+        _sessionStartElapsedTime = 0;
+        _sessionStartDistance = 0;
+        _sessionStartAscent = 0;
+        _sessionStartMaxSpeed = 0;
+    }
 
-                if (_minAccuracy < _minAccuracyIni) {
-                    _minAccuracy = _minAccuracyIni;
+    public int onLocationChanged(Location location, int heartRate, int cadence) {
+        long start = System.nanoTime();
+        int returnValue = _engine.onFix(
+                location.getTime(),
+                location.getLatitude(),
+                location.getLongitude(),
+                location.getAltitude(),
+                location.getAccuracy(),
+                location.getSpeed(),
+                location.hasBearing(),
+                location.getBearing(),
+                heartRate,
+                cadence
+        );
+        nbOnLocationChanged = _engine.getNbFixes();
+        nbGoodLocations = _engine.getNbGoodFixes();
+        _fixLatency.recordSince(start);
+        (returnValue == SAVED ? _nbSavedFixes : returnValue == NORMAL ? _nbNormalFixes : _nbSkippedFixes).incrementAndGet();
+
+        if (returnValue == SAVED && _saveLocation) {
+            start = System.nanoTime();
+            _saveLocation();
+            _saveLatency.recordSince(start);
+        } else if (_trackFileWriter != null) {
+            try {
+                _trackFileWriter.flushIfLate(location.getTime());
+            } catch (IOException e) {
+                Logger("Failed to write track file: " + e);
+            }
+        }
+        if (_checkpoint != null) {
+            try {
+                byte[] checkpoint = _checkpoint.onFix(_engine, location.getTime(), _sessionId);
+                if (checkpoint != null) {
+                    _postCheckpoint(checkpoint);
                 }
+            } catch (IOException e) {
+                Logger("Failed to write checkpoint: " + e);
+            }
+        }
+        return returnValue;
+    }
 
-                if (_minAccuracy != _prevMinAccuracy) {
-                    Logger("Accuracy below _minAccuracy, decrease it to: " + _minAccuracy, LoggerType.TOAST);
+    // Batched locations (FusedLocationProvider LocationResult, GNSS batching), e.g. 60 fixes per wake-up.
+    // The locations are sorted by time, duplicates (same time) and locations not newer than the last
+    // processed one are ignored, and the saved locations are inserted in a single transaction.
+    // heartRate and cadence apply to the whole batch.
+    // Returns SAVED if at least one location has been saved, NORMAL if one has been processed, SKIPPED otherwise.
+    public int onLocationsChanged(List<Location> locations, int heartRate, int cadence) {
+        Location[] sorted = locations.toArray(new Location[locations.size()]);
+        Arrays.sort(sorted, LOCATION_TIME_ORDER);
+
+        // direct inserts (neither track file nor write queue) are grouped in a transaction
+        boolean transaction = _saveLocation && db != null && _trackFileWriter == null && _writeQueue == null;
+        if (transaction) {
+            db.beginTransaction();
+        }
+        int returnValue = SKIPPED;
+        try {
+            long lastTime = _engine.hasLocation() ? _engine.getTime() : Long.MIN_VALUE;
+            for (Location location : sorted) {
+                if (location.getTime() <= lastTime) {
+                    continue;
                 }
+                lastTime = location.getTime();
+                returnValue = Math.max(returnValue, onLocationChanged(location, heartRate, cadence));
+            }
+            if (transaction) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (transaction) {
+                db.endTransaction();
             }
+        }
+        return returnValue;
+    }
 
-            float localAverageSpeed = deltaTime > 0 ? ((float) deltaDistance / ((float) deltaTime / 1000f)) : 0; // in m/s
+    private static final Comparator<Location> LOCATION_TIME_ORDER = new Comparator<Location>() {
+        @Override
+        public int compare(Location l1, Location l2) {
+            // Long.compare() requires API 19
+            return l1.getTime() < l2.getTime() ? -1 : (l1.getTime() == l2.getTime() ? 0 : 1);
+        }
+    };
 
-            //Logger("localAverageSpeed:" + localAverageSpeed + " speed=" + currentLocation.getSpeed());
+    public void onAltitudeChanged(double altitude) {
+        _engine.onAltitudeChanged(altitude);
+    }
 
-            // additional conditions to compute statistics
-            if (
-                isFirstLocation
-                ||
-                (localAverageSpeed > _minSpeedToComputeStats)
-            ) {
-                _elapsedTime += deltaTime;
-                _distance += deltaDistance;
-                _averageSpeed = _elapsedTime > 0 ? ((float) _distance / ((float) _elapsedTime / 1000f)) : 0;
+    // median of window pressure altitudes, each one the average of decimation sensor values (1 to disable)
+    public void setAltitudeFilter(int window, int decimation) {
+        _engine.setAltitudeFilter(window, decimation);
+    }
 
-                if (lastGoodAscentLocation == null) {
-                    lastGoodAscentLocation = currentLocation;
-                    lastGoodAscentLocation2 = currentLocation;
-                    lastGoodAscentRateLocation = currentLocation;
-                }
+    public void setSensorSpeed(float speed, long time) {
+        _engine.setSensorSpeed(speed, time);
+    }
 
-                deltaAltitude = currentLocation.getAltitude() - lastGoodAscentLocation.getAltitude();
-                deltaAltitudeAccuracy = currentLocation.getAltitudeAccuracy() - lastGoodAscentLocation.getAltitudeAccuracy();
+    // Simplification of the exports (streaming Douglas-Peucker, see TrackSimplifier): drops the points
+    // closer than horizontalTolerance (in m) to the simplified track, with an altitude closer than verticalTolerance (in m),
+    // but keeps the points where hr or cad change by hrTolerance or cadTolerance.
+    // horizontalTolerance <= 0 disables it (default)
+    public void setExportSimplification(double horizontalTolerance, double verticalTolerance, int hrTolerance, int cadTolerance) {
+        _simplifyHorizontalTolerance = horizontalTolerance;
+        _simplifyVerticalTolerance = verticalTolerance;
+        _simplifyHrTolerance = hrTolerance;
+        _simplifyCadTolerance = cadTolerance;
+    }
 
-                if (deltaAltitude < 0 && deltaAltitudeAccuracy <= -3) {
-                    // Goal: during a "climb", if altitude decreases and accuracy is better, update lastGoodAscentLocation
-                    // it will avoid use of previously "wrong" (too high) lastGoodAscentLocation with lesser accuracy to compute ascent
-                    Logger("altitude decreases and accuracy is better (it decreases of at least 3m), use this position as lastGoodAscentLocation");
-                    lastGoodAscentLocation = currentLocation;
-                    lastGoodAscentRateLocation = currentLocation;
-                    deltaAltitude = 0;
-                }
+    // number of points dropped by the simplification in the last export
+    public int getNbDroppedPoints() {
+        return _nbDroppedPoints;
+    }
 
-                if (Math.abs(deltaAltitude) < 0.5 && deltaAltitudeAccuracy < 0) {
-                    Logger("flat section, and better accuracy, reset lastGoodAscentLocation", 2);
-                    lastGoodAscentLocation = currentLocation;
-                    deltaAltitude = 0;
-                }
+    private void _saveLocation() {
+        if (_trackFileWriter != null) {
+            try {
+                _trackFileWriter.append(this.getTime(), this.getLatitude(), this.getLongitude(), this.getAltitude(), this.getAltitudeFromGps(), this.getAltitudeFromPressure(), this.getAscent(), this.getAccuracy(), _engine.getHeartRate(), _engine.getCadence());
+            } catch (IOException e) {
+                Logger("Failed to write track file: " + e);
+            }
+            return;
+        }
+        if (_writeQueue != null) {
+            if (!_writeQueue.offer(this.getTime(), this.getLatitude(), this.getLongitude(), this.getAltitude(), this.getAltitudeFromGps(), this.getAltitudeFromPressure(), this.getAscent(), this.getAccuracy(), _engine.getHeartRate(), _engine.getCadence(), _sessionId)) {
+                Logger("write queue full, location dropped");
+            }
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put("loca_time", this.getTime());
+        values.put("loca_lat", this.getLatitude());
+        values.put("loca_lon", this.getLongitude());
+        values.put("loca_altitude", this.getAltitude());
+        values.put("loca_gps_altitude", this.getAltitudeFromGps());
+        values.put("loca_pressure_altitude", this.getAltitudeFromPressure());
+        values.put("loca_ascent", this.getAscent());
+        values.put("loca_accuracy", this.getAccuracy());
+        if (_engine.getHeartRate() > 0) {
+            values.put("loca_hr", _engine.getHeartRate());
+        }
+        if (_engine.getCadence() > 0) {
+            values.put("loca_cad", _engine.getCadence());
+        }
+        if (_sessionId > 0) {
+            values.put("loca_session_id", _sessionId);
+        }
+        //values.put("loca_comment", "");
 
-                if (_testLocationOKForAscent()) {
-                    // compute ascent
-                    // always remember that accuracy is 3x worth on altitude than on latitude/longitude
-                    deltaAscent = deltaAltitude;
-
-                    lastGoodAscentLocation = currentLocation;
-
-                    if (lastGoodAscentLocation2.getAltitudeAccuracy() > lastGoodAscentLocation.getAltitudeAccuracy()) {
-                        Logger("Update lastGoodAscentLocation2 acc:" + lastGoodAscentLocation2.getAltitudeAccuracy() +"->"+ lastGoodAscentLocation.getAltitudeAccuracy(), 2);
-                        lastGoodAscentLocation2 = currentLocation;
-                    }
-
-                    if (lastGoodAscentLocation.getTime() - lastGoodAscentLocation2.getTime() > 60 * 10 * 1000) {
-                        Logger("lastGoodAscentLocation2 too old", 2);
-                        lastGoodAscentLocation2 = currentLocation;
-                    }
-
-                    if (deltaAscent > 0) {
-                        _ascent += deltaAscent;
-                    } else {
-                        lastGoodAscentLocation2 = currentLocation;
-                        Logger("descent, reset lastGoodAscentLocation2", 2);
-                    }
-
-                    // try to compute ascentRate if enough time has elapsed
-                    long tmpDeltaTime = currentLocation.getTime() - lastGoodAscentRateLocation.getTime();
-
-                    if (tmpDeltaTime < _minDeltaTimeForAscentRate) {
-                        // not enough time since lastGoodAscentRateLocation to compute ascentRate and slope
-                        Logger("tmpDeltaTime:" + tmpDeltaTime +"<"+ _minDeltaTimeForAscentRate + " ascentRate skip");
-                    } else {
-                        double tmpDeltaAscent = Math.floor(currentLocation.getAltitude() - lastGoodAscentRateLocation.getAltitude());
-                        float tmpDeltaDistance = _distance - lastGoodAscentRateLocation.distance;
-
-                        _ascentRate = tmpDeltaTime > 0 ? ((float) tmpDeltaAscent / (tmpDeltaTime) * 1000) : 0; // m/s
-
-                        if (tmpDeltaDistance != 0) {
-                            _slope = tmpDeltaDistance > 0 ? ((float) tmpDeltaAscent / tmpDeltaDistance) : 0; // in %
-                        } else {
-                            _slope = 0;
-                        }
-
-                        Logger("alt:" + lastGoodAscentRateLocation.getAltitude() + "->" + currentLocation.getAltitude() + ":" + tmpDeltaAscent + " _ascentRate:" + _ascentRate + " _slope:" + _slope);
-
-                        lastGoodAscentRateLocation = currentLocation;
-                    }
-                } // if (_testLocationOKForAscent()) {
-
-                if (currentLocation.getAccuracy() < MAX_ACCURACY_FOR_NB_ASCENT) {
-                    if (_nbAscentAltitudeLocalMin == 0 && _nbAscentAltitudeLocalMax == 0) {
-                        // first time only
-                        _nbAscentAltitudeLocalMin = _nbAscentAltitudeLocalMax = currentLocation.getAltitude();
-                        _nbAscentAscentInProgress = _nbAscentDescentInProgress = false;
-                    }
-                    _nbAscentAltitudeLocalMin = Math.min(currentLocation.getAltitude(), _nbAscentAltitudeLocalMin);
-                    _nbAscentAltitudeLocalMax = Math.max(currentLocation.getAltitude(), _nbAscentAltitudeLocalMax);
-
-                    if (!_nbAscentDescentInProgress && currentLocation.getAltitude() <= _nbAscentAltitudeLocalMax - NB_ASCENT_DELTA_ALTITUDE) {
-                        Logger("nbAscent: start new descent", 1);
-                        _nbAscentDescentInProgress = true;
-                        _nbAscentAscentInProgress = false;
-                        _nbAscentAltitudeLocalMin = currentLocation.getAltitude();
-                    }
-                    if (!_nbAscentAscentInProgress && currentLocation.getAltitude() >= _nbAscentAltitudeLocalMin + NB_ASCENT_DELTA_ALTITUDE) {
-                        Logger("nbAscent: start new ascent", 1);
-                        _nbAscentAscentInProgress = true;
-                        _nbAscentDescentInProgress = false;
-                        _nbAscentAltitudeLocalMax = currentLocation.getAltitude();
-                        _nbAscent++;
-                    }
-
-                    Logger("nbAscent: " + _nbAscentAltitudeLocalMin +"<"+_nbAscentAltitudeLocalMax + " " + currentLocation.getAltitude() + " " + (_nbAscentAscentInProgress ? "ASC" : "NOASC") + " " + (_nbAscentDescentInProgress ? "DSC" : "NODSC"), 2);
-                }
+        long newRowId = db.insert(
+                AdvancedLocationDbHelper.Location.TABLE_NAME,
+                null,
+                values);
+    };
 
-                nbGoodLocations++;
+    public String getGPX(boolean extended) {
+        return getGPX(extended, 0);
+    }
 
-                if (_testFlatSection(lastGoodAscentRateLocation, currentLocation)) {
-                    Logger("slope below 1% on the last 500m, update lastGoodAscentRateLocation");
-                    _slope = 0;
-                    _ascentRate = 0;
-                    lastGoodAscentRateLocation = currentLocation;
-                }
+    // sessionId 0: all the saved locations
+    public String getGPX(boolean extended, long sessionId) {
+        StringWriter gpx = new StringWriter();
+        try {
+            writeGPX(gpx, extended, sessionId);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+        }
+        //Logger(gpx.toString());
+        return gpx.toString();
+    }
 
-                long tmpDeltaTime = currentLocation.getTime() - lastGoodAscentRateLocation.getTime();
-                if (tmpDeltaTime > _maxDeltaTimeForAscentRate && currentLocation.getAltitudeAccuracy() < 10) {
-                    Logger("lastGoodAscentRateLocation too old ("+tmpDeltaTime+"s) and current accuracy ok ("+currentLocation.getAltitudeAccuracy()+"m), update lastGoodAscentRateLocation");
-                    _slope = 0;
-                    _ascentRate = 0;
-                    lastGoodAscentRateLocation = currentLocation;
-                }
+    public void writeGPX(OutputStream out, boolean extended) throws IOException {
+        writeGPX(out, extended, 0);
+    }
+
+    public void writeGPX(OutputStream out, boolean extended, long sessionId) throws IOException {
+        writeGPX(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")), extended, sessionId);
+    }
 
-                Logger(currentLocation.getTime()/1000+ " deltaDistance:" + deltaDistance + " deltaTime:" + deltaTime + " deltaAscent:" + deltaAscent + " _ascent:" + _ascent + " _distance: " + _distance + " _averageSpeed: " + _averageSpeed + " _elapsedTime:" + _elapsedTime);
+    public void writeGPX(Writer out, boolean extended) throws IOException {
+        writeGPX(out, extended, 0);
+    }
 
-                if (_testLocationOKForSave()) {
-                    Logger("Location OK to be saved", 2);
-                    returnValue = SAVED;
-                    lastSavedLocation = currentLocation;
-                    if (_saveLocation) {
-                        _saveLocation();
-                    }
+    // stream the gpx to out, one point at a time: memory usage doesn't depend on the track length
+    // sessionId 0: all the saved locations
+    public void writeGPX(Writer out, boolean extended, long sessionId) throws IOException {
+        _checkSession(sessionId);
+        long start = System.nanoTime();
+        CountingWriter counting = new CountingWriter(out);
+        flush();
+        GpxWriter gpx = new GpxWriter(counting, extended);
+        gpx.writeHeader(_getGpxCreator());
+        TrackSimplifier simplifier = _newSimplifier(gpx);
+        TrackPointSink sink = simplifier != null ? simplifier : gpx;
+
+        if (!_readTrackFile(Long.MIN_VALUE, Long.MAX_VALUE, sink)) {
+            Cursor cursor = _queryLocations(sessionId);
+            try {
+                while (cursor.moveToNext()) {
+                    _writePoint(sink, cursor);
                 }
+            } finally {
+                cursor.close();
+            }
+        }
+        _finishSimplifier(simplifier);
+        gpx.writeFooter();
+        _recordExport(start, counting);
+    }
+    public String getRunkeeperJson(String type) {
+        return getRunkeeperJson(type, 0);
+    }
 
-            } // additional conditions to compute statistics
+    // sessionId 0: all the saved locations
+    public String getRunkeeperJson(String type, long sessionId) {
+        StringWriter json = new StringWriter();
+        try {
+            writeRunkeeperJson(json, type, sessionId);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+        }
+        //Logger(json.toString());
+        return json.toString();
+    }
 
-            lastGoodLocation = currentLocation;
+    public void writeRunkeeperJson(OutputStream out, String type) throws IOException {
+        writeRunkeeperJson(out, type, 0);
+    }
 
-        } // if (currentLocation.getAccuracy() <= _minAccuracy) {
+    public void writeRunkeeperJson(OutputStream out, String type, long sessionId) throws IOException {
+        writeRunkeeperJson(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")), type, sessionId);
+    }
 
-        lastLocation = currentLocation;
+    public void writeRunkeeperJson(Writer out, String type) throws IOException {
+        writeRunkeeperJson(out, type, 0);
+    }
 
-        return returnValue;
+    // stream the json to out in a single pass over the locations
+    // sessionId 0: all the saved locations
+    public void writeRunkeeperJson(Writer out, String type, long sessionId) throws IOException {
+        _checkSession(sessionId);
+        long start = System.nanoTime();
+        CountingWriter counting = new CountingWriter(out);
+        flush();
+        String notes = "Track generated by JayPS, http://www.pebblebike.com";
+        RunkeeperJsonWriter json = new RunkeeperJsonWriter(counting);
+
+        // duration doesn't seem to be taken into account
+        json.writeHeader(type, notes, _getElapsedTime(sessionId) / 1000);
+        TrackSimplifier simplifier = _newSimplifier(json);
+        TrackPointSink sink = simplifier != null ? simplifier : json;
+
+        if (!_readTrackFile(Long.MIN_VALUE, Long.MAX_VALUE, sink)) {
+            Cursor cursor = _queryLocations(sessionId);
+            try {
+                while (cursor.moveToNext()) {
+                    _writePoint(sink, cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        _finishSimplifier(simplifier);
+        json.writeFooter();
+        _recordExport(start, counting);
+    }
+    // Gzip exports, streamed through the deflater: the uncompressed document is never held in memory.
+    // level from Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9), or Deflater.DEFAULT_COMPRESSION
+    // bufferSize in bytes, e.g. GzipLevelOutputStream.DEFAULT_BUFFER_SIZE
+    // sessionId 0: all the saved locations
+
+    public void writeGPXGzip(File file, boolean extended, long sessionId, int level, int bufferSize) throws IOException {
+        _checkSession(sessionId);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            writeGPXGzip(out, extended, sessionId, level, bufferSize);
+        } finally {
+            out.close();
+        }
     }
 
-    // Array of altitude, to compute median of _ALTITUDES2_NB values
-    private static int _ALTITUDES2_NB = 5;
-    private double[] _altitudes2 = new double[_ALTITUDES2_NB];
-    private int _altitudes2_i = 0;
+    // out is not closed
+    public void writeGPXGzip(OutputStream out, boolean extended, long sessionId, int level, int bufferSize) throws IOException {
+        GzipLevelOutputStream gzip = new GzipLevelOutputStream(out, level, bufferSize);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"), bufferSize);
+        // the native deflater is freed even if the export fails
+        try {
+            writeGPX(writer, extended, sessionId);
+            writer.flush();
+        } finally {
+            gzip.end();
+        }
+    }
 
-    public void onAltitudeChanged(double altitude) {
-        Logger("onAltitudeChanged: " + altitude + " altitude2CalibrationTime=" + altitude2CalibrationTime + " altitude2CalibrationAccuracy=" + altitude2CalibrationAccuracy + " altitude2CalibrationDelta=" + altitude2CalibrationDelta, 2);
-        _altitudes2[_altitudes2_i % _ALTITUDES2_NB] = altitude;
-        _altitudes2_i++;
-        if (_altitudes2_i > _ALTITUDES2_NB) {
-            double[] _altitudes2b = Arrays.copyOf(_altitudes2, _ALTITUDES2_NB);;
-            Arrays.sort(_altitudes2b);
-            this.hasAltitude2 = true;
-            this.altitude2 = _altitudes2b[(int) Math.floor(_ALTITUDES2_NB/2)]; // median value
-            Logger("altitude=" + altitude + " this.altitude2=" + this.altitude2, 2);
+    public void writeRunkeeperJsonGzip(File file, String type, long sessionId, int level, int bufferSize) throws IOException {
+        _checkSession(sessionId);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            writeRunkeeperJsonGzip(out, type, sessionId, level, bufferSize);
+        } finally {
+            out.close();
         }
     }
 
-    public void setSensorSpeed(float speed, long time) {
-        this._sensorSpeed = speed;
-        this._sensorSpeedTime = time;
-        Logger("setSensorSpeed:" + _sensorSpeedTime + " speed:" + _sensorSpeed);
+    // out is not closed
+    public void writeRunkeeperJsonGzip(OutputStream out, String type, long sessionId, int level, int bufferSize) throws IOException {
+        GzipLevelOutputStream gzip = new GzipLevelOutputStream(out, level, bufferSize);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"), bufferSize);
+        // the native deflater is freed even if the export fails
+        try {
+            writeRunkeeperJson(writer, type, sessionId);
+            writer.flush();
+        } finally {
+            gzip.end();
+        }
     }
 
-    private boolean _testFlatSection(LocationWithExtraFields l1, LocationWithExtraFields l2) {
-        float deltaDistance = l2.distance - l1.distance;
-        double deltaAltitude = l2.getAltitude() - l1.getAltitude();
+    // FIT activity (see FitWriter): ~17 bytes per location instead of ~150 in GPX, streamed to out
+    // with the totals of the session (elapsed time, distance, ascent), e.g. for Garmin Connect or Strava.
+    // sport: FitWriter.SPORT_CYCLING...
+    // sessionId 0: all the saved locations
+
+    public void writeFit(File file, int sport, long sessionId) throws IOException {
+        _checkSession(sessionId);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            writeFit(out, sport, sessionId);
+        } finally {
+            out.close();
+        }
+    }
 
-        if ((deltaDistance > 500) && (100 * Math.abs(deltaAltitude) < deltaDistance)) {
-            // distance greater than 1000m and slope below 1%: this is a flat portion
+    // out is not closed
+    public void writeFit(OutputStream out, int sport, long sessionId) throws IOException {
+        _checkSession(sessionId);
+        long start = System.nanoTime();
+        flush();
+        FitWriter fit = new FitWriter(new BufferedOutputStream(out));
+        if (_trackFile != null) {
+            _trackFileWriter.flush();
+            TrackFileReader reader = new TrackFileReader(_trackFile);
+            fit.writeHeader(reader.getNbPoints(), System.currentTimeMillis());
+            reader.read(fit);
+        } else {
+            Cursor cursor = _queryLocations(sessionId);
+            try {
+                // getCount() runs the query to the end, so the number of points matches the rows read
+                fit.writeHeader(cursor.getCount(), System.currentTimeMillis());
+                while (cursor.moveToNext()) {
+                    _writePoint(fit, cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
 
-            if (l2.getAltitudeAccuracy() > 5) {
-                // if l2.getAltitudeAccuracy() is bad, avoid positive result (wait a bit more for better accuracy?)
-                return false;
+        if (sessionId <= 0) {
+            fit.writeFooter(getElapsedTime(), getDistance(), getAscent(), getMaxSpeed(), sport);
+        } else if (sessionId == _sessionId) {
+            fit.writeFooter(getSessionElapsedTime(), getSessionDistance(), getSessionAscent(), getSessionMaxSpeed(), sport);
+        } else {
+            // stats stored by stopSession(), no max speed
+            Cursor cursor = db.rawQuery("SELECT sess_elapsed_time, sess_distance, sess_ascent FROM " + AdvancedLocationDbHelper.Session.TABLE_NAME + " WHERE _ID = ?", new String[] {Long.toString(sessionId)});
+            try {
+                if (cursor.moveToFirst()) {
+                    fit.writeFooter(cursor.getLong(0), cursor.getFloat(1), cursor.getDouble(2), 0, sport);
+                } else {
+                    fit.writeFooter(0, 0, 0, 0, sport);
+                }
+            } finally {
+                cursor.close();
             }
-            // Note: if l1.getAltitudeAccuracy() was bad, don't avoid positive result (it won't change if we wait)
+        }
+        _exportDuration.recordSince(start);
+        _exportBytes.addAndGet(fit.getNbBytes());
+    }
 
-            return true;
+    // sessions only apply to the database: the track file can't be filtered by session
+    private void _checkSession(long sessionId) {
+        if (sessionId > 0 && _trackFile != null) {
+            throw new IllegalArgumentException("Sessions don't apply to the track file: " + sessionId);
         }
-        return false;
     }
 
-    private boolean _testLocationOKForAscent() {
-        if (lastGoodAscentLocation == null) {
+    // reads the locations with fromTime <= time < toTime from the track file
+    // returns false if there's no track file (locations are in the database)
+    private boolean _readTrackFile(long fromTime, long toTime, TrackPointSink sink) throws IOException {
+        if (_trackFile == null) {
             return false;
         }
+        _trackFileWriter.flush();
+        new TrackFileReader(_trackFile).read(fromTime, toTime, sink);
+        return true;
+    }
 
-        float worstAccuracy = Math.max(lastGoodAscentLocation.getAltitudeAccuracy(), currentLocation.getAltitudeAccuracy());
-        double deltaAltitude = currentLocation.getAltitude() - lastGoodAscentLocation.getAltitude();
-        float deltaAccuracy = currentLocation.getAltitudeAccuracy() - lastGoodAscentLocation.getAltitudeAccuracy();
-        boolean result = false;
-
-        if ((Math.abs(deltaAltitude) >= _minAltitudeChangeLevel1) && (worstAccuracy <= _minAccuracyForAltitudeChangeLevel1)) {
-            Logger("abs(deltaAltitude):" + Math.abs(deltaAltitude) + ">=" + _minAltitudeChangeLevel1 + " & worstAccuracy:" + worstAccuracy + "<=" + _minAccuracyForAltitudeChangeLevel1);
-            result = true;
-        } else if ((Math.abs(deltaAltitude) >= _minAltitudeChangeLevel2) && (worstAccuracy <= _minAccuracyForAltitudeChangeLevel2)) {
-            Logger("abs(deltaAltitude):" + Math.abs(deltaAltitude) + ">=" + _minAltitudeChangeLevel2 + " & worstAccuracy:" + worstAccuracy + "<=" + _minAccuracyForAltitudeChangeLevel2);
-            result = true;
-        } else if ((Math.abs(deltaAltitude) >= _minAltitudeChangeLevel3) && (worstAccuracy <= _minAccuracyForAltitudeChangeLevel3)) {
-            Logger("abs(deltaAltitude):" + Math.abs(deltaAltitude) + ">=" + _minAltitudeChangeLevel3 + " & worstAccuracy:" + worstAccuracy + "<=" + _minAccuracyForAltitudeChangeLevel3);
-            result = true;
-        } else if ((Math.abs(deltaAltitude) >= _minAltitudeChangeLevel4) && (worstAccuracy <= _minAccuracyForAltitudeChangeLevel4)) {
-            Logger("abs(deltaAltitude):" + Math.abs(deltaAltitude) + ">=" + _minAltitudeChangeLevel4 + " & worstAccuracy:" + worstAccuracy + "<=" + _minAccuracyForAltitudeChangeLevel4);
-            result = true;
-        } else if (Math.abs(deltaAltitude) >= 4 * worstAccuracy) {
-            Logger("abs(deltaAltitude):" + Math.abs(deltaAltitude) + ">=4*worstAccuracy: 4*" + worstAccuracy);
-            result = true;
-        } else if (lastGoodAscentLocation2 != null) {
-            float worstAccuracy2 = Math.max(lastGoodAscentLocation2.getAltitudeAccuracy(), currentLocation.getAltitudeAccuracy());
-            double deltaAltitude2 = currentLocation.getAltitude() - lastGoodAscentLocation2.getAltitude();
-            if (Math.abs(deltaAltitude2) >= 4 * worstAccuracy2) {
-                Logger("abs(deltaAltitude2):" + Math.abs(deltaAltitude2) + ">=4*worstAccuracy2: 4*" + worstAccuracy2);
-                result = true;
-            }
-        }
-
-        if (result) {
-            Logger("alt:" + lastGoodAscentLocation.getAltitude() + "->" + currentLocation.getAltitude() + ":" + deltaAltitude + " - acc: " + worstAccuracy);
-            return true;
+    // Time-range exports: locations with fromTime <= loca_time < toTime (in ms), in time order,
+    // read pageSize locations at a time with keyset pagination on (loca_time, _ID):
+    // each page is a range scan of the loca_time index, memory usage doesn't depend on the table size.
+    // e.g. one hour at a time for resumable uploads, or [now - N minutes, Long.MAX_VALUE) for live tracking
+
+    public String getGPX(boolean extended, long fromTime, long toTime) {
+        StringWriter gpx = new StringWriter();
+        try {
+            writeGPX(gpx, extended, fromTime, toTime, DEFAULT_PAGE_SIZE);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
         }
+        return gpx.toString();
+    }
 
-        return false;
+    public void writeGPX(Writer out, boolean extended, long fromTime, long toTime, int pageSize) throws IOException {
+        long start = System.nanoTime();
+        CountingWriter counting = new CountingWriter(out);
+        flush();
+        GpxWriter gpx = new GpxWriter(counting, extended);
+        gpx.writeHeader(_getGpxCreator());
+        TrackSimplifier simplifier = _newSimplifier(gpx);
+        final TrackPointSink sink = simplifier != null ? simplifier : gpx;
+        if (!_readTrackFile(fromTime, toTime, sink)) {
+            _forEachLocation(fromTime, toTime, pageSize, new LocationVisitor() {
+                @Override
+                public void onLocation(Cursor cursor) throws IOException {
+                    _writePoint(sink, cursor);
+                }
+            });
+        }
+        _finishSimplifier(simplifier);
+        gpx.writeFooter();
+        _recordExport(start, counting);
     }
 
-    private boolean _testLocationOKForSave() {
-        if (
-        (lastSavedLocation == null) // 1st saved location
-        ||
-        (currentLocation.getTime() - lastSavedLocation.getTime() >= _minDeltaTimeToSaveLocation)
-        ||
-        (currentLocation.distanceTo(lastSavedLocation) >= _minDeltaDistanceToSaveLocation)
-        ) {
-            return true;
+    public String getRunkeeperJson(String type, long fromTime, long toTime) {
+        StringWriter json = new StringWriter();
+        try {
+            writeRunkeeperJson(json, type, fromTime, toTime, DEFAULT_PAGE_SIZE);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
         }
+        return json.toString();
+    }
 
-        return false;
+    public void writeRunkeeperJson(Writer out, String type, long fromTime, long toTime, int pageSize) throws IOException {
+        long start = System.nanoTime();
+        CountingWriter counting = new CountingWriter(out);
+        flush();
+        String notes = "Track generated by JayPS, http://www.pebblebike.com";
+        RunkeeperJsonWriter json = new RunkeeperJsonWriter(counting);
+        json.writeHeader(type, notes, _getDuration(fromTime, toTime) / 1000);
+        TrackSimplifier simplifier = _newSimplifier(json);
+        final TrackPointSink sink = simplifier != null ? simplifier : json;
+        if (!_readTrackFile(fromTime, toTime, sink)) {
+            _forEachLocation(fromTime, toTime, pageSize, new LocationVisitor() {
+                @Override
+                public void onLocation(Cursor cursor) throws IOException {
+                    _writePoint(sink, cursor);
+                }
+            });
+        }
+        _finishSimplifier(simplifier);
+        json.writeFooter();
+        _recordExport(start, counting);
     }
 
-    private void _saveLocation() {
-        ContentValues values = new ContentValues();
-        values.put("loca_time", this.getTime());
-        values.put("loca_lat", this.getLatitude());
-        values.put("loca_lon", this.getLongitude());
-        values.put("loca_altitude", this.getAltitude());
-        values.put("loca_gps_altitude", this.getAltitudeFromGps());
-        values.put("loca_pressure_altitude", this.getAltitudeFromPressure());
-        values.put("loca_ascent", this.getAscent());
-        values.put("loca_accuracy", this.getAccuracy());
-        if (_hearRate > 0) {
-            values.put("loca_hr", _hearRate);
+    private void _recordExport(long start, CountingWriter out) {
+        _exportDuration.recordSince(start);
+        _exportChars.addAndGet(out.getCount());
+    }
+
+    private interface LocationVisitor {
+        // cursor on a row of SQL_SELECT_LOCATIONS
+        void onLocation(Cursor cursor) throws IOException;
+    }
+
+    private void _forEachLocation(long fromTime, long toTime, int pageSize, LocationVisitor visitor) throws IOException {
+        pageSize = Math.max(1, pageSize);
+        // position after the last visited location; _ID > -1 includes all the locations at fromTime
+        long lastTime = fromTime;
+        long lastId = -1;
+        String limit = Integer.toString(pageSize);
+        String sql = SQL_SELECT_LOCATIONS
+                + " WHERE loca_time >= ? AND loca_time < ? AND (loca_time > ? OR _ID > ?)"
+                + " ORDER BY loca_time ASC, _ID ASC LIMIT ?";
+        while (true) {
+            String time = Long.toString(lastTime);
+            Cursor cursor = db.rawQuery(sql, new String[] {time, Long.toString(toTime), time, Long.toString(lastId), limit});
+            int n = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    visitor.onLocation(cursor);
+                    lastId = cursor.getLong(0);
+                    lastTime = cursor.getLong(1);
+                    n++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (n < pageSize) {
+                return;
+            }
         }
-        if (_cadence > 0) {
-            values.put("loca_cad", _cadence);
+    }
+
+    // time between the first and the last location in [fromTime, toTime), in ms
+    private long _getDuration(long fromTime, long toTime) throws IOException {
+        if (_trackFile != null) {
+            TimeRange range = new TimeRange();
+            _readTrackFile(fromTime, toTime, range);
+            return range._last - range._first;
         }
-        //values.put("loca_comment", "");
+        return _getLocationTime(fromTime, toTime, "DESC") - _getLocationTime(fromTime, toTime, "ASC");
+    }
 
-        long newRowId = db.insert(
-                AdvancedLocationDbHelper.Location.TABLE_NAME,
-                null,
-                values);
-    };
+    // times of the first and last points read, 0 if none
+    private static class TimeRange implements TrackPointSink {
+        private long _first = 0;
+        private long _last = 0;
+        private boolean _empty = true;
+
+        @Override
+        public void writePoint(long time, double lat, double lon, double ele, float accuracy, double ascent, double eleGps, double elePressure, int hr, int cad) {
+            if (_empty) {
+                _first = time;
+                _empty = false;
+            }
+            _last = time;
+        }
+    }
 
-    public String getGPX(boolean extended) {
-        StringBuilder gpx = new StringBuilder();
+    // time of the first (order ASC) or last (DESC) location in [fromTime, toTime), 0 if none
+    private long _getLocationTime(long fromTime, long toTime, String order) {
+        Cursor cursor = db.rawQuery("SELECT loca_time FROM " + AdvancedLocationDbHelper.Location.TABLE_NAME
+                + " WHERE loca_time >= ? AND loca_time < ? ORDER BY loca_time " + order + " LIMIT 1",
+                new String[] {Long.toString(fromTime), Long.toString(toTime)});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String _getGpxCreator() {
         String creator = "JayPS";
         if (this._context != null) {
             SensorManager mSensorManager = (SensorManager) _context.getSystemService(Context.SENSOR_SERVICE);
@@ -775,141 +1296,118 @@ public class AdvancedLocation {
                 creator += " with Barometer";
             }
         }
-        gpx.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
-                + "<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" xmlns:gpxtpx=\"http://www.garmin.com/xmlschemas/TrackPointExtension/v1\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" creator=\"" + creator + "\" version=\"1.1\" xsi:schemaLocation=\"http://www.topografix.com/GPX/1/1 http://www.topografix.com/GPX/1/1/gpx.xsd  http://www.garmin.com/xmlschemas/TrackPointExtensionv1.xsd\" xmlns:pb10=\"http://www.pebblebike.com/GPX/1/0/\">\n");
-
-
-        String selectQuery = "SELECT _ID, loca_time, loca_lat, loca_lon, loca_altitude, loca_accuracy, loca_comment, loca_ascent, loca_gps_altitude, loca_pressure_altitude, loca_hr, loca_cad FROM " + AdvancedLocationDbHelper.Location.TABLE_NAME + " ORDER BY _ID ASC";
-        Cursor cursor = db.rawQuery(selectQuery, null);
-
-        long itemId = -1;
-        int trackNumber = 1;
-        if (cursor.moveToFirst()) {
-            gpx.append("<trk>\n"
-                    + "<name>Track #1</name>\n"
-                    + "<trkseg>\n");
-
-            long prevTime = -1;
-
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-            do {
-                /*itemId = cursor.getLong(
-                        cursor.getColumnIndexOrThrow(AdvancedLocationDbHelper.Location._ID)
-                );*/
-                String time = "";
+        return creator;
+    }
 
+    // cursor on a row of SQL_SELECT_LOCATIONS
+    private static void _writePoint(TrackPointSink sink, Cursor cursor) throws IOException {
+        sink.writePoint(
+                cursor.getLong(1),
+                cursor.getDouble(2),
+                cursor.getDouble(3),
+                cursor.getDouble(4),
+                cursor.getFloat(5),
+                cursor.getDouble(7),
+                cursor.getDouble(8),
+                cursor.getDouble(9),
+                cursor.isNull(10) ? 0 : cursor.getInt(10),
+                cursor.isNull(11) ? 0 : cursor.getInt(11)
+        );
+    }
 
-                if (prevTime > 0 && Long.parseLong(cursor.getString(1)) - prevTime > 12 * 3600 * 1000) {
-                    trackNumber++;
-                    // more than 12 hours since last point? create new track
-                    gpx.append("</trkseg>\n</trk>\n<trk>\n<name>Track #" + trackNumber + "</name>\n<trkseg>\n");
+    // null if the simplification is disabled
+    private TrackSimplifier _newSimplifier(TrackPointSink out) {
+        if (_simplifyHorizontalTolerance <= 0) {
+            _nbDroppedPoints = 0;
+            return null;
+        }
+        return new TrackSimplifier(out, _simplifyHorizontalTolerance, _simplifyVerticalTolerance, _simplifyHrTolerance, _simplifyCadTolerance);
+    }
 
-                } else if (prevTime > 0 && Long.parseLong(cursor.getString(1)) - prevTime > 2 * 3600 * 1000) {
-                    // more than 2 hours since last point? create new segment
-                    gpx.append("</trkseg>\n<trkseg>\n");
-                }
+    private void _finishSimplifier(TrackSimplifier simplifier) throws IOException {
+        if (simplifier != null) {
+            simplifier.finish();
+            _nbDroppedPoints = simplifier.getNbDropped();
+            Logger("export: " + simplifier.getNbWritten() + "/" + simplifier.getNbPoints() + " points, " + _nbDroppedPoints + " dropped by the simplification");
+        }
+    }
 
-                Date netDate = (new Date(Long.parseLong(cursor.getString(1))));
-                time = sdf.format(netDate);
-                time = time.substring(0, time.length() - 2) + ':' + time.substring(time.length() - 2);
-
-                gpx.append("<trkpt lat=\"" + cursor.getString(2) + "\" lon=\"" + cursor.getString(3) + "\">\n"
-                        + "  <ele>" + cursor.getString(4) + "</ele>\n"
-                        + "  <time>" + time + "</time>\n");
-                if (extended || !cursor.isNull(10) || !cursor.isNull(11)) {
-                    gpx.append("  <extensions>\n");
-                    if (extended) {
-                        gpx.append("    <pb10:accuracy>" + cursor.getString(5) + "</pb10:accuracy>\n"
-                                 + "    <pb10:ascent>" + cursor.getString(7) + "</pb10:ascent>\n"
-                                 + "    <pb10:ele_gps>" + cursor.getString(8) + "</pb10:ele_gps>\n"
-                                 + "    <pb10:ele_pressure>" + cursor.getString(9) + "</pb10:ele_pressure>\n");
-                    }
-                    if (!cursor.isNull(10) || !cursor.isNull(11)) {
-                        gpx.append("    <gpxtpx:TrackPointExtension>\n");
-                        if (!cursor.isNull(10)) {
-                            gpx.append("    <gpxtpx:hr>" + cursor.getString(10) + "</gpxtpx:hr>\n");
-                        }
-                        if (!cursor.isNull(11)) {
-                            gpx.append("    <gpxtpx:cad>" + cursor.getString(11) + "</gpxtpx:cad>\n");
-                        }
-                        gpx.append("    </gpxtpx:TrackPointExtension>\n");
-                    }
-                    gpx.append("  </extensions>\n");
+    // deletes all the saved locations and laps, and the sessions except the current one
+    public void resetGPX() {
+        if (_writeQueue != null) {
+            _writeQueue.clear();
+        }
+        if (_trackFile != null) {
+            File file = _trackFile;
+            try {
+                setTrackFile(null);
+                if (!file.delete()) {
+                    Logger("Failed to delete track file " + file);
                 }
-                gpx.append("</trkpt>\n");
-                prevTime = Long.parseLong(cursor.getString(1));
-            } while (cursor.moveToNext());
-            gpx.append("</trkseg>\n"
-                    + "</trk>\n");
-
+                setTrackFile(file, _trackFileMaxLatency);
+            } catch (IOException e) {
+                Logger("Failed to reset track file: " + e);
+            }
         }
-        gpx.append("</gpx>\n");
-        //Logger(gpx.toString());
-        return gpx.toString();
+        String sql = "DELETE FROM " + AdvancedLocationDbHelper.Location.TABLE_NAME;
+        db.execSQL(sql);
+        db.delete(AdvancedLocationDbHelper.Session.TABLE_NAME, "_ID != ?", new String[] {Long.toString(_sessionId)});
+        db.delete(AdvancedLocationDbHelper.Lap.TABLE_NAME, null, null);
     }
-    public String getRunkeeperJson(String type) {
-        StringBuilder json = new StringBuilder();
-        StringBuilder hr = new StringBuilder();
-        String notes = "Track generated by JayPS, http://www.pebblebike.com";
-
-        // duration doesn't seem to be taken into account
-        json.append("{\"type\": \"" + type + "\", \"notes\": \"" + notes + "\", \"duration\": " + getElapsedTime()/1000 + ",");
 
-        String selectQuery = "SELECT _ID, loca_time, loca_lat, loca_lon, loca_altitude, loca_accuracy, loca_comment, loca_ascent, loca_gps_altitude, loca_pressure_altitude, loca_hr, loca_cad FROM " + AdvancedLocationDbHelper.Location.TABLE_NAME + " ORDER BY _ID ASC";
-        //selectQuery += " LIMIT 10";
-        Cursor cursor = db.rawQuery(selectQuery, null);
-
-        if (cursor.moveToFirst()) {
-            long firstTime = -1;
+    private Cursor _queryLocations(long sessionId) {
+        if (sessionId > 0) {
+            return db.rawQuery(SQL_SELECT_LOCATIONS + " WHERE loca_session_id = ? ORDER BY _ID ASC", new String[] {Long.toString(sessionId)});
+        }
+        return db.rawQuery(SQL_SELECT_LOCATIONS + " ORDER BY _ID ASC", null);
+    }
 
-            String buffer = "";
-            do {
-                if (buffer != "") {
-                    buffer += ", \"type\": \"gps\"}";
-                    json.append("," + buffer);
-                }
-                long deltaTime = Long.parseLong(cursor.getString(1)) - firstTime;
-                buffer = "{\"timestamp\": " + (deltaTime/1000) + ",\"altitude\": " + cursor.getString(4) + ",\"longitude\":" + cursor.getString(3) + ",\"latitude\":" + cursor.getString(2);
-                if (firstTime < 0) {
-                    firstTime = Long.parseLong(cursor.getString(1));
-                    String time = "";
-
-                    Date netDate = (new Date(Long.parseLong(cursor.getString(1))));
-                    SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss", Locale.ENGLISH);
-                    time = sdf.format(netDate);
-                    json.append("\"start_time\": \"" + time + "\", \"path\": [");
-                    buffer += ", \"type\": \"start\"}";
-                    json.append(buffer);
-                    buffer = "";
-                }
-                if (!cursor.isNull(10)) {
-                    if (!hr.toString().isEmpty()) {
-                        hr.append(",");
-                    }
-                    hr.append("{\"timestamp\":" + (deltaTime / 1000) + ", \"heart_rate\":" + cursor.getString(10) + "}");
-                }
-            } while (cursor.moveToNext());
-            if (buffer != "") {
-                buffer += ", \"type\": \"end\"}";
-                json.append("," + buffer);
-            }
-            json.append("]");
+    // elapsed time of the current track or session, or stored with a stopped session, in ms
+    private long _getElapsedTime(long sessionId) {
+        if (sessionId <= 0) {
+            return getElapsedTime();
         }
-        if (!hr.toString().isEmpty()) {
-            json.append(", \"heart_rate\": [" + hr.toString() + "]");
+        if (sessionId == _sessionId) {
+            return getSessionElapsedTime();
+        }
+        Cursor cursor = db.rawQuery("SELECT sess_elapsed_time FROM " + AdvancedLocationDbHelper.Session.TABLE_NAME + " WHERE _ID = ?", new String[] {Long.toString(sessionId)});
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
         }
-        json.append("}");
-        //Logger(json.toString());
-        return json.toString();
     }
-    public void resetGPX() {
-        String sql = "DELETE FROM " + AdvancedLocationDbHelper.Location.TABLE_NAME;
-        db.execSQL(sql);
+
+    // level of the events recorded in the trace buffer, 0 to disable it
+    public void setTraceLevel(int level) {
+        _engine.setTraceLevel(level);
+    }
+
+    // recorded events, oldest first, for diagnostics
+    public String getTrace() {
+        return _engine.getTrace();
+    }
+
+    public void dumpTrace(Appendable out) throws IOException {
+        _engine.dumpTrace(out);
     }
 
     // log functions
     private enum LoggerType { LOG, TOAST };
 
+    // engine messages, sent to logcat (and toasts) according to debugLevel and debugLevelToast
+    private final TrackStatsEngine.LogListener _logListener = new TrackStatsEngine.LogListener() {
+        @Override
+        public boolean isLoggable(int level, boolean toast) {
+            return debugLevel >= level || (toast && debugLevelToast >= level);
+        }
+
+        @Override
+        public void log(int level, String message, boolean toast) {
+            Logger(message, level, toast ? LoggerType.TOAST : LoggerType.LOG);
+        }
+    };
+
     public void Logger(String s) {
         Logger(s, 1, LoggerType.LOG);
     }
@@ -10,7 +10,7 @@ public class AdvancedLocationDbHelper extends SQLiteOpenHelper {
 
     private static final String TAG = "PB-AdvLocDbHelper";
 
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 7;
     public static final String DATABASE_NAME = "AdvancedLocation.db";
 
     private static AdvancedLocationDbHelper sInstance;
@@ -19,23 +19,95 @@ public class AdvancedLocationDbHelper extends SQLiteOpenHelper {
     public static abstract class Location implements BaseColumns {
         public static final String TABLE_NAME = "location";
     }
+    public static abstract class Session implements BaseColumns {
+        public static final String TABLE_NAME = "session";
+    }
+    public static abstract class Lap implements BaseColumns {
+        public static final String TABLE_NAME = "lap";
+    }
     private static final String TEXT_TYPE = " TEXT";
+    private static final String INTEGER_TYPE = " INTEGER";
+    private static final String REAL_TYPE = " REAL";
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + Location.TABLE_NAME + " ("
                     + Location._ID + " INTEGER PRIMARY KEY"
-                    + ", loca_time" + TEXT_TYPE
-                    + ", loca_lat" + TEXT_TYPE
-                    + ", loca_lon" + TEXT_TYPE
-                    + ", loca_altitude" + TEXT_TYPE
-                    + ", loca_gps_altitude" + TEXT_TYPE
-                    + ", loca_pressure_altitude" + TEXT_TYPE
-                    + ", loca_ascent" + TEXT_TYPE
-                    + ", loca_accuracy" + TEXT_TYPE
-                    + ", loca_hr" + TEXT_TYPE
-                    + ", loca_cad" + TEXT_TYPE
+                    + ", loca_time" + INTEGER_TYPE
+                    + ", loca_lat" + REAL_TYPE
+                    + ", loca_lon" + REAL_TYPE
+                    + ", loca_altitude" + REAL_TYPE
+                    + ", loca_gps_altitude" + REAL_TYPE
+                    + ", loca_pressure_altitude" + REAL_TYPE
+                    + ", loca_ascent" + REAL_TYPE
+                    + ", loca_accuracy" + REAL_TYPE
+                    + ", loca_hr" + INTEGER_TYPE
+                    + ", loca_cad" + INTEGER_TYPE
                     + ", loca_comment" + TEXT_TYPE
+                    + ", loca_session_id" + INTEGER_TYPE
+            + " )";
+
+    // an activity, from startSession() to stopSession()
+    // sess_start_*: stats of the engine when the session started, the session stats are the differences
+    private static final String SQL_CREATE_SESSIONS =
+            "CREATE TABLE " + Session.TABLE_NAME + " ("
+                    + Session._ID + " INTEGER PRIMARY KEY"
+                    + ", sess_name" + TEXT_TYPE
+                    + ", sess_start_time" + INTEGER_TYPE
+                    + ", sess_end_time" + INTEGER_TYPE
+                    + ", sess_elapsed_time" + INTEGER_TYPE
+                    + ", sess_distance" + REAL_TYPE
+                    + ", sess_ascent" + REAL_TYPE
+                    + ", sess_start_elapsed_time" + INTEGER_TYPE
+                    + ", sess_start_distance" + REAL_TYPE
+                    + ", sess_start_ascent" + REAL_TYPE
+                    + ", sess_start_max_speed" + REAL_TYPE
             + " )";
 
+    // completed laps (see LapEngine), NULL lap_session_id if no session
+    private static final String SQL_CREATE_LAPS =
+            "CREATE TABLE " + Lap.TABLE_NAME + " ("
+                    + Lap._ID + " INTEGER PRIMARY KEY"
+                    + ", lap_session_id" + INTEGER_TYPE
+                    + ", lap_number" + INTEGER_TYPE
+                    + ", lap_start_time" + INTEGER_TYPE
+                    + ", lap_end_time" + INTEGER_TYPE
+                    + ", lap_elapsed_time" + INTEGER_TYPE
+                    + ", lap_distance" + REAL_TYPE
+                    + ", lap_ascent" + REAL_TYPE
+                    + ", lap_max_speed" + REAL_TYPE
+                    + ", lap_hr" + REAL_TYPE
+                    + ", lap_cad" + REAL_TYPE
+                    + ", lap_nb_ascent" + INTEGER_TYPE
+            + " )";
+
+    private static final String SQL_CREATE_INDEX_LAP_SESSION =
+            "CREATE INDEX " + Lap.TABLE_NAME + "_lap_session_id ON " + Lap.TABLE_NAME + " (lap_session_id, lap_number)";
+
+    private static final String SQL_CREATE_INDEX_TIME =
+            "CREATE INDEX " + Location.TABLE_NAME + "_loca_time ON " + Location.TABLE_NAME + " (loca_time)";
+
+    // locations of a session, in insertion order
+    private static final String SQL_CREATE_INDEX_SESSION =
+            "CREATE INDEX " + Location.TABLE_NAME + "_loca_session_id ON " + Location.TABLE_NAME + " (loca_session_id, " + Location._ID + ")";
+
+    // copy v3 rows (all columns stored as TEXT) to the typed v4 table
+    private static final String SQL_MIGRATE_V4_ENTRIES =
+            "INSERT INTO " + Location.TABLE_NAME + " ("
+                    + Location._ID + ", loca_time, loca_lat, loca_lon, loca_altitude, loca_gps_altitude, loca_pressure_altitude, loca_ascent, loca_accuracy, loca_hr, loca_cad, loca_comment"
+            + ") SELECT "
+                    + Location._ID
+                    + ", CAST(loca_time AS INTEGER)"
+                    + ", CAST(loca_lat AS REAL)"
+                    + ", CAST(loca_lon AS REAL)"
+                    + ", CAST(loca_altitude AS REAL)"
+                    + ", CAST(loca_gps_altitude AS REAL)"
+                    + ", CAST(loca_pressure_altitude AS REAL)"
+                    + ", CAST(loca_ascent AS REAL)"
+                    + ", CAST(loca_accuracy AS REAL)"
+                    + ", CAST(loca_hr AS INTEGER)"
+                    + ", CAST(loca_cad AS INTEGER)"
+                    + ", loca_comment"
+            + " FROM " + Location.TABLE_NAME + "_v3";
+
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + Location.TABLE_NAME;
 
@@ -61,6 +133,11 @@ public class AdvancedLocationDbHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         //Log.d(TAG, SQL_CREATE_ENTRIES);
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_INDEX_TIME);
+        db.execSQL(SQL_CREATE_SESSIONS);
+        db.execSQL(SQL_CREATE_INDEX_SESSION);
+        db.execSQL(SQL_CREATE_LAPS);
+        db.execSQL(SQL_CREATE_INDEX_LAP_SESSION);
     }
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (newVersion > oldVersion) {
@@ -73,6 +150,40 @@ public class AdvancedLocationDbHelper extends SQLiteOpenHelper {
                 SQLExec(db, "ALTER TABLE location ADD COLUMN loca_hr TEXT");
                 SQLExec(db, "ALTER TABLE location ADD COLUMN loca_cad TEXT");
             }
+            if (oldVersion < 4) {
+                // typed columns and index on loca_time: SQLite can't alter column types, rebuild the table
+                db.beginTransaction();
+                try {
+                    SQLExec(db, "ALTER TABLE location RENAME TO location_v3");
+                    SQLExec(db, SQL_CREATE_ENTRIES);
+                    SQLExec(db, SQL_MIGRATE_V4_ENTRIES);
+                    SQLExec(db, "DROP TABLE location_v3");
+                    SQLExec(db, SQL_CREATE_INDEX_TIME);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (oldVersion < 5) {
+                // sessions, locations saved before have no session (NULL)
+                if (oldVersion >= 4) {
+                    // otherwise the table has been rebuilt above with loca_session_id
+                    SQLExec(db, "ALTER TABLE location ADD COLUMN loca_session_id INTEGER");
+                }
+                SQLExec(db, SQL_CREATE_SESSIONS);
+                SQLExec(db, SQL_CREATE_INDEX_SESSION);
+            }
+            if (oldVersion < 6) {
+                SQLExec(db, SQL_CREATE_LAPS);
+                SQLExec(db, SQL_CREATE_INDEX_LAP_SESSION);
+            }
+            if (oldVersion < 7 && oldVersion >= 5) {
+                // otherwise the table has been created above with the sess_start_* columns
+                SQLExec(db, "ALTER TABLE session ADD COLUMN sess_start_elapsed_time INTEGER");
+                SQLExec(db, "ALTER TABLE session ADD COLUMN sess_start_distance REAL");
+                SQLExec(db, "ALTER TABLE session ADD COLUMN sess_start_ascent REAL");
+                SQLExec(db, "ALTER TABLE session ADD COLUMN sess_start_max_speed REAL");
+            }
         }
     }
     private void SQLExec(SQLiteDatabase db, String sql) {
@@ -0,0 +1,84 @@
+package fr.jayps.android;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import fr.jayps.core.TrackReplay;
+
+/**
+ * A track stored in the location table, to be replayed by TrackReplay.
+ *
+ * Either a session (or all the locations) of an open database, or the path of a database file
+ * (one file per archived track), opened read-only only while the track is replayed.
+ */
+public class LocationTableTrack implements TrackReplay.Track {
+
+    private static final String SQL_SELECT =
+            "SELECT loca_time, loca_lat, loca_lon, loca_gps_altitude, loca_pressure_altitude, loca_accuracy, loca_hr, loca_cad"
+            + " FROM " + AdvancedLocationDbHelper.Location.TABLE_NAME;
+    private static final String SQL_ORDER = " ORDER BY loca_time ASC, _ID ASC";
+
+    private final String _name;
+    private final SQLiteDatabase _db;
+    private final String _path;
+    private final long _sessionId; // 0: all the locations
+
+    public LocationTableTrack(String name, SQLiteDatabase db) {
+        this(name, db, 0);
+    }
+
+    public LocationTableTrack(String name, SQLiteDatabase db, long sessionId) {
+        this._name = name;
+        this._db = db;
+        this._path = null;
+        this._sessionId = sessionId;
+    }
+
+    public LocationTableTrack(String path) {
+        this._name = path;
+        this._db = null;
+        this._path = path;
+        this._sessionId = 0;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public void replay(TrackReplay.Player player) {
+        SQLiteDatabase db = _db;
+        if (db == null) {
+            db = SQLiteDatabase.openDatabase(_path, null, SQLiteDatabase.OPEN_READONLY);
+        }
+        try {
+            Cursor cursor;
+            if (_sessionId > 0) {
+                cursor = db.rawQuery(SQL_SELECT + " WHERE loca_session_id = ?" + SQL_ORDER, new String[] {Long.toString(_sessionId)});
+            } else {
+                cursor = db.rawQuery(SQL_SELECT + SQL_ORDER, null);
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    player.onPoint(
+                            cursor.getLong(0),
+                            cursor.getDouble(1),
+                            cursor.getDouble(2),
+                            cursor.getDouble(3),
+                            cursor.isNull(4) ? 0 : cursor.getDouble(4),
+                            cursor.getFloat(5),
+                            cursor.isNull(6) ? 0 : cursor.getInt(6),
+                            cursor.isNull(7) ? 0 : cursor.getInt(7)
+                    );
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            if (db != _db) {
+                db.close();
+            }
+        }
+    }
+}
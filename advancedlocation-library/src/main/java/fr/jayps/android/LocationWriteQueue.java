@@ -0,0 +1,354 @@
+package fr.jayps.android;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-behind persistence of saved locations.
+ *
+ * offer() only copies the point into a bounded ring buffer and never touches the disk.
+ * A background thread writes the queued points in a single transaction with a precompiled
+ * insert statement, as soon as batchSize points are queued or the oldest one has waited maxLatency ms.
+ * If the queue is full (disk stalled for a long time), new points are dropped and counted.
+ * A batch whose write fails is re-queued once, then dropped and counted if it fails again.
+ * Completed laps (offerLap(), a few per hour) are written in the same transaction as the points.
+ */
+public class LocationWriteQueue {
+
+    private static final String TAG = "PB-LocWriteQueue";
+
+    private static final String SQL_INSERT =
+            "INSERT INTO " + AdvancedLocationDbHelper.Location.TABLE_NAME
+            + " (loca_time, loca_lat, loca_lon, loca_altitude, loca_gps_altitude, loca_pressure_altitude, loca_ascent, loca_accuracy, loca_hr, loca_cad, loca_session_id)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final SQLiteDatabase _db;
+    private final int _capacity;
+    private final int _batchSize;
+    private final long _maxLatency; // in ms
+
+    // queued points (ring buffer), guarded by this
+    private final Points _queue;
+    private int _head = 0;
+    private int _size = 0;
+    private long _oldestQueuedAt = 0; // System.nanoTime(), of the oldest point or lap
+    private final List<ContentValues> _laps = new ArrayList<ContentValues>(); // lap table rows
+    private int _nbDropped = 0;
+    private boolean _lastWriteFailed = false; // the head of the queue is a re-queued batch
+    private boolean _running = false;
+    private Thread _thread = null;
+
+    // points being written, guarded by _writeLock
+    private final Object _writeLock = new Object();
+    private final Points _batch;
+    private final List<ContentValues> _batchLaps = new ArrayList<ContentValues>();
+    private SQLiteStatement _insert = null;
+
+    private static class Points {
+        final long[] time;
+        final double[] lat;
+        final double[] lon;
+        final double[] altitude;
+        final double[] gpsAltitude;
+        final double[] pressureAltitude;
+        final double[] ascent;
+        final float[] accuracy;
+        final int[] hr;
+        final int[] cad;
+        final long[] sessionId;
+
+        Points(int capacity) {
+            time = new long[capacity];
+            lat = new double[capacity];
+            lon = new double[capacity];
+            altitude = new double[capacity];
+            gpsAltitude = new double[capacity];
+            pressureAltitude = new double[capacity];
+            ascent = new double[capacity];
+            accuracy = new float[capacity];
+            hr = new int[capacity];
+            cad = new int[capacity];
+            sessionId = new long[capacity];
+        }
+
+        void copy(int from, Points to, int i) {
+            to.time[i] = time[from];
+            to.lat[i] = lat[from];
+            to.lon[i] = lon[from];
+            to.altitude[i] = altitude[from];
+            to.gpsAltitude[i] = gpsAltitude[from];
+            to.pressureAltitude[i] = pressureAltitude[from];
+            to.ascent[i] = ascent[from];
+            to.accuracy[i] = accuracy[from];
+            to.hr[i] = hr[from];
+            to.cad[i] = cad[from];
+            to.sessionId[i] = sessionId[from];
+        }
+    }
+
+    public LocationWriteQueue(SQLiteDatabase db, int capacity, int batchSize, long maxLatency) {
+        this._db = db;
+        this._capacity = capacity;
+        this._batchSize = Math.max(1, Math.min(batchSize, capacity));
+        this._maxLatency = maxLatency;
+        this._queue = new Points(capacity);
+        this._batch = new Points(capacity);
+    }
+
+    public synchronized void start() {
+        if (_running) {
+            return;
+        }
+        _running = true;
+        _thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, TAG);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    // stop the background writer and write the remaining points
+    public void shutdown() {
+        Thread thread;
+        synchronized (this) {
+            _running = false;
+            thread = _thread;
+            _thread = null;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // no writer thread to retry: the remaining points are lost
+            Log.e(TAG, "Failed to write locations on shutdown", e);
+        } finally {
+            synchronized (_writeLock) {
+                if (_insert != null) {
+                    _insert.close();
+                    _insert = null;
+                }
+            }
+        }
+    }
+
+    // hr and cad <= 0 if not available, sessionId <= 0 if no session
+    // returns false if the queue is full and the point has been dropped
+    public boolean offer(long time, double lat, double lon, double altitude, double gpsAltitude, double pressureAltitude, double ascent, float accuracy, int hr, int cad, long sessionId) {
+        synchronized (this) {
+            if (_size == _capacity) {
+                _nbDropped++;
+                notifyAll();
+                return false;
+            }
+            int i = (_head + _size) % _capacity;
+            _queue.time[i] = time;
+            _queue.lat[i] = lat;
+            _queue.lon[i] = lon;
+            _queue.altitude[i] = altitude;
+            _queue.gpsAltitude[i] = gpsAltitude;
+            _queue.pressureAltitude[i] = pressureAltitude;
+            _queue.ascent[i] = ascent;
+            _queue.accuracy[i] = accuracy;
+            _queue.hr[i] = hr;
+            _queue.cad[i] = cad;
+            _queue.sessionId[i] = sessionId;
+            _size++;
+            if (_size == 1) {
+                if (_laps.isEmpty()) {
+                    _oldestQueuedAt = System.nanoTime();
+                }
+                // wake up the writer, to (re)start its latency timer
+                notifyAll();
+            } else if (_size >= _batchSize) {
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    // values of a row of the lap table, written with the next batch of points (or after maxLatency)
+    public synchronized void offerLap(ContentValues values) {
+        if (_size == 0 && _laps.isEmpty()) {
+            _oldestQueuedAt = System.nanoTime();
+        }
+        _laps.add(values);
+        notifyAll();
+    }
+
+    // write all queued points and laps now, on the calling thread
+    public void flush() {
+        synchronized (_writeLock) {
+            int n;
+            synchronized (this) {
+                n = _size;
+                for (int i = 0; i < n; i++) {
+                    _queue.copy((_head + i) % _capacity, _batch, i);
+                }
+                _head = 0;
+                _size = 0;
+                _batchLaps.addAll(_laps);
+                _laps.clear();
+            }
+            if (n > 0 || !_batchLaps.isEmpty()) {
+                try {
+                    write(n);
+                    _batchLaps.clear();
+                    _lastWriteFailed = false;
+                } catch (RuntimeException e) {
+                    if (_lastWriteFailed) {
+                        // 2nd failure in a row: give up this batch
+                        _lastWriteFailed = false;
+                        _batchLaps.clear();
+                        synchronized (this) {
+                            _nbDropped += n;
+                        }
+                    } else {
+                        _lastWriteFailed = true;
+                        requeue(n);
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // puts the n points and the laps of the batch back at the head of the queue, dropping the points that don't fit
+    private void requeue(int n) {
+        synchronized (this) {
+            _laps.addAll(0, _batchLaps);
+            _batchLaps.clear();
+            for (int i = n - 1; i >= 0; i--) {
+                if (_size == _capacity) {
+                    _nbDropped += i + 1;
+                    break;
+                }
+                _head = (_head - 1 + _capacity) % _capacity;
+                _batch.copy(i, _queue, _head);
+                _size++;
+            }
+            // retried after maxLatency, or earlier when batchSize points are queued
+            _oldestQueuedAt = System.nanoTime();
+        }
+    }
+
+    // discard all queued points and laps
+    public void clear() {
+        synchronized (_writeLock) {
+            synchronized (this) {
+                _head = 0;
+                _size = 0;
+                _laps.clear();
+            }
+            _lastWriteFailed = false;
+        }
+    }
+
+    public synchronized int size() {
+        return _size;
+    }
+
+    // points dropped because the queue was full or because their write failed twice
+    public synchronized int getNbDropped() {
+        return _nbDropped;
+    }
+
+    private void write(int n) {
+        if (_insert == null) {
+            _insert = _db.compileStatement(SQL_INSERT);
+        }
+        _db.beginTransaction();
+        try {
+            for (int i = 0; i < n; i++) {
+                _insert.bindLong(1, _batch.time[i]);
+                _insert.bindDouble(2, _batch.lat[i]);
+                _insert.bindDouble(3, _batch.lon[i]);
+                _insert.bindDouble(4, _batch.altitude[i]);
+                _insert.bindDouble(5, _batch.gpsAltitude[i]);
+                _insert.bindDouble(6, _batch.pressureAltitude[i]);
+                _insert.bindDouble(7, _batch.ascent[i]);
+                _insert.bindDouble(8, _batch.accuracy[i]);
+                if (_batch.hr[i] > 0) {
+                    _insert.bindLong(9, _batch.hr[i]);
+                } else {
+                    _insert.bindNull(9);
+                }
+                if (_batch.cad[i] > 0) {
+                    _insert.bindLong(10, _batch.cad[i]);
+                } else {
+                    _insert.bindNull(10);
+                }
+                if (_batch.sessionId[i] > 0) {
+                    _insert.bindLong(11, _batch.sessionId[i]);
+                } else {
+                    _insert.bindNull(11);
+                }
+                _insert.executeInsert();
+            }
+            for (ContentValues values : _batchLaps) {
+                _db.insertOrThrow(AdvancedLocationDbHelper.Lap.TABLE_NAME, null, values);
+            }
+            _db.setTransactionSuccessful();
+        } finally {
+            _db.endTransaction();
+        }
+    }
+
+    private void writerLoop() {
+        while (true) {
+            synchronized (this) {
+                while (_running && !isBatchReady()) {
+                    long timeout = 0; // wait until notified
+                    if (_size > 0 || !_laps.isEmpty()) {
+                        timeout = Math.max(1, _maxLatency - (System.nanoTime() - _oldestQueuedAt) / 1000000);
+                    }
+                    try {
+                        wait(timeout);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!_running) {
+                    // remaining points are written by shutdown()
+                    return;
+                }
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to write locations", e);
+                // back off before retrying the re-queued batch
+                synchronized (this) {
+                    if (_running) {
+                        try {
+                            wait(Math.max(1, _maxLatency));
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isBatchReady() {
+        return _size >= _batchSize
+                || ((_size > 0 || !_laps.isEmpty()) && (System.nanoTime() - _oldestQueuedAt) / 1000000 >= _maxLatency);
+    }
+}
@@ -0,0 +1,39 @@
+package fr.jayps.core;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer counting the chars written through it, e.g. the size of an export (bytes for ASCII documents).
+ */
+public class CountingWriter extends FilterWriter {
+
+    private long _count = 0;
+
+    public CountingWriter(Writer out) {
+        super(out);
+    }
+
+    public long getCount() {
+        return _count;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        out.write(c);
+        _count++;
+    }
+
+    @Override
+    public void write(char[] buf, int off, int len) throws IOException {
+        out.write(buf, off, len);
+        _count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        out.write(str, off, len);
+        _count += len;
+    }
+}
@@ -0,0 +1,119 @@
+package fr.jayps.core;
+
+/**
+ * Distance between two points on the WGS84 ellipsoid.
+ *
+ * VINCENTY is exact (within 0.5mm) but iterative. HAVERSINE and EQUIRECTANGULAR are
+ * faster approximations, see their error bounds below.
+ */
+public final class Distance {
+
+    // WGS84 ellipsoid
+    private static final double A = 6378137.0; // semi-major axis, in m
+    private static final double B = 6356752.3142; // semi-minor axis, in m
+    private static final double F = (A - B) / A; // flattening
+
+    private static final double E2 = 1.0 - (B * B) / (A * A); // first eccentricity squared
+    private static final double MEAN_RADIUS = (2 * A + B) / 3; // in m
+
+    private static final int MAX_ITERATIONS = 20;
+
+    // distance modes
+    public static final int VINCENTY = 0;
+    public static final int HAVERSINE = 1;
+    public static final int EQUIRECTANGULAR = 2;
+
+    private Distance() {
+    }
+
+    // Vincenty's inverse formula, same results as android.location.Location.distanceBetween()
+    // in m
+    public static double vincenty(double lat1, double lon1, double lat2, double lon2) {
+        double L = Math.toRadians(lon2 - lon1);
+        double U1 = Math.atan((1.0 - F) * Math.tan(Math.toRadians(lat1)));
+        double U2 = Math.atan((1.0 - F) * Math.tan(Math.toRadians(lat2)));
+        double sinU1 = Math.sin(U1), cosU1 = Math.cos(U1);
+        double sinU2 = Math.sin(U2), cosU2 = Math.cos(U2);
+
+        double lambda = L;
+        double sinSigma = 0, cosSigma = 0, sigma = 0;
+        double cos2Alpha = 0, cos2SigmaM = 0;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+            if (sinSigma == 0) {
+                // same points
+                return 0;
+            }
+            cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            cos2Alpha = 1.0 - sinAlpha * sinAlpha;
+            // on the equator, cos2Alpha is 0
+            cos2SigmaM = cos2Alpha != 0 ? cosSigma - 2.0 * sinU1 * sinU2 / cos2Alpha : 0;
+            double C = F / 16.0 * cos2Alpha * (4.0 + F * (4.0 - 3.0 * cos2Alpha));
+            double lambdaPrev = lambda;
+            lambda = L + (1.0 - C) * F * sinAlpha
+                    * (sigma + C * sinSigma * (cos2SigmaM + C * cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)));
+            if (Math.abs(lambda - lambdaPrev) < 1.0e-12) {
+                break;
+            }
+        }
+
+        double uSquared = cos2Alpha * (A * A - B * B) / (B * B);
+        double a = 1 + uSquared / 16384.0 * (4096.0 + uSquared * (-768 + uSquared * (320.0 - 175.0 * uSquared)));
+        double b = uSquared / 1024.0 * (256.0 + uSquared * (-128.0 + uSquared * (74.0 - 47.0 * uSquared)));
+        double deltaSigma = b * sinSigma * (cos2SigmaM + b / 4.0
+                * (cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)
+                - b / 6.0 * cos2SigmaM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SigmaM * cos2SigmaM)));
+        return B * a * (sigma - deltaSigma);
+    }
+
+    // in m
+    public static double distance(int mode, double lat1, double lon1, double lat2, double lon2) {
+        switch (mode) {
+            case HAVERSINE:
+                return haversine(lat1, lon1, lat2, lon2);
+            case EQUIRECTANGULAR:
+                return equirectangular(lat1, lon1, lat2, lon2);
+            default:
+                return vincenty(lat1, lon1, lat2, lon2);
+        }
+    }
+
+    // great-circle distance on a sphere of radius MEAN_RADIUS
+    // error vs the ellipsoid: up to 0.6% of the distance (depends on latitude and direction)
+    // in m
+    public static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDPhi = Math.sin((phi2 - phi1) / 2);
+        double sinDLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = sinDPhi * sinDPhi + Math.cos(phi1) * Math.cos(phi2) * sinDLambda * sinDLambda;
+        return 2 * MEAN_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(h)));
+    }
+
+    // flat projection around the mean latitude, with the radii of curvature of the ellipsoid,
+    // for the short hops between consecutive fixes (not across the poles)
+    // error vs vincenty, below 80 degrees of latitude:
+    // < 1mm up to 1km, < 1cm up to 5km, < 0.1% of the distance up to 100km
+    // in m
+    public static double equirectangular(double lat1, double lon1, double lat2, double lon2) {
+        double phi = Math.toRadians((lat1 + lat2) / 2);
+        double sinPhi = Math.sin(phi);
+        double w2 = 1.0 - E2 * sinPhi * sinPhi;
+        double n = A / Math.sqrt(w2); // prime vertical radius of curvature
+        double m = n * (1.0 - E2) / w2; // meridional radius of curvature
+        double dLon = lon2 - lon1;
+        if (dLon > 180) {
+            dLon -= 360;
+        } else if (dLon < -180) {
+            dLon += 360;
+        }
+        double x = Math.toRadians(dLon) * n * Math.cos(phi);
+        double y = Math.toRadians(lat2 - lat1) * m;
+        return Math.sqrt(x * x + y * y);
+    }
+}
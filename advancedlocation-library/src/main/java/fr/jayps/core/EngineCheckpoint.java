@@ -0,0 +1,162 @@
+package fr.jayps.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Periodic checkpoints of the state of a TrackStatsEngine (see TrackStatsEngine.writeState()),
+ * its LapEngine and a session id of the application, to resume a track after the process has been
+ * killed without replaying the saved locations.
+ *
+ * A checkpoint is a small file (~600 bytes + the altitude filter + ~70 bytes per lap):
+ * magic, version, engine state, session id, lap state, CRC32.
+ * onFix() serializes it on the thread feeding the engine, write(byte[]) can then be called on
+ * a background thread: it is written to file.tmp, synced and renamed, so the file always holds
+ * a complete checkpoint, the previous one if the process dies while writing.
+ */
+public class EngineCheckpoint {
+
+    public static final int MAGIC = 0x414c4350; // "ALCP"
+    public static final int VERSION = 2;
+
+    private final File _file;
+    private final File _tmpFile;
+    private final long _interval; // in ms
+    private long _lastTime = Long.MIN_VALUE; // time of the last checkpoint, in ms
+    private int _nbWritten = 0; // guarded by this
+    private long _sessionId = 0; // of the last restored checkpoint
+
+    // interval between 2 checkpoints in ms, of fix time
+    public EngineCheckpoint(File file, long interval) {
+        this._file = file;
+        this._tmpFile = new File(file.getPath() + ".tmp");
+        this._interval = interval;
+    }
+
+    public File getFile() {
+        return _file;
+    }
+
+    public long getInterval() {
+        return _interval;
+    }
+
+    // number of checkpoints written
+    public synchronized int getNbWritten() {
+        return _nbWritten;
+    }
+
+    // session id of the last restored checkpoint, 0 if none
+    public long getSessionId() {
+        return _sessionId;
+    }
+
+    // to be called after each fix: returns a checkpoint to write if interval ms have elapsed since the last one, null otherwise
+    public byte[] onFix(TrackStatsEngine engine, long time, long sessionId) throws IOException {
+        if (_lastTime != Long.MIN_VALUE && time - _lastTime < _interval && time >= _lastTime) {
+            return null;
+        }
+        _lastTime = time;
+        return serialize(engine, sessionId);
+    }
+
+    // checkpoint of the engine and its lap engine now, on the thread feeding the engine
+    public static byte[] serialize(TrackStatsEngine engine, long sessionId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        engine.writeState(out);
+        out.writeLong(sessionId);
+        LapEngine laps = engine.getLapEngine();
+        out.writeBoolean(laps != null);
+        if (laps != null) {
+            laps.writeState(out);
+        }
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeLong(crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // writes a checkpoint of serialize(), any thread
+    public synchronized void write(byte[] checkpoint) throws IOException {
+        FileOutputStream file = new FileOutputStream(_tmpFile);
+        try {
+            file.write(checkpoint);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!_tmpFile.renameTo(_file)) {
+            throw new IOException("Failed to rename " + _tmpFile + " to " + _file);
+        }
+        _nbWritten++;
+    }
+
+    // writes a checkpoint now, on the thread feeding the engine
+    public void write(TrackStatsEngine engine, long sessionId) throws IOException {
+        write(serialize(engine, sessionId));
+    }
+
+    // Restores the engine from the last checkpoint, e.g. on start. Returns false, leaving the engine unchanged,
+    // if there is no checkpoint or if it is invalid (corrupted, other version).
+    // The lap engine of the engine, if any, is restored if the checkpoint has laps of the same mode and length.
+    // The session id is then given by getSessionId().
+    public boolean restore(TrackStatsEngine engine) throws IOException {
+        if (!_file.exists()) {
+            return false;
+        }
+        byte[] data = new byte[(int) _file.length()];
+        FileInputStream file = new FileInputStream(_file);
+        try {
+            new DataInputStream(file).readFully(data);
+        } finally {
+            file.close();
+        }
+        if (data.length < 12) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.skipBytes(data.length - 8);
+        if (in.readLong() != crc.getValue()) {
+            return false;
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return false;
+        }
+        in.mark(4);
+        if (in.readInt() != TrackStatsEngine.STATE_VERSION) {
+            return false;
+        }
+        in.reset();
+        engine.readState(in);
+        _sessionId = in.readLong();
+        LapEngine laps = engine.getLapEngine();
+        if (in.readBoolean() && laps != null) {
+            laps.readState(in);
+        }
+        _lastTime = engine.getTime();
+        return true;
+    }
+
+    // removes the checkpoint, e.g. when the track is reset
+    public void delete() {
+        _file.delete();
+        _tmpFile.delete();
+        _lastTime = Long.MIN_VALUE;
+    }
+}
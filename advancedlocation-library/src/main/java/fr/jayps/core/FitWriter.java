@@ -0,0 +1,340 @@
+package fr.jayps.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming encoder of FIT activity files (Garmin Flexible and Interoperable Data Transfer),
+ * accepted by Garmin Connect, Strava...: each point is a 17-byte record message, written straight
+ * to the OutputStream, so memory usage doesn't depend on the track length.
+ *
+ * The file header holds the size of the data, so the number of points is given to writeHeader().
+ * Messages: file_id, records, then one lap, one session and the activity, and the CRC-16 of the file.
+ * Each message type is defined once (local message types 0 to 4), records have a fixed size.
+ */
+public class FitWriter implements TrackPointSink {
+
+    // 1989-12-31T00:00:00Z, origin of the FIT timestamps, in ms since 1970
+    public static final long FIT_EPOCH = 631065600000L;
+
+    // sports
+    public static final int SPORT_GENERIC = 0;
+    public static final int SPORT_RUNNING = 1;
+    public static final int SPORT_CYCLING = 2;
+    public static final int SPORT_WALKING = 11;
+
+    static final int HEADER_SIZE = 14;
+    static final int PROTOCOL_VERSION = 0x10; // 1.0
+    static final int PROFILE_VERSION = 2100; // 21.00
+
+    // global message numbers
+    static final int MESG_FILE_ID = 0;
+    static final int MESG_SESSION = 18;
+    static final int MESG_LAP = 19;
+    static final int MESG_RECORD = 20;
+    static final int MESG_ACTIVITY = 34;
+
+    // base types
+    static final int ENUM = 0x00;
+    static final int UINT8 = 0x02;
+    static final int UINT16 = 0x84;
+    static final int SINT32 = 0x85;
+    static final int UINT32 = 0x86;
+
+    // invalid values, for unavailable fields
+    static final int UINT8_INVALID = 0xff;
+    static final int UINT16_INVALID = 0xffff;
+
+    // local message types
+    private static final int LOCAL_FILE_ID = 0;
+    private static final int LOCAL_RECORD = 1;
+    private static final int LOCAL_LAP = 2;
+    private static final int LOCAL_SESSION = 3;
+    private static final int LOCAL_ACTIVITY = 4;
+
+    // field definitions: {field number, size, base type}, in the order of the data messages
+    private static final int[][] FILE_ID_FIELDS = {
+            {0, 1, ENUM},     // type
+            {1, 2, UINT16},   // manufacturer
+            {2, 2, UINT16},   // product
+            {4, 4, UINT32},   // time_created
+    };
+    private static final int[][] RECORD_FIELDS = {
+            {253, 4, UINT32}, // timestamp
+            {0, 4, SINT32},   // position_lat
+            {1, 4, SINT32},   // position_long
+            {2, 2, UINT16},   // altitude
+            {3, 1, UINT8},    // heart_rate
+            {4, 1, UINT8},    // cadence
+    };
+    private static final int[][] LAP_FIELDS = {
+            {253, 4, UINT32}, // timestamp
+            {2, 4, UINT32},   // start_time
+            {7, 4, UINT32},   // total_elapsed_time
+            {8, 4, UINT32},   // total_timer_time
+            {9, 4, UINT32},   // total_distance
+            {21, 2, UINT16},  // total_ascent
+            {13, 2, UINT16},  // avg_speed
+            {14, 2, UINT16},  // max_speed
+            {0, 1, ENUM},     // event
+            {1, 1, ENUM},     // event_type
+            {25, 1, ENUM},    // sport
+    };
+    private static final int[][] SESSION_FIELDS = {
+            {253, 4, UINT32}, // timestamp
+            {2, 4, UINT32},   // start_time
+            {7, 4, UINT32},   // total_elapsed_time
+            {8, 4, UINT32},   // total_timer_time
+            {9, 4, UINT32},   // total_distance
+            {22, 2, UINT16},  // total_ascent
+            {14, 2, UINT16},  // avg_speed
+            {15, 2, UINT16},  // max_speed
+            {25, 2, UINT16},  // first_lap_index
+            {26, 2, UINT16},  // num_laps
+            {0, 1, ENUM},     // event
+            {1, 1, ENUM},     // event_type
+            {5, 1, ENUM},     // sport
+    };
+    private static final int[][] ACTIVITY_FIELDS = {
+            {253, 4, UINT32}, // timestamp
+            {0, 4, UINT32},   // total_timer_time
+            {1, 2, UINT16},   // num_sessions
+            {2, 1, ENUM},     // type
+            {3, 1, ENUM},     // event
+            {4, 1, ENUM},     // event_type
+    };
+
+    // enum values
+    private static final int FILE_ACTIVITY = 4;
+    private static final int MANUFACTURER_DEVELOPMENT = 255;
+    private static final int EVENT_SESSION = 8;
+    private static final int EVENT_LAP = 9;
+    private static final int EVENT_ACTIVITY = 26;
+    private static final int EVENT_TYPE_STOP = 1;
+    private static final int ACTIVITY_MANUAL = 0;
+
+    private static final int[] CRC_TABLE = {
+            0x0000, 0xcc01, 0xd801, 0x1400, 0xf001, 0x3c00, 0x2800, 0xe401,
+            0xa001, 0x6c00, 0x7800, 0xb401, 0x5000, 0x9c01, 0x8801, 0x4400
+    };
+
+    private final OutputStream _out;
+    private final byte[] _buffer = new byte[64]; // current message
+    private int _length = 0;
+    private int _crc = 0;
+    private long _nbBytes = 0;
+
+    private int _nbPointsDeclared = 0;
+    private int _nbPoints = 0;
+    private long _startTime = 0; // in ms
+    private long _endTime = 0; // in ms
+
+    // out should be buffered
+    public FitWriter(OutputStream out) {
+        this._out = out;
+    }
+
+    // nbPoints: exact number of points that will be written, timeCreated in ms
+    public void writeHeader(int nbPoints, long timeCreated) throws IOException {
+        _nbPointsDeclared = nbPoints;
+        _startTime = _endTime = timeCreated;
+
+        put8(HEADER_SIZE);
+        put8(PROTOCOL_VERSION);
+        put16(PROFILE_VERSION);
+        put32(getDataSize(nbPoints));
+        put8('.');
+        put8('F');
+        put8('I');
+        put8('T');
+        put16(crc(0, _buffer, 0, _length));
+        flushMessage();
+
+        writeDefinition(LOCAL_FILE_ID, MESG_FILE_ID, FILE_ID_FIELDS);
+        put8(LOCAL_FILE_ID);
+        put8(FILE_ACTIVITY);
+        put16(MANUFACTURER_DEVELOPMENT);
+        put16(0);
+        put32(timestamp(timeCreated));
+        flushMessage();
+
+        writeDefinition(LOCAL_RECORD, MESG_RECORD, RECORD_FIELDS);
+    }
+
+    // hr and cad <= 0 if not available
+    @Override
+    public void writePoint(long time, double lat, double lon, double ele, float accuracy, double ascent, double eleGps, double elePressure, int hr, int cad) throws IOException {
+        if (_nbPoints >= _nbPointsDeclared) {
+            throw new IOException("More points than declared in the FIT header: " + _nbPointsDeclared);
+        }
+        if (_nbPoints == 0) {
+            _startTime = time;
+        }
+        _endTime = time;
+        put8(LOCAL_RECORD);
+        put32(timestamp(time));
+        put32(semicircles(lat));
+        put32(semicircles(lon));
+        put16(clamp(Math.round((ele + 500) * 5), UINT16_INVALID - 1));
+        put8(hr > 0 && hr < UINT8_INVALID ? hr : UINT8_INVALID);
+        put8(cad > 0 && cad < UINT8_INVALID ? cad : UINT8_INVALID);
+        flushMessage();
+        _nbPoints++;
+    }
+
+    // Session totals, e.g. from TrackStatsEngine: timerTime (moving time) in ms, distance and ascent in m,
+    // maxSpeed in m/s (<= 0 if not available). Writes the lap, session and activity messages and the CRC.
+    public void writeFooter(long timerTime, float distance, double ascent, float maxSpeed, int sport) throws IOException {
+        if (_nbPoints != _nbPointsDeclared) {
+            throw new IOException("FIT header declares " + _nbPointsDeclared + " points, " + _nbPoints + " written");
+        }
+        long timestamp = timestamp(_endTime);
+        long startTime = timestamp(_startTime);
+        long elapsedTime = Math.max(0, _endTime - _startTime); // in ms
+        int avgSpeed = timerTime > 0 ? clamp(Math.round(distance / (timerTime / 1000.0) * 1000), UINT16_INVALID - 1) : UINT16_INVALID;
+        int maxSpeedValue = maxSpeed > 0 ? clamp(Math.round(maxSpeed * 1000.0), UINT16_INVALID - 1) : UINT16_INVALID;
+        int totalAscent = clamp(Math.round(ascent), UINT16_INVALID - 1);
+
+        writeDefinition(LOCAL_LAP, MESG_LAP, LAP_FIELDS);
+        put8(LOCAL_LAP);
+        put32(timestamp);
+        put32(startTime);
+        put32(elapsedTime);
+        put32(timerTime);
+        put32(Math.round(distance * 100.0));
+        put16(totalAscent);
+        put16(avgSpeed);
+        put16(maxSpeedValue);
+        put8(EVENT_LAP);
+        put8(EVENT_TYPE_STOP);
+        put8(sport);
+        flushMessage();
+
+        writeDefinition(LOCAL_SESSION, MESG_SESSION, SESSION_FIELDS);
+        put8(LOCAL_SESSION);
+        put32(timestamp);
+        put32(startTime);
+        put32(elapsedTime);
+        put32(timerTime);
+        put32(Math.round(distance * 100.0));
+        put16(totalAscent);
+        put16(avgSpeed);
+        put16(maxSpeedValue);
+        put16(0);
+        put16(1);
+        put8(EVENT_SESSION);
+        put8(EVENT_TYPE_STOP);
+        put8(sport);
+        flushMessage();
+
+        writeDefinition(LOCAL_ACTIVITY, MESG_ACTIVITY, ACTIVITY_FIELDS);
+        put8(LOCAL_ACTIVITY);
+        put32(timestamp);
+        put32(timerTime);
+        put16(1);
+        put8(ACTIVITY_MANUAL);
+        put8(EVENT_ACTIVITY);
+        put8(EVENT_TYPE_STOP);
+        flushMessage();
+
+        int crc = _crc;
+        put16(crc);
+        flushMessage();
+        _out.flush();
+    }
+
+    public int getNbPoints() {
+        return _nbPoints;
+    }
+
+    // bytes written so far
+    public long getNbBytes() {
+        return _nbBytes;
+    }
+
+    // size of the data records (file minus header and CRC) for nbPoints points
+    static long getDataSize(int nbPoints) {
+        return definitionSize(FILE_ID_FIELDS) + messageSize(FILE_ID_FIELDS)
+                + definitionSize(RECORD_FIELDS) + (long) nbPoints * messageSize(RECORD_FIELDS)
+                + definitionSize(LAP_FIELDS) + messageSize(LAP_FIELDS)
+                + definitionSize(SESSION_FIELDS) + messageSize(SESSION_FIELDS)
+                + definitionSize(ACTIVITY_FIELDS) + messageSize(ACTIVITY_FIELDS);
+    }
+
+    // FIT CRC-16, continuing crc
+    static int crc(int crc, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int b = bytes[i];
+            int tmp = CRC_TABLE[crc & 0xf];
+            crc = (crc >> 4) & 0x0fff;
+            crc = crc ^ tmp ^ CRC_TABLE[b & 0xf];
+            tmp = CRC_TABLE[crc & 0xf];
+            crc = (crc >> 4) & 0x0fff;
+            crc = crc ^ tmp ^ CRC_TABLE[(b >> 4) & 0xf];
+        }
+        return crc;
+    }
+
+    private static int definitionSize(int[][] fields) {
+        return 6 + 3 * fields.length;
+    }
+
+    private static int messageSize(int[][] fields) {
+        int size = 1;
+        for (int[] field : fields) {
+            size += field[1];
+        }
+        return size;
+    }
+
+    private void writeDefinition(int localType, int globalNumber, int[][] fields) throws IOException {
+        put8(0x40 | localType);
+        put8(0); // reserved
+        put8(0); // little endian
+        put16(globalNumber);
+        put8(fields.length);
+        for (int[] field : fields) {
+            put8(field[0]);
+            put8(field[1]);
+            put8(field[2]);
+        }
+        flushMessage();
+    }
+
+    // in s since FIT_EPOCH
+    private static long timestamp(long time) {
+        return Math.max(0, (time - FIT_EPOCH) / 1000);
+    }
+
+    // 2^31 semicircles = 180 degrees
+    private static long semicircles(double degrees) {
+        return Math.max(-Integer.MAX_VALUE, Math.min(Integer.MAX_VALUE, Math.round(degrees * (2147483648.0 / 180))));
+    }
+
+    private static int clamp(long value, int max) {
+        return (int) Math.max(0, Math.min(max, value));
+    }
+
+    private void put8(int value) {
+        _buffer[_length++] = (byte) value;
+    }
+
+    private void put16(int value) {
+        _buffer[_length++] = (byte) value;
+        _buffer[_length++] = (byte) (value >> 8);
+    }
+
+    private void put32(long value) {
+        _buffer[_length++] = (byte) value;
+        _buffer[_length++] = (byte) (value >> 8);
+        _buffer[_length++] = (byte) (value >> 16);
+        _buffer[_length++] = (byte) (value >> 24);
+    }
+
+    private void flushMessage() throws IOException {
+        _crc = crc(_crc, _buffer, 0, _length);
+        _out.write(_buffer, 0, _length);
+        _nbBytes += _length;
+        _length = 0;
+    }
+}
@@ -0,0 +1,137 @@
+package fr.jayps.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Streaming GPX encoder: each point is written straight to the underlying Writer,
+ * so memory usage doesn't depend on the track length.
+ *
+ * A new segment is started after a 2h gap between two points, a new track after a 12h gap.
+ */
+public class GpxWriter implements TrackPointSink {
+
+    static final long NEW_SEGMENT_DELTA_TIME = 2 * 3600 * 1000; // in ms
+    static final long NEW_TRACK_DELTA_TIME = 12 * 3600 * 1000; // in ms
+
+    private final Writer _out;
+    private final boolean _extended;
+    private final SimpleDateFormat _sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    private final Date _date = new Date();
+
+    private long _prevTime = -1;
+    private int _trackNumber = 0;
+    private int _nbPoints = 0;
+
+    public GpxWriter(Writer out, boolean extended) {
+        this._out = out;
+        this._extended = extended;
+    }
+
+    public void writeHeader(String creator) throws IOException {
+        _out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+                + "<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" xmlns:gpxtpx=\"http://www.garmin.com/xmlschemas/TrackPointExtension/v1\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" creator=\"");
+        _out.write(creator);
+        _out.write("\" version=\"1.1\" xsi:schemaLocation=\"http://www.topografix.com/GPX/1/1 http://www.topografix.com/GPX/1/1/gpx.xsd  http://www.garmin.com/xmlschemas/TrackPointExtensionv1.xsd\" xmlns:pb10=\"http://www.pebblebike.com/GPX/1/0/\">\n");
+    }
+
+    // hr and cad <= 0 if not available
+    @Override
+    public void writePoint(long time, double lat, double lon, double ele, float accuracy, double ascent, double eleGps, double elePressure, int hr, int cad) throws IOException {
+        if (_trackNumber == 0) {
+            _trackNumber = 1;
+            _out.write("<trk>\n<name>Track #1</name>\n<trkseg>\n");
+        } else if (_prevTime > 0 && time - _prevTime > NEW_TRACK_DELTA_TIME) {
+            // more than 12 hours since last point? create new track
+            _trackNumber++;
+            _out.write("</trkseg>\n</trk>\n<trk>\n<name>Track #");
+            _out.write(Integer.toString(_trackNumber));
+            _out.write("</name>\n<trkseg>\n");
+        } else if (_prevTime > 0 && time - _prevTime > NEW_SEGMENT_DELTA_TIME) {
+            // more than 2 hours since last point? create new segment
+            _out.write("</trkseg>\n<trkseg>\n");
+        }
+
+        _out.write("<trkpt lat=\"");
+        _out.write(formatDecimal(lat));
+        _out.write("\" lon=\"");
+        _out.write(formatDecimal(lon));
+        _out.write("\">\n  <ele>");
+        _out.write(formatDecimal(ele));
+        _out.write("</ele>\n  <time>");
+        _out.write(formatTime(time));
+        _out.write("</time>\n");
+        if (_extended || hr > 0 || cad > 0) {
+            _out.write("  <extensions>\n");
+            if (_extended) {
+                _out.write("    <pb10:accuracy>");
+                _out.write(formatDecimal(accuracy));
+                _out.write("</pb10:accuracy>\n    <pb10:ascent>");
+                _out.write(formatDecimal(ascent));
+                _out.write("</pb10:ascent>\n    <pb10:ele_gps>");
+                _out.write(formatDecimal(eleGps));
+                _out.write("</pb10:ele_gps>\n    <pb10:ele_pressure>");
+                _out.write(formatDecimal(elePressure));
+                _out.write("</pb10:ele_pressure>\n");
+            }
+            if (hr > 0 || cad > 0) {
+                _out.write("    <gpxtpx:TrackPointExtension>\n");
+                if (hr > 0) {
+                    _out.write("    <gpxtpx:hr>");
+                    _out.write(Integer.toString(hr));
+                    _out.write("</gpxtpx:hr>\n");
+                }
+                if (cad > 0) {
+                    _out.write("    <gpxtpx:cad>");
+                    _out.write(Integer.toString(cad));
+                    _out.write("</gpxtpx:cad>\n");
+                }
+                _out.write("    </gpxtpx:TrackPointExtension>\n");
+            }
+            _out.write("  </extensions>\n");
+        }
+        _out.write("</trkpt>\n");
+
+        _prevTime = time;
+        _nbPoints++;
+    }
+
+    public void writeFooter() throws IOException {
+        if (_trackNumber > 0) {
+            _out.write("</trkseg>\n</trk>\n");
+        }
+        _out.write("</gpx>\n");
+        _out.flush();
+    }
+
+    public int getNbPoints() {
+        return _nbPoints;
+    }
+
+    // plain decimal notation, xsd:decimal doesn't allow exponents (Double.toString(0.0001) is "1.0E-4")
+    public static String formatDecimal(double value) {
+        String s = Double.toString(value);
+        if (s.indexOf('E') >= 0) {
+            s = new BigDecimal(value).round(MathContext.DECIMAL64).stripTrailingZeros().toPlainString();
+        }
+        return s;
+    }
+    public static String formatDecimal(float value) {
+        String s = Float.toString(value);
+        if (s.indexOf('E') >= 0) {
+            s = new BigDecimal(Float.toString(value)).stripTrailingZeros().toPlainString();
+        }
+        return s;
+    }
+
+    private String formatTime(long time) {
+        _date.setTime(time);
+        String s = _sdf.format(_date);
+        // +0100 -> +01:00
+        return s.substring(0, s.length() - 2) + ':' + s.substring(s.length() - 2);
+    }
+}
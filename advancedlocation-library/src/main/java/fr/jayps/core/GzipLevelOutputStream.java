@@ -0,0 +1,30 @@
+package fr.jayps.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * GZIPOutputStream with a configurable compression level, that can be ended
+ * (trailer written and native deflater freed) without closing the underlying stream.
+ */
+public class GzipLevelOutputStream extends GZIPOutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192; // in bytes
+
+    // level from Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9), or Deflater.DEFAULT_COMPRESSION
+    public GzipLevelOutputStream(OutputStream out, int level, int bufferSize) throws IOException {
+        super(out, bufferSize);
+        def.setLevel(level);
+    }
+
+    // writes the remaining compressed data and the gzip trailer, the underlying stream stays open
+    // the deflater is freed even if the trailer can't be written
+    public void end() throws IOException {
+        try {
+            finish();
+        } finally {
+            def.end();
+        }
+    }
+}
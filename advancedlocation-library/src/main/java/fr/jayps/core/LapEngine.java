@@ -0,0 +1,322 @@
+package fr.jayps.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Incremental laps and splits, fed by TrackStatsEngine with each good fix, see TrackStatsEngine.setLapEngine().
+ *
+ * Laps are cut every lapLength m (DISTANCE, e.g. km splits), every lapLength ms of elapsed time (TIME),
+ * when coming back within radius m of a lap position (POSITION), or by lap() (MANUAL and any mode).
+ * Distance, elapsed time, ascent and number of ascents of a lap are differences of the engine stats,
+ * so they follow the same filtering rules (_minSpeedToComputeStats, ascent thresholds).
+ * Laps are stored in primitive arrays: lap i, from 0 to getNbLaps() (the lap in progress), is read in O(1).
+ */
+public class LapEngine {
+
+    // modes
+    public static final int MANUAL = 0;
+    public static final int DISTANCE = 1;
+    public static final int TIME = 2;
+    public static final int POSITION = 3;
+
+    // called on the thread feeding the engine, when lap is completed
+    public interface Listener {
+        void onLap(LapEngine laps, int lap);
+    }
+
+    private final int _mode;
+    private final double _lapLength; // in m (DISTANCE) or ms (TIME)
+    private final double _lapLatitude;
+    private final double _lapLongitude;
+    private final double _lapRadius; // in m
+    private Listener _listener = null;
+
+    private int _nbLaps = 0; // completed laps, the lap in progress is _nbLaps
+    private boolean _started = false;
+    private double _nextBoundary = 0; // in m or ms
+    private boolean _armed = false; // POSITION: went away from the lap position since the last lap
+
+    // engine stats at the start of the lap in progress
+    private float _startDistance = 0;
+    private long _startElapsedTime = 0;
+    private double _startAscent = 0;
+    private int _startNbAscent = 0;
+
+    // laps
+    private long[] _startTime = new long[16]; // in ms
+    private long[] _endTime = new long[16]; // in ms
+    private long[] _elapsedTime = new long[16]; // in ms
+    private float[] _distance = new float[16]; // in m
+    private double[] _ascent = new double[16]; // in m
+    private float[] _maxSpeed = new float[16]; // in m/s
+    private int[] _nbAscent = new int[16];
+    private long[] _hrSum = new long[16];
+    private int[] _hrNb = new int[16];
+    private long[] _cadSum = new long[16];
+    private int[] _cadNb = new int[16];
+
+    // MANUAL laps
+    public LapEngine() {
+        this(MANUAL, 0, 0, 0, 0);
+    }
+
+    // DISTANCE (lapLength in m) or TIME (lapLength in ms) laps
+    public LapEngine(int mode, double lapLength) {
+        this(mode, lapLength, 0, 0, 0);
+    }
+
+    // POSITION laps: a lap ends each time the track comes back within radius m of (latitude, longitude)
+    public LapEngine(double latitude, double longitude, double radius) {
+        this(POSITION, 0, latitude, longitude, radius);
+    }
+
+    private LapEngine(int mode, double lapLength, double latitude, double longitude, double radius) {
+        this._mode = mode;
+        this._lapLength = lapLength;
+        this._lapLatitude = latitude;
+        this._lapLongitude = longitude;
+        this._lapRadius = radius;
+        this._nextBoundary = lapLength;
+    }
+
+    public void setListener(Listener listener) {
+        this._listener = listener;
+    }
+
+    public int getMode() {
+        return _mode;
+    }
+
+    // number of completed laps, also the index of the lap in progress
+    public int getNbLaps() {
+        return _nbLaps;
+    }
+
+    // lap from 0 to getNbLaps()
+
+    public long getStartTime(int lap) {
+        return _startTime[lap];
+    }
+
+    public long getEndTime(int lap) {
+        return _endTime[lap];
+    }
+
+    public long getElapsedTime(int lap) {
+        return _elapsedTime[lap];
+    }
+
+    public float getDistance(int lap) {
+        return _distance[lap];
+    }
+
+    public double getAscent(int lap) {
+        return _ascent[lap];
+    }
+
+    public float getMaxSpeed(int lap) {
+        return _maxSpeed[lap];
+    }
+
+    public int getNbAscent(int lap) {
+        return _nbAscent[lap];
+    }
+
+    // in m/s
+    public float getAverageSpeed(int lap) {
+        return _elapsedTime[lap] > 0 ? _distance[lap] / (_elapsedTime[lap] / 1000f) : 0;
+    }
+
+    // average of the available values, 0 if none
+    public float getHeartRate(int lap) {
+        return _hrNb[lap] > 0 ? (float) _hrSum[lap] / _hrNb[lap] : 0;
+    }
+
+    // average of the available values, 0 if none
+    public float getCadence(int lap) {
+        return _cadNb[lap] > 0 ? (float) _cadSum[lap] / _cadNb[lap] : 0;
+    }
+
+    // ends the lap in progress at its last fix
+    public void lap() {
+        if (!_started) {
+            return;
+        }
+        int lap = _nbLaps;
+        _nbLaps++;
+        ensureCapacity(_nbLaps + 1);
+        resetLap(_nbLaps, _endTime[lap]);
+        _startDistance += _distance[lap];
+        _startElapsedTime += _elapsedTime[lap];
+        _startAscent += _ascent[lap];
+        _startNbAscent += _nbAscent[lap];
+        if (_listener != null) {
+            _listener.onLap(this, lap);
+        }
+    }
+
+    // restarts from an empty first lap
+    public void clear() {
+        resetLap(0, 0);
+        _nbLaps = 0;
+        _started = false;
+        _nextBoundary = _lapLength;
+        _armed = false;
+    }
+
+    // laps and lap in progress, see EngineCheckpoint
+    void writeState(DataOutput out) throws IOException {
+        out.writeInt(_mode);
+        out.writeDouble(_lapLength);
+        out.writeDouble(_lapLatitude);
+        out.writeDouble(_lapLongitude);
+        out.writeDouble(_lapRadius);
+        out.writeInt(_nbLaps);
+        out.writeBoolean(_started);
+        out.writeDouble(_nextBoundary);
+        out.writeBoolean(_armed);
+        out.writeFloat(_startDistance);
+        out.writeLong(_startElapsedTime);
+        out.writeDouble(_startAscent);
+        out.writeInt(_startNbAscent);
+        for (int i = 0; i <= _nbLaps; i++) {
+            out.writeLong(_startTime[i]);
+            out.writeLong(_endTime[i]);
+            out.writeLong(_elapsedTime[i]);
+            out.writeFloat(_distance[i]);
+            out.writeDouble(_ascent[i]);
+            out.writeFloat(_maxSpeed[i]);
+            out.writeInt(_nbAscent[i]);
+            out.writeLong(_hrSum[i]);
+            out.writeInt(_hrNb[i]);
+            out.writeLong(_cadSum[i]);
+            out.writeInt(_cadNb[i]);
+        }
+    }
+
+    // state written by writeState(), returns false (unchanged) if it comes from laps of another mode or length
+    boolean readState(DataInput in) throws IOException {
+        if (in.readInt() != _mode || in.readDouble() != _lapLength
+                || in.readDouble() != _lapLatitude || in.readDouble() != _lapLongitude || in.readDouble() != _lapRadius) {
+            return false;
+        }
+        int nbLaps = in.readInt();
+        if (nbLaps < 0) {
+            throw new IOException("Invalid number of laps " + nbLaps);
+        }
+        ensureCapacity(nbLaps + 1);
+        _nbLaps = nbLaps;
+        _started = in.readBoolean();
+        _nextBoundary = in.readDouble();
+        _armed = in.readBoolean();
+        _startDistance = in.readFloat();
+        _startElapsedTime = in.readLong();
+        _startAscent = in.readDouble();
+        _startNbAscent = in.readInt();
+        for (int i = 0; i <= _nbLaps; i++) {
+            _startTime[i] = in.readLong();
+            _endTime[i] = in.readLong();
+            _elapsedTime[i] = in.readLong();
+            _distance[i] = in.readFloat();
+            _ascent[i] = in.readDouble();
+            _maxSpeed[i] = in.readFloat();
+            _nbAscent[i] = in.readInt();
+            _hrSum[i] = in.readLong();
+            _hrNb[i] = in.readInt();
+            _cadSum[i] = in.readLong();
+            _cadNb[i] = in.readInt();
+        }
+        return true;
+    }
+
+    // called by TrackStatsEngine with its stats after each good fix
+    void onFix(long time, double latitude, double longitude, float accuracy, float speed, float distance, long elapsedTime, double ascent, int nbAscent, int heartRate, int cadence) {
+        int i = _nbLaps;
+        if (!_started) {
+            _started = true;
+            resetLap(i, time);
+            _startDistance = distance;
+            _startElapsedTime = elapsedTime;
+            _startAscent = ascent;
+            _startNbAscent = nbAscent;
+            _nextBoundary = (_mode == DISTANCE ? distance : elapsedTime) + _lapLength;
+        }
+        _endTime[i] = time;
+        _distance[i] = distance - _startDistance;
+        _elapsedTime[i] = elapsedTime - _startElapsedTime;
+        _ascent[i] = ascent - _startAscent;
+        _nbAscent[i] = nbAscent - _startNbAscent;
+        if (accuracy < TrackStatsEngine.MAX_ACCURACY_FOR_MAX_SPEED) {
+            _maxSpeed[i] = Math.max(_maxSpeed[i], speed);
+        }
+        if (heartRate > 0) {
+            _hrSum[i] += heartRate;
+            _hrNb[i]++;
+        }
+        if (cadence > 0) {
+            _cadSum[i] += cadence;
+            _cadNb[i]++;
+        }
+
+        switch (_mode) {
+            case DISTANCE:
+            case TIME:
+                double position = _mode == DISTANCE ? distance : elapsedTime;
+                if (_lapLength > 0 && position >= _nextBoundary) {
+                    // boundaries stay multiples of _lapLength (e.g. km splits)
+                    while (_nextBoundary <= position) {
+                        _nextBoundary += _lapLength;
+                    }
+                    lap();
+                }
+                break;
+            case POSITION:
+                double d = Distance.equirectangular(_lapLatitude, _lapLongitude, latitude, longitude);
+                if (d <= _lapRadius) {
+                    if (_armed) {
+                        _armed = false;
+                        lap();
+                    }
+                } else if (d > 2 * _lapRadius) {
+                    // hysteresis: GPS noise around the radius doesn't cut laps
+                    _armed = true;
+                }
+                break;
+        }
+    }
+
+    private void resetLap(int i, long time) {
+        _startTime[i] = _endTime[i] = time;
+        _elapsedTime[i] = 0;
+        _distance[i] = 0;
+        _ascent[i] = 0;
+        _maxSpeed[i] = 0;
+        _nbAscent[i] = 0;
+        _hrSum[i] = _cadSum[i] = 0;
+        _hrNb[i] = _cadNb[i] = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= _startTime.length) {
+            return;
+        }
+        int n = 2 * _startTime.length;
+        while (n < capacity) {
+            n *= 2;
+        }
+        _startTime = Arrays.copyOf(_startTime, n);
+        _endTime = Arrays.copyOf(_endTime, n);
+        _elapsedTime = Arrays.copyOf(_elapsedTime, n);
+        _distance = Arrays.copyOf(_distance, n);
+        _ascent = Arrays.copyOf(_ascent, n);
+        _maxSpeed = Arrays.copyOf(_maxSpeed, n);
+        _nbAscent = Arrays.copyOf(_nbAscent, n);
+        _hrSum = Arrays.copyOf(_hrSum, n);
+        _hrNb = Arrays.copyOf(_hrNb, n);
+        _cadSum = Arrays.copyOf(_cadSum, n);
+        _cadNb = Arrays.copyOf(_cadNb, n);
+    }
+}
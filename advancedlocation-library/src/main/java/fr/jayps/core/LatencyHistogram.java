@@ -0,0 +1,141 @@
+package fr.jayps.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of durations in ns (HdrHistogram-like), e.g. the processing time of a fix.
+ *
+ * Each power of two is split in 32 linear sub-buckets, so a recorded value is known within 1/32 (~3%)
+ * from 1ns to ~146 years, with a fixed array of 1888 counters. record() is thread-safe, lock-free
+ * and doesn't allocate; getSnapshot() copies the counters.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS; // 32
+    private static final int NB_BUCKETS = (64 - SUB_BITS) * SUB_COUNT; // 1888, up to 2^63
+
+    // percentiles of the snapshots, in ns
+    public static class Snapshot {
+        public final long count;
+        public final long min;
+        public final long max;
+        public final double mean;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long p999;
+
+        Snapshot(long count, long min, long max, double mean, long p50, long p90, long p99, long p999) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+        }
+
+        @Override
+        public String toString() {
+            // in us
+            return "count=" + count
+                    + " min=" + min / 1000 + " p50=" + p50 / 1000 + " p90=" + p90 / 1000
+                    + " p99=" + p99 / 1000 + " p99.9=" + p999 / 1000 + " max=" + max / 1000
+                    + " mean=" + (long) (mean / 1000) + " (us)";
+        }
+    }
+
+    private final AtomicLongArray _counts = new AtomicLongArray(NB_BUCKETS);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong _max = new AtomicLong(0);
+
+    // value in ns, negative values count as 0
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        _counts.incrementAndGet(index(value));
+        _count.incrementAndGet();
+        _sum.addAndGet(value);
+        long min;
+        while (value < (min = _min.get()) && !_min.compareAndSet(min, value)) {
+        }
+        long max;
+        while (value > (max = _max.get()) && !_max.compareAndSet(max, value)) {
+        }
+    }
+
+    // records the time elapsed since start, a System.nanoTime() value
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            _counts.set(i, 0);
+        }
+        _count.set(0);
+        _sum.set(0);
+        _min.set(Long.MAX_VALUE);
+        _max.set(0);
+    }
+
+    // not atomic with concurrent record() calls, each counter is consistent
+    public Snapshot getSnapshot() {
+        long[] counts = new long[NB_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            counts[i] = _counts.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        long min = _min.get();
+        long max = _max.get();
+        return new Snapshot(count, min, max, (double) _sum.get() / _count.get(),
+                percentile(counts, count, 50, min, max),
+                percentile(counts, count, 90, min, max),
+                percentile(counts, count, 99, min, max),
+                percentile(counts, count, 99.9, min, max));
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    // highest value of the bucket
+    static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index >> SUB_BITS) - 1;
+        long lowest = (long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private static long percentile(long[] counts, long count, double percentile, long min, long max) {
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulated += counts[i];
+            if (cumulated >= target) {
+                return Math.max(min, Math.min(max, highestValue(i)));
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,137 @@
+package fr.jayps.core;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named performance metrics: latency histograms, counters and gauges.
+ *
+ * Metrics are created once (by name) and kept in fields, so that recording on the hot path
+ * is a lock-free update without allocation. getSnapshot() reads all of them, report() gives
+ * a snapshot to the registered reporters (logcat, file, analytics...), e.g. on a timer.
+ */
+public class MetricsRegistry {
+
+    // value read when taking a snapshot
+    public interface Gauge {
+        double getValue();
+    }
+
+    public interface Reporter {
+        void report(Snapshot snapshot);
+    }
+
+    // metrics sorted by name
+    public static class Snapshot {
+        public final long time; // in ms
+        public final Map<String, LatencyHistogram.Snapshot> histograms;
+        public final Map<String, Long> counters;
+        public final Map<String, Double> gauges;
+
+        Snapshot(long time, Map<String, LatencyHistogram.Snapshot> histograms, Map<String, Long> counters, Map<String, Double> gauges) {
+            this.time = time;
+            this.histograms = Collections.unmodifiableMap(histograms);
+            this.counters = Collections.unmodifiableMap(counters);
+            this.gauges = Collections.unmodifiableMap(gauges);
+        }
+
+        // one metric per line
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, LatencyHistogram.Snapshot> entry : histograms.entrySet()) {
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Double> entry : gauges.entrySet()) {
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    private final ConcurrentHashMap<String, LatencyHistogram> _histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, AtomicLong> _counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, Gauge> _gauges = new ConcurrentHashMap<String, Gauge>();
+    private final CopyOnWriteArrayList<Reporter> _reporters = new CopyOnWriteArrayList<Reporter>();
+
+    // the histogram with this name, created if needed
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = _histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram previous = _histograms.putIfAbsent(name, histogram = new LatencyHistogram());
+            if (previous != null) {
+                histogram = previous;
+            }
+        }
+        return histogram;
+    }
+
+    // the counter with this name, created if needed
+    public AtomicLong counter(String name) {
+        AtomicLong counter = _counters.get(name);
+        if (counter == null) {
+            AtomicLong previous = _counters.putIfAbsent(name, counter = new AtomicLong());
+            if (previous != null) {
+                counter = previous;
+            }
+        }
+        return counter;
+    }
+
+    // replaces the gauge with this name
+    public void gauge(String name, Gauge gauge) {
+        _gauges.put(name, gauge);
+    }
+
+    public void addReporter(Reporter reporter) {
+        _reporters.add(reporter);
+    }
+
+    public void removeReporter(Reporter reporter) {
+        _reporters.remove(reporter);
+    }
+
+    public Snapshot getSnapshot() {
+        Map<String, LatencyHistogram.Snapshot> histograms = new TreeMap<String, LatencyHistogram.Snapshot>();
+        for (Map.Entry<String, LatencyHistogram> entry : _histograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().getSnapshot());
+        }
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : _counters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, Double> gauges = new TreeMap<String, Double>();
+        for (Map.Entry<String, Gauge> entry : _gauges.entrySet()) {
+            gauges.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return new Snapshot(System.currentTimeMillis(), histograms, counters, gauges);
+    }
+
+    // gives a snapshot to the reporters, on the calling thread
+    public void report() {
+        if (_reporters.isEmpty()) {
+            return;
+        }
+        Snapshot snapshot = getSnapshot();
+        for (Reporter reporter : _reporters) {
+            reporter.report(snapshot);
+        }
+    }
+
+    // resets the histograms and counters, e.g. after report() for per-interval metrics
+    public void reset() {
+        for (LatencyHistogram histogram : _histograms.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : _counters.values()) {
+            counter.set(0);
+        }
+    }
+}
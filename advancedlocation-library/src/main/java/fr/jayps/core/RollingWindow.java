@@ -0,0 +1,164 @@
+package fr.jayps.core;
+
+/**
+ * Statistics over the last length ms (TIME) or m (DISTANCE): speed, vertical speed, heart rate and cadence,
+ * e.g. "last 30s", "last 5min" or "last 1km", see TrackStatsEngine.addRollingWindow().
+ *
+ * Samples are kept in primitive ring buffers with running sums, so adding a sample costs O(1)
+ * (amortized, evictions included) whatever the length, without allocation.
+ * The oldest sample kept is the last one at or before the start of the window, so that the window
+ * spans its whole length once enough samples have been added. If the buffer is full (e.g. a distance window
+ * while stopped), the oldest samples are dropped and the window is shorter.
+ */
+public class RollingWindow {
+
+    // modes
+    public static final int TIME = 0;
+    public static final int DISTANCE = 1;
+
+    public static final int DEFAULT_CAPACITY = 4096; // in samples
+
+    private final int _mode;
+    private final double _length; // in ms or m
+    private final int _capacity;
+
+    // samples (ring buffer)
+    private final long[] _time; // in ms
+    private final float[] _distance; // in m, since the start of the track
+    private final double[] _altitude; // in m
+    private final int[] _hr; // 0 if not available
+    private final int[] _cad; // 0 if not available
+    private int _head = 0;
+    private int _size = 0;
+
+    // running sums over the samples in the window
+    private long _hrSum = 0;
+    private int _hrNb = 0;
+    private long _cadSum = 0;
+    private int _cadNb = 0;
+
+    public RollingWindow(int mode, double length) {
+        this(mode, length, mode == TIME ? (int) Math.min(DEFAULT_CAPACITY, length / 500 + 2) : DEFAULT_CAPACITY);
+    }
+
+    // length in ms (TIME) or in m (DISTANCE)
+    public RollingWindow(int mode, double length, int capacity) {
+        this._mode = mode;
+        this._length = length;
+        this._capacity = Math.max(2, capacity);
+        _time = new long[_capacity];
+        _distance = new float[_capacity];
+        _altitude = new double[_capacity];
+        _hr = new int[_capacity];
+        _cad = new int[_capacity];
+    }
+
+    public int getMode() {
+        return _mode;
+    }
+
+    public double getLength() {
+        return _length;
+    }
+
+    // distance since the start of the track in m, heartRate and cadence <= 0 if not available
+    public void add(long time, float distance, double altitude, int heartRate, int cadence) {
+        if (_size == _capacity) {
+            evictHead();
+        }
+        int i = (_head + _size) % _capacity;
+        _time[i] = time;
+        _distance[i] = distance;
+        _altitude[i] = altitude;
+        _hr[i] = Math.max(heartRate, 0);
+        _cad[i] = Math.max(cadence, 0);
+        _size++;
+        if (heartRate > 0) {
+            _hrSum += heartRate;
+            _hrNb++;
+        }
+        if (cadence > 0) {
+            _cadSum += cadence;
+            _cadNb++;
+        }
+
+        // evict the head while the next sample is at or before the start of the window
+        while (_size > 1) {
+            int next = (_head + 1) % _capacity;
+            double start = _mode == TIME ? time - _length : distance - _length;
+            double nextPosition = _mode == TIME ? _time[next] : _distance[next];
+            if (nextPosition > start) {
+                break;
+            }
+            evictHead();
+        }
+    }
+
+    public void clear() {
+        _head = 0;
+        _size = 0;
+        _hrSum = _cadSum = 0;
+        _hrNb = _cadNb = 0;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    // true once the samples span the whole length
+    public boolean isComplete() {
+        if (_size < 2) {
+            return false;
+        }
+        return (_mode == TIME ? getDuration() : getDistance()) >= _length;
+    }
+
+    // in ms
+    public long getDuration() {
+        return _size > 1 ? _time[last()] - _time[_head] : 0;
+    }
+
+    // in m
+    public float getDistance() {
+        return _size > 1 ? _distance[last()] - _distance[_head] : 0;
+    }
+
+    // in m/s
+    public float getSpeed() {
+        long duration = getDuration();
+        return duration > 0 ? getDistance() / (duration / 1000f) : 0;
+    }
+
+    // in m/s
+    public float getVerticalSpeed() {
+        long duration = getDuration();
+        return duration > 0 ? (float) ((_altitude[last()] - _altitude[_head]) / (duration / 1000.0)) : 0;
+    }
+
+    // average of the available values, 0 if none
+    public float getHeartRate() {
+        return _hrNb > 0 ? (float) _hrSum / _hrNb : 0;
+    }
+
+    // average of the available values, 0 if none
+    public float getCadence() {
+        return _cadNb > 0 ? (float) _cadSum / _cadNb : 0;
+    }
+
+    private int last() {
+        return (_head + _size - 1) % _capacity;
+    }
+
+    private void evictHead() {
+        if (_hr[_head] > 0) {
+            _hrSum -= _hr[_head];
+            _hrNb--;
+        }
+        if (_cad[_head] > 0) {
+            _cadSum -= _cad[_head];
+            _cadNb--;
+        }
+        _head = (_head + 1) % _capacity;
+        _size--;
+    }
+}
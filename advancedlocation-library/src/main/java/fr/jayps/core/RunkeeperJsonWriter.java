@@ -0,0 +1,125 @@
+package fr.jayps.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Streaming Runkeeper json encoder, in a single pass.
+ *
+ * Path points are written straight to the underlying Writer. The heart_rate array
+ * comes after the path in the document, so it's buffered in a compact int array
+ * (8 bytes per value) and written by writeFooter().
+ */
+public class RunkeeperJsonWriter implements TrackPointSink {
+
+    private final Writer _out;
+
+    private long _firstTime = -1;
+    // last point, written once we know if it's the last one ("end") or not ("gps")
+    private boolean _hasPendingPoint = false;
+    private long _pendingTimestamp = 0; // in s
+    private double _pendingAltitude = 0;
+    private double _pendingLongitude = 0;
+    private double _pendingLatitude = 0;
+
+    // heart rate buffer: timestamp (in s), heart rate, timestamp, heart rate...
+    private int[] _hr = new int[256];
+    private int _hrSize = 0;
+
+    public RunkeeperJsonWriter(Writer out) {
+        this._out = out;
+    }
+
+    public void writeHeader(String type, String notes, long duration) throws IOException {
+        _out.write("{\"type\": \"");
+        _out.write(type);
+        _out.write("\", \"notes\": \"");
+        _out.write(notes);
+        _out.write("\", \"duration\": ");
+        _out.write(Long.toString(duration));
+        _out.write(",");
+    }
+
+    // only time, position, altitude and heart rate are exported
+    @Override
+    public void writePoint(long time, double lat, double lon, double ele, float accuracy, double ascent, double eleGps, double elePressure, int hr, int cad) throws IOException {
+        writePoint(time, ele, lon, lat, hr);
+    }
+
+    // hr <= 0 if not available
+    public void writePoint(long time, double altitude, double longitude, double latitude, int hr) throws IOException {
+        long deltaTime = time - _firstTime;
+
+        if (_hasPendingPoint) {
+            _out.write(",");
+            writePendingPoint("gps");
+        }
+        _pendingTimestamp = deltaTime / 1000;
+        _pendingAltitude = altitude;
+        _pendingLongitude = longitude;
+        _pendingLatitude = latitude;
+        _hasPendingPoint = true;
+
+        if (_firstTime < 0) {
+            _firstTime = time;
+            SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss", Locale.ENGLISH);
+            _out.write("\"start_time\": \"");
+            _out.write(sdf.format(new Date(time)));
+            _out.write("\", \"path\": [");
+            writePendingPoint("start");
+            _hasPendingPoint = false;
+        }
+
+        if (hr > 0) {
+            if (_hrSize + 2 > _hr.length) {
+                _hr = Arrays.copyOf(_hr, 2 * _hr.length);
+            }
+            _hr[_hrSize++] = (int) (deltaTime / 1000);
+            _hr[_hrSize++] = hr;
+        }
+    }
+
+    public void writeFooter() throws IOException {
+        if (_firstTime >= 0) {
+            if (_hasPendingPoint) {
+                _out.write(",");
+                writePendingPoint("end");
+            }
+            _out.write("]");
+        }
+        if (_hrSize > 0) {
+            _out.write(", \"heart_rate\": [");
+            for (int i = 0; i < _hrSize; i += 2) {
+                if (i > 0) {
+                    _out.write(",");
+                }
+                _out.write("{\"timestamp\":");
+                _out.write(Integer.toString(_hr[i]));
+                _out.write(", \"heart_rate\":");
+                _out.write(Integer.toString(_hr[i + 1]));
+                _out.write("}");
+            }
+            _out.write("]");
+        }
+        _out.write("}");
+        _out.flush();
+    }
+
+    private void writePendingPoint(String type) throws IOException {
+        _out.write("{\"timestamp\": ");
+        _out.write(Long.toString(_pendingTimestamp));
+        _out.write(",\"altitude\": ");
+        _out.write(GpxWriter.formatDecimal(_pendingAltitude));
+        _out.write(",\"longitude\":");
+        _out.write(GpxWriter.formatDecimal(_pendingLongitude));
+        _out.write(",\"latitude\":");
+        _out.write(GpxWriter.formatDecimal(_pendingLatitude));
+        _out.write(", \"type\": \"");
+        _out.write(type);
+        _out.write("\"}");
+    }
+}
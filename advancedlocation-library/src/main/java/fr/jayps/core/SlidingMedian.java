@@ -0,0 +1,265 @@
+package fr.jayps.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Median of the last `window` values, updated in O(log window) per value, without allocation.
+ *
+ * The values are kept in a ring buffer and split between two indexed heaps:
+ * a max-heap with the size/2 smallest values and a min-heap with the others,
+ * so the median (upper median if size is even, i.e. sorted[size / 2]) is the top of the min-heap.
+ * Each slot of the ring buffer knows its position in the heaps, so the oldest value
+ * can be replaced in place.
+ */
+public class SlidingMedian {
+
+    private final int _window;
+    private final double[] _values;  // ring buffer
+    private final int[] _low;        // max-heap of slots
+    private final int[] _high;       // min-heap of slots
+    private final int[] _position;   // slot -> index in _high if >= 0, ~index in _low otherwise
+    private int _lowSize = 0;
+    private int _highSize = 0;
+    private int _next = 0;           // next slot to (over)write
+    private long _count = 0;         // number of values added since clear()
+
+    public SlidingMedian(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be >= 1: " + window);
+        }
+        this._window = window;
+        this._values = new double[window];
+        this._low = new int[window / 2 + 1];
+        this._high = new int[window - window / 2 + 1];
+        this._position = new int[window];
+    }
+
+    public int getWindow() {
+        return _window;
+    }
+
+    // number of values in the window
+    public int size() {
+        return _lowSize + _highSize;
+    }
+
+    // number of values added since clear()
+    public long getCount() {
+        return _count;
+    }
+
+    // 0 if empty
+    public double getMedian() {
+        return _highSize > 0 ? _values[_high[0]] : 0;
+    }
+
+    public void clear() {
+        _lowSize = 0;
+        _highSize = 0;
+        _next = 0;
+        _count = 0;
+    }
+
+    // count and values of the window, oldest first, see TrackStatsEngine.writeState()
+    void writeState(DataOutput out) throws IOException {
+        int n = size();
+        out.writeLong(_count);
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(_values[(_next - n + i + _window) % _window]);
+        }
+    }
+
+    // values written by writeState(), the oldest ones are dropped if the window is smaller
+    void readState(DataInput in) throws IOException {
+        clear();
+        long count = in.readLong();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            add(in.readDouble());
+        }
+        _count = count;
+    }
+
+    // adds a value, removing the oldest one if the window is full, and returns the median
+    public double add(double value) {
+        int slot = _next;
+        _next = (_next + 1) % _window;
+        _count++;
+        _values[slot] = value;
+
+        if (size() < _window) {
+            if (_highSize > 0 && value < _values[_high[0]]) {
+                _low[_lowSize] = slot;
+                _position[slot] = ~_lowSize;
+                _lowSize++;
+                siftUpLow(_lowSize - 1);
+            } else {
+                _high[_highSize] = slot;
+                _position[slot] = _highSize;
+                _highSize++;
+                siftUpHigh(_highSize - 1);
+            }
+            // keep size / 2 values in _low
+            int target = size() / 2;
+            if (_lowSize > target) {
+                pushHigh(popLow());
+            } else if (_lowSize < target) {
+                pushLow(popHigh());
+            }
+            return getMedian();
+        }
+
+        // window full: the oldest value is in this slot, it has been replaced
+        int p = _position[slot];
+        if (p >= 0) {
+            siftHigh(p);
+        } else {
+            siftLow(~p);
+        }
+        if (_lowSize > 0 && _values[_low[0]] > _values[_high[0]]) {
+            // swap the tops of the 2 heaps
+            int l = _low[0];
+            int h = _high[0];
+            _low[0] = h;
+            _position[h] = ~0;
+            _high[0] = l;
+            _position[l] = 0;
+            siftDownLow(0);
+            siftDownHigh(0);
+        }
+        return getMedian();
+    }
+
+    private int popLow() {
+        int slot = _low[0];
+        _lowSize--;
+        if (_lowSize > 0) {
+            _low[0] = _low[_lowSize];
+            _position[_low[0]] = ~0;
+            siftDownLow(0);
+        }
+        return slot;
+    }
+
+    private int popHigh() {
+        int slot = _high[0];
+        _highSize--;
+        if (_highSize > 0) {
+            _high[0] = _high[_highSize];
+            _position[_high[0]] = 0;
+            siftDownHigh(0);
+        }
+        return slot;
+    }
+
+    private void pushLow(int slot) {
+        _low[_lowSize] = slot;
+        _position[slot] = ~_lowSize;
+        _lowSize++;
+        siftUpLow(_lowSize - 1);
+    }
+
+    private void pushHigh(int slot) {
+        _high[_highSize] = slot;
+        _position[slot] = _highSize;
+        _highSize++;
+        siftUpHigh(_highSize - 1);
+    }
+
+    private void siftLow(int i) {
+        if (i > 0 && _values[_low[i]] > _values[_low[(i - 1) / 2]]) {
+            siftUpLow(i);
+        } else {
+            siftDownLow(i);
+        }
+    }
+
+    private void siftHigh(int i) {
+        if (i > 0 && _values[_high[i]] < _values[_high[(i - 1) / 2]]) {
+            siftUpHigh(i);
+        } else {
+            siftDownHigh(i);
+        }
+    }
+
+    // max-heap
+    private void siftUpLow(int i) {
+        int slot = _low[i];
+        double value = _values[slot];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (_values[_low[parent]] >= value) {
+                break;
+            }
+            _low[i] = _low[parent];
+            _position[_low[i]] = ~i;
+            i = parent;
+        }
+        _low[i] = slot;
+        _position[slot] = ~i;
+    }
+
+    private void siftDownLow(int i) {
+        int slot = _low[i];
+        double value = _values[slot];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= _lowSize) {
+                break;
+            }
+            if (child + 1 < _lowSize && _values[_low[child + 1]] > _values[_low[child]]) {
+                child++;
+            }
+            if (_values[_low[child]] <= value) {
+                break;
+            }
+            _low[i] = _low[child];
+            _position[_low[i]] = ~i;
+            i = child;
+        }
+        _low[i] = slot;
+        _position[slot] = ~i;
+    }
+
+    // min-heap
+    private void siftUpHigh(int i) {
+        int slot = _high[i];
+        double value = _values[slot];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (_values[_high[parent]] <= value) {
+                break;
+            }
+            _high[i] = _high[parent];
+            _position[_high[i]] = i;
+            i = parent;
+        }
+        _high[i] = slot;
+        _position[slot] = i;
+    }
+
+    private void siftDownHigh(int i) {
+        int slot = _high[i];
+        double value = _values[slot];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= _highSize) {
+                break;
+            }
+            if (child + 1 < _highSize && _values[_high[child + 1]] < _values[_high[child]]) {
+                child++;
+            }
+            if (_values[_high[child]] >= value) {
+                break;
+            }
+            _high[i] = _high[child];
+            _position[_high[i]] = i;
+            i = child;
+        }
+        _high[i] = slot;
+        _position[slot] = i;
+    }
+}
@@ -0,0 +1,10 @@
+package fr.jayps.core;
+
+/**
+ * Receives the statistics of a TrackStatsEngine when they change, see TrackStatsEngine.addStatsListener().
+ */
+public interface StatsListener {
+
+    // called on the executor given at registration, with the latest snapshot
+    void onStatsChanged(StatsSnapshot snapshot);
+}
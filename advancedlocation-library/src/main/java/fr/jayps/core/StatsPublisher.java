@@ -0,0 +1,93 @@
+package fr.jayps.core;
+
+/**
+ * Seqlock publishing the statistics of a TrackStatsEngine to the other threads.
+ *
+ * The engine thread (the only writer) makes the sequence odd, updates the fields in place and
+ * makes the sequence even again, so publishing doesn't allocate anything. A reader copies the
+ * fields to a StatsSnapshot and retries if the sequence was odd or has changed meanwhile.
+ * Fields are volatile, so that the writes can't be reordered around the sequence updates.
+ * The last read snapshot is cached, readers polling faster than the fixes don't allocate either.
+ */
+final class StatsPublisher {
+
+    private volatile int _sequence = 0;
+    private volatile StatsSnapshot _last = null;
+
+    volatile boolean hasLocation;
+    volatile long time;
+    volatile double latitude;
+    volatile double longitude;
+    volatile double altitude;
+    volatile double altitudeFromGps;
+    volatile double altitudeFromPressure;
+    volatile double goodAltitude;
+    volatile float accuracy;
+    volatile float altitudeAccuracy;
+    volatile float speed;
+    volatile float averageSpeed;
+    volatile float maxSpeed;
+    volatile float distance;
+    volatile double ascent;
+    volatile float ascentRate;
+    volatile float slope;
+    volatile int nbAscent;
+    volatile long elapsedTime;
+    volatile boolean hasBearing;
+    volatile float bearing;
+    volatile int heartRate;
+    volatile int cadence;
+    volatile int nbFixes;
+    volatile int nbGoodFixes;
+
+    // engine thread only
+    void publish(TrackStatsEngine engine) {
+        _sequence++;
+        hasLocation = engine.hasLocation();
+        time = engine.getTime();
+        latitude = engine.getLatitude();
+        longitude = engine.getLongitude();
+        altitude = engine.getAltitude();
+        altitudeFromGps = engine.getAltitudeFromGps();
+        altitudeFromPressure = engine.getAltitudeFromPressure();
+        goodAltitude = engine.getGoodAltitude();
+        accuracy = engine.getAccuracy();
+        altitudeAccuracy = engine.getAltitudeAccuracy();
+        speed = engine._currentSpeed();
+        averageSpeed = engine._currentAverageSpeed();
+        maxSpeed = engine.getMaxSpeed();
+        distance = engine.getDistance();
+        ascent = engine.getAscent();
+        ascentRate = engine.getAscentRate();
+        slope = engine.getSlope();
+        nbAscent = engine.getNbAscent();
+        elapsedTime = engine.getElapsedTime();
+        hasBearing = engine.hasBearing();
+        bearing = engine.getBearing();
+        heartRate = engine.getHeartRate();
+        cadence = engine.getCadence();
+        nbFixes = engine.getNbFixes();
+        nbGoodFixes = engine.getNbGoodFixes();
+        _sequence++;
+    }
+
+    // any thread
+    StatsSnapshot read() {
+        while (true) {
+            int sequence = _sequence;
+            if ((sequence & 1) == 0) {
+                StatsSnapshot last = _last;
+                if (last != null && last.sequence == sequence / 2) {
+                    return last;
+                }
+                StatsSnapshot snapshot = new StatsSnapshot(this, sequence / 2);
+                if (_sequence == sequence) {
+                    _last = snapshot;
+                    return snapshot;
+                }
+            }
+            // publication in progress, a few volatile writes
+            Thread.yield();
+        }
+    }
+}
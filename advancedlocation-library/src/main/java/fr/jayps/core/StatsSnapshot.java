@@ -0,0 +1,69 @@
+package fr.jayps.core;
+
+/**
+ * Immutable statistics of a TrackStatsEngine, as they were after a processed fix.
+ *
+ * See TrackStatsEngine.getSnapshot(): any thread can get a consistent set of values,
+ * without locking the thread feeding the engine.
+ */
+public final class StatsSnapshot {
+
+    // number of publications by the engine, increases with each fix, pressure altitude and setter
+    public final int sequence;
+
+    public final boolean hasLocation;
+    public final long time; // in ms, of the current location
+    public final double latitude;
+    public final double longitude;
+    public final double altitude; // in m
+    public final double altitudeFromGps; // in m
+    public final double altitudeFromPressure; // in m
+    public final double goodAltitude; // in m
+    public final float accuracy; // in m
+    public final float altitudeAccuracy; // in m
+    public final float speed; // in m/s
+    public final float averageSpeed; // in m/s
+    public final float maxSpeed; // in m/s
+    public final float distance; // in m
+    public final double ascent; // in m
+    public final float ascentRate; // in m/s
+    public final float slope; // in %
+    public final int nbAscent;
+    public final long elapsedTime; // in ms
+    public final boolean hasBearing;
+    public final float bearing;
+    public final int heartRate;
+    public final int cadence;
+    public final int nbFixes;
+    public final int nbGoodFixes;
+
+    // called by StatsPublisher.read(), may be torn: checked with the sequence
+    StatsSnapshot(StatsPublisher p, int sequence) {
+        this.sequence = sequence;
+        hasLocation = p.hasLocation;
+        time = p.time;
+        latitude = p.latitude;
+        longitude = p.longitude;
+        altitude = p.altitude;
+        altitudeFromGps = p.altitudeFromGps;
+        altitudeFromPressure = p.altitudeFromPressure;
+        goodAltitude = p.goodAltitude;
+        accuracy = p.accuracy;
+        altitudeAccuracy = p.altitudeAccuracy;
+        speed = p.speed;
+        averageSpeed = p.averageSpeed;
+        maxSpeed = p.maxSpeed;
+        distance = p.distance;
+        ascent = p.ascent;
+        ascentRate = p.ascentRate;
+        slope = p.slope;
+        nbAscent = p.nbAscent;
+        elapsedTime = p.elapsedTime;
+        hasBearing = p.hasBearing;
+        bearing = p.bearing;
+        heartRate = p.heartRate;
+        cadence = p.cadence;
+        nbFixes = p.nbFixes;
+        nbGoodFixes = p.nbGoodFixes;
+    }
+}
@@ -0,0 +1,210 @@
+package fr.jayps.core;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A StatsListener registered on a TrackStatsEngine, see TrackStatsEngine.addStatsListener().
+ *
+ * After each publication of the engine (fix, pressure altitude, setter), the watched fields are
+ * compared with their values at the last delivery. The listener is notified on its executor if one of them
+ * changed by more than its threshold (or on any publication if no field is watched), at most once per
+ * minInterval. Updates are coalesced: the listener gets the latest snapshot when its task runs,
+ * and no new task is submitted while the previous one hasn't run yet.
+ * A change within minInterval is delivered when minInterval expires: scheduled on the executor
+ * if it is a ScheduledExecutorService, otherwise submitted to it from a shared timer thread.
+ */
+public class StatsSubscription {
+
+    // watched fields
+    public static final int SPEED = 0; // in m/s
+    public static final int AVERAGE_SPEED = 1; // in m/s
+    public static final int MAX_SPEED = 2; // in m/s
+    public static final int DISTANCE = 3; // in m
+    public static final int ELAPSED_TIME = 4; // in ms
+    public static final int ASCENT = 5; // in m
+    public static final int ASCENT_RATE = 6; // in m/s
+    public static final int SLOPE = 7; // in %
+    public static final int ALTITUDE = 8; // in m
+    public static final int BEARING = 9; // in degrees
+    public static final int ACCURACY = 10; // in m
+    public static final int HEART_RATE = 11;
+    public static final int CADENCE = 12;
+    public static final int NB_ASCENT = 13;
+    public static final int LATITUDE = 14; // in degrees
+    public static final int LONGITUDE = 15; // in degrees
+    static final int NB_FIELDS = 16;
+
+    // delays the deliveries of the subscriptions whose executor can't schedule, created on first use
+    private static ScheduledExecutorService sTimer;
+
+    private final TrackStatsEngine _engine;
+    private final StatsListener _listener;
+    private final Executor _executor;
+    private final long _minInterval; // in ms
+    private final int[] _fields;
+    private final double[] _thresholds;
+
+    // engine thread only
+    private final double[] _delivered; // values of _fields at the last delivery
+    private boolean _hasDelivered = false;
+    private long _lastDelivery = 0; // System.nanoTime(), in ns, in the future for a trailing delivery
+
+    private final AtomicBoolean _scheduled = new AtomicBoolean(false);
+    private volatile boolean _cancelled = false;
+
+    private final Runnable _delivery = new Runnable() {
+        @Override
+        public void run() {
+            _scheduled.set(false);
+            if (!_cancelled) {
+                _listener.onStatsChanged(_engine.getSnapshot());
+            }
+        }
+    };
+
+    // timer thread: minInterval expired
+    private final Runnable _trailingDelivery = new Runnable() {
+        @Override
+        public void run() {
+            _execute();
+        }
+    };
+
+    StatsSubscription(TrackStatsEngine engine, StatsListener listener, Executor executor, long minInterval, int[] fields, double[] thresholds) {
+        if (fields.length != thresholds.length) {
+            throw new IllegalArgumentException("fields and thresholds must have the same length");
+        }
+        for (int field : fields) {
+            if (field < 0 || field >= NB_FIELDS) {
+                throw new IllegalArgumentException("Unknown field: " + field);
+            }
+        }
+        this._engine = engine;
+        this._listener = listener;
+        this._executor = executor;
+        this._minInterval = minInterval;
+        this._fields = Arrays.copyOf(fields, fields.length);
+        this._thresholds = Arrays.copyOf(thresholds, thresholds.length);
+        this._delivered = new double[fields.length];
+    }
+
+    public StatsListener getListener() {
+        return _listener;
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    // no more notification after this call returns (a task already running completes)
+    public void cancel() {
+        _engine.removeStatsSubscription(this);
+    }
+
+    void setCancelled() {
+        _cancelled = true;
+    }
+
+    // engine thread, after a publication: doesn't allocate (unless the executor does), except to schedule
+    // a trailing delivery
+    void onPublish(long now) {
+        if (_cancelled || _scheduled.get()) {
+            // the listener hasn't received the previous update yet, it will get the latest snapshot
+            return;
+        }
+        if (_hasDelivered && _fields.length > 0 && !_hasChanged()) {
+            return;
+        }
+        // only the engine thread sets it
+        _scheduled.set(true);
+        // within minInterval: trailing delivery when it expires
+        long delay = _hasDelivered ? _lastDelivery + _minInterval * 1000000 - now : 0;
+        for (int i = 0; i < _fields.length; i++) {
+            _delivered[i] = value(_engine, _fields[i]);
+        }
+        _hasDelivered = true;
+        if (delay <= 0) {
+            _lastDelivery = now;
+            _execute();
+            return;
+        }
+        _lastDelivery = now + delay;
+        try {
+            if (_executor instanceof ScheduledExecutorService) {
+                ((ScheduledExecutorService) _executor).schedule(_delivery, delay, TimeUnit.NANOSECONDS);
+            } else {
+                _timer().schedule(_trailingDelivery, delay, TimeUnit.NANOSECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // executor shut down
+            _scheduled.set(false);
+            cancel();
+        }
+    }
+
+    private void _execute() {
+        try {
+            _executor.execute(_delivery);
+        } catch (RejectedExecutionException e) {
+            // executor shut down
+            _scheduled.set(false);
+            cancel();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService _timer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StatsSubscription");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    private boolean _hasChanged() {
+        for (int i = 0; i < _fields.length; i++) {
+            double delta = Math.abs(value(_engine, _fields[i]) - _delivered[i]);
+            if (_fields[i] == BEARING) {
+                delta = Math.min(delta % 360, 360 - delta % 360);
+            }
+            if (delta > _thresholds[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static double value(TrackStatsEngine engine, int field) {
+        switch (field) {
+            case SPEED: return engine._currentSpeed();
+            case AVERAGE_SPEED: return engine._currentAverageSpeed();
+            case MAX_SPEED: return engine.getMaxSpeed();
+            case DISTANCE: return engine.getDistance();
+            case ELAPSED_TIME: return engine.getElapsedTime();
+            case ASCENT: return engine.getAscent();
+            case ASCENT_RATE: return engine.getAscentRate();
+            case SLOPE: return engine.getSlope();
+            case ALTITUDE: return engine.getAltitude();
+            case BEARING: return engine.getBearing();
+            case ACCURACY: return engine.getAccuracy();
+            case HEART_RATE: return engine.getHeartRate();
+            case CADENCE: return engine.getCadence();
+            case NB_ASCENT: return engine.getNbAscent();
+            case LATITUDE: return engine.getLatitude();
+            case LONGITUDE: return engine.getLongitude();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,129 @@
+package fr.jayps.core;
+
+import java.io.IOException;
+
+/**
+ * Fixed-size ring buffer of typed trace events.
+ *
+ * An event is an id and up to MAX_FIELDS numbers, recorded without any allocation.
+ * Events are only converted to text on demand (format(), dump()), using a format
+ * per event id where %d prints a field as an integer, %f as a decimal and %% a '%'.
+ */
+public class TraceRecorder {
+
+    public static final int MAX_FIELDS = 8;
+    public static final int DEFAULT_CAPACITY = 1024; // in events
+
+    private final String[] _formats;
+    private final int _capacity;
+    private final int[] _events;      // level << 16 | event id
+    private final double[] _fields;   // MAX_FIELDS per event
+    private long _nbRecorded = 0;
+    private volatile int _level = 0;  // 0: no recording
+
+    public TraceRecorder(String[] formats, int capacity) {
+        this._formats = formats;
+        this._capacity = capacity;
+        this._events = new int[capacity];
+        this._fields = new double[capacity * MAX_FIELDS];
+    }
+
+    public void setLevel(int level) {
+        this._level = level;
+    }
+
+    public int getLevel() {
+        return _level;
+    }
+
+    public boolean isEnabled(int level) {
+        return level <= _level;
+    }
+
+    public synchronized long getNbRecorded() {
+        return _nbRecorded;
+    }
+
+    // unused fields should be 0
+    public void record(int level, int event, double a, double b, double c, double d, double e, double f, double g, double h) {
+        if (level > _level) {
+            return;
+        }
+        store(level, event, a, b, c, d, e, f, g, h);
+    }
+
+    private synchronized void store(int level, int event, double a, double b, double c, double d, double e, double f, double g, double h) {
+        int i = (int) (_nbRecorded % _capacity);
+        _events[i] = level << 16 | event;
+        int j = i * MAX_FIELDS;
+        _fields[j] = a;
+        _fields[j + 1] = b;
+        _fields[j + 2] = c;
+        _fields[j + 3] = d;
+        _fields[j + 4] = e;
+        _fields[j + 5] = f;
+        _fields[j + 6] = g;
+        _fields[j + 7] = h;
+        _nbRecorded++;
+    }
+
+    public synchronized void clear() {
+        _nbRecorded = 0;
+    }
+
+    public String format(int event, double a, double b, double c, double d, double e, double f, double g, double h) {
+        StringBuilder sb = new StringBuilder();
+        double[] fields = {a, b, c, d, e, f, g, h};
+        try {
+            format(sb, event, fields, 0);
+        } catch (IOException ex) {
+            // StringBuilder doesn't throw
+        }
+        return sb.toString();
+    }
+
+    // write the recorded events, oldest first, one per line
+    public synchronized void dump(Appendable out) throws IOException {
+        long first = Math.max(0, _nbRecorded - _capacity);
+        for (long n = first; n < _nbRecorded; n++) {
+            int i = (int) (n % _capacity);
+            out.append('#').append(Long.toString(n)).append(' ').append(Integer.toString(_events[i] >>> 16)).append(' ');
+            format(out, _events[i] & 0xFFFF, _fields, i * MAX_FIELDS);
+            out.append('\n');
+        }
+    }
+
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            dump(sb);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+        }
+        return sb.toString();
+    }
+
+    private void format(Appendable out, int event, double[] fields, int offset) throws IOException {
+        String format = event < _formats.length ? _formats[event] : null;
+        if (format == null) {
+            out.append("event ").append(Integer.toString(event));
+            return;
+        }
+        int field = 0;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c == '%' && i + 1 < format.length()) {
+                char conversion = format.charAt(++i);
+                if (conversion == 'd' && field < MAX_FIELDS) {
+                    out.append(Long.toString((long) fields[offset + field++]));
+                } else if (conversion == 'f' && field < MAX_FIELDS) {
+                    out.append(Double.toString(fields[offset + field++]));
+                } else {
+                    out.append(conversion);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
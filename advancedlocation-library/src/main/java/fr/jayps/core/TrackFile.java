@@ -0,0 +1,54 @@
+package fr.jayps.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary track file format, written by TrackFileWriter and read by TrackFileReader.
+ *
+ * file:  MAGIC (int), VERSION (int), blocks
+ * block: payload length (int), number of points (int), time of the first point (long), payload
+ * payload: for each point, 10 zig-zag varints, delta to the previous point of the block
+ * (the first point of a block is a delta to 0, so each block can be decoded alone):
+ * time (ms), lat and lon (1e-7 degree), altitude, gps altitude, pressure altitude (cm),
+ * ascent (cm), accuracy (dm), hr, cad (0 if not available).
+ * A 1Hz track takes ~15 bytes per point.
+ */
+final class TrackFile {
+
+    static final int MAGIC = 0x4a505446; // "JPTF"
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 8;
+    static final int BLOCK_HEADER_SIZE = 16;
+
+    static final int NB_FIELDS = 10;
+    static final int MAX_POINT_SIZE = NB_FIELDS * 10; // in bytes, 10 bytes per varint max
+
+    static final double DEGREE_SCALE = 1e7;
+    static final double ALTITUDE_SCALE = 100;
+    static final double ACCURACY_SCALE = 10;
+
+    private TrackFile() {
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        // zig-zag: small negative values are small too
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
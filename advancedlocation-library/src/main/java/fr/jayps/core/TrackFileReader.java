@@ -0,0 +1,137 @@
+package fr.jayps.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reader of binary track files (see TrackFile for the format), through a read-only memory mapping
+ * of the file as it was when the reader has been opened.
+ *
+ * The block headers form a sparse index (time of the first point of each block), so reading a time range
+ * only decodes the blocks of this range. Points are decoded straight from the mapped memory to a TrackPointSink.
+ */
+public class TrackFileReader {
+
+    private final ByteBuffer _buffer;
+    private int _nbBlocks = 0;
+    private int[] _blockOffset = new int[64]; // of the block header
+    private long[] _blockTime = new long[64]; // of the first point of the block
+    private int _nbPoints = 0;
+
+    public TrackFileReader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this._buffer = buffer;
+        } finally {
+            // the mapping stays valid
+            raf.close();
+        }
+        if (_buffer.limit() < TrackFile.FILE_HEADER_SIZE
+                || _buffer.getInt(0) != TrackFile.MAGIC || _buffer.getInt(4) != TrackFile.VERSION) {
+            throw new IOException("Not a track file (version " + TrackFile.VERSION + "): " + file);
+        }
+        buildIndex();
+    }
+
+    public int getNbPoints() {
+        return _nbPoints;
+    }
+
+    public int getNbBlocks() {
+        return _nbBlocks;
+    }
+
+    // time of the first point, 0 if empty
+    public long getFirstTime() {
+        return _nbBlocks > 0 ? _blockTime[0] : 0;
+    }
+
+    // all the points, in file order
+    public void read(TrackPointSink sink) throws IOException {
+        for (int i = 0; i < _nbBlocks; i++) {
+            readBlock(i, Long.MIN_VALUE, Long.MAX_VALUE, sink);
+        }
+    }
+
+    // points with fromTime <= time < toTime, points must have been appended in time order
+    public void read(long fromTime, long toTime, TrackPointSink sink) throws IOException {
+        // first block starting at or after fromTime (binary search on the index)
+        int low = 0;
+        int high = _nbBlocks;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (_blockTime[middle] < fromTime) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        // the previous block may end with points >= fromTime
+        for (int i = Math.max(0, low - 1); i < _nbBlocks && _blockTime[i] < toTime; i++) {
+            readBlock(i, fromTime, toTime, sink);
+        }
+    }
+
+    private void buildIndex() {
+        int limit = _buffer.limit();
+        int position = TrackFile.FILE_HEADER_SIZE;
+        while (position + TrackFile.BLOCK_HEADER_SIZE <= limit) {
+            int end = position + TrackFile.BLOCK_HEADER_SIZE + _buffer.getInt(position);
+            if (end > limit || end < position + TrackFile.BLOCK_HEADER_SIZE) {
+                // incomplete last block (interrupted write)
+                break;
+            }
+            if (_nbBlocks == _blockOffset.length) {
+                _blockOffset = Arrays.copyOf(_blockOffset, 2 * _nbBlocks);
+                _blockTime = Arrays.copyOf(_blockTime, 2 * _nbBlocks);
+            }
+            _blockOffset[_nbBlocks] = position;
+            _blockTime[_nbBlocks] = _buffer.getLong(position + 8);
+            _nbBlocks++;
+            _nbPoints += _buffer.getInt(position + 4);
+            position = end;
+        }
+    }
+
+    private void readBlock(int block, long fromTime, long toTime, TrackPointSink sink) throws IOException {
+        ByteBuffer b = _buffer.duplicate();
+        int offset = _blockOffset[block];
+        int nbPoints = b.getInt(offset + 4);
+        b.position(offset + TrackFile.BLOCK_HEADER_SIZE);
+        long time = 0, lat = 0, lon = 0, altitude = 0, gpsAltitude = 0, pressureAltitude = 0, ascent = 0, accuracy = 0, hr = 0, cad = 0;
+        for (int i = 0; i < nbPoints; i++) {
+            time += TrackFile.getVarLong(b);
+            lat += TrackFile.getVarLong(b);
+            lon += TrackFile.getVarLong(b);
+            altitude += TrackFile.getVarLong(b);
+            gpsAltitude += TrackFile.getVarLong(b);
+            pressureAltitude += TrackFile.getVarLong(b);
+            ascent += TrackFile.getVarLong(b);
+            accuracy += TrackFile.getVarLong(b);
+            hr += TrackFile.getVarLong(b);
+            cad += TrackFile.getVarLong(b);
+            if (time >= toTime) {
+                return;
+            }
+            if (time >= fromTime) {
+                sink.writePoint(time,
+                        lat / TrackFile.DEGREE_SCALE,
+                        lon / TrackFile.DEGREE_SCALE,
+                        altitude / TrackFile.ALTITUDE_SCALE,
+                        (float) (accuracy / TrackFile.ACCURACY_SCALE),
+                        ascent / TrackFile.ALTITUDE_SCALE,
+                        gpsAltitude / TrackFile.ALTITUDE_SCALE,
+                        pressureAltitude / TrackFile.ALTITUDE_SCALE,
+                        (int) hr,
+                        (int) cad);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package fr.jayps.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only writer of binary track files (see TrackFile for the format).
+ *
+ * Points are encoded in a memory buffer and written with a single FileChannel write
+ * per block of pointsPerBlock points, or of at most maxLatency ms (of location time, so that
+ * a crash loses at most maxLatency ms of points), or on flush().
+ * Appending to an existing file first drops an incomplete last block (interrupted write).
+ */
+public class TrackFileWriter {
+
+    public static final int DEFAULT_POINTS_PER_BLOCK = 256;
+    public static final long NO_MAX_LATENCY = Long.MAX_VALUE;
+
+    private final RandomAccessFile _file;
+    private final FileChannel _channel;
+    private final int _pointsPerBlock;
+    private final long _maxLatency; // in ms
+    private final ByteBuffer _block;
+    private int _blockNbPoints = 0;
+    private int _nbPoints = 0; // appended by this writer
+
+    // previous point of the block, in fixed point
+    private long _time;
+    private long _lat;
+    private long _lon;
+    private long _altitude;
+    private long _gpsAltitude;
+    private long _pressureAltitude;
+    private long _ascent;
+    private long _accuracy;
+    private long _hr;
+    private long _cad;
+
+    public TrackFileWriter(File file) throws IOException {
+        this(file, DEFAULT_POINTS_PER_BLOCK);
+    }
+
+    public TrackFileWriter(File file, int pointsPerBlock) throws IOException {
+        this(file, pointsPerBlock, NO_MAX_LATENCY);
+    }
+
+    public TrackFileWriter(File file, int pointsPerBlock, long maxLatency) throws IOException {
+        this._pointsPerBlock = Math.max(1, pointsPerBlock);
+        this._maxLatency = maxLatency;
+        this._block = ByteBuffer.allocate(TrackFile.BLOCK_HEADER_SIZE + _pointsPerBlock * TrackFile.MAX_POINT_SIZE);
+        this._file = new RandomAccessFile(file, "rw");
+        this._channel = _file.getChannel();
+        try {
+            _channel.position(validLength());
+            _channel.truncate(_channel.position());
+            if (_channel.position() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(TrackFile.FILE_HEADER_SIZE);
+                header.putInt(TrackFile.MAGIC).putInt(TrackFile.VERSION).flip();
+                write(header);
+            }
+        } catch (IOException e) {
+            _file.close();
+            throw e;
+        }
+        _block.position(TrackFile.BLOCK_HEADER_SIZE);
+    }
+
+    // hr and cad <= 0 if not available
+    public void append(long time, double lat, double lon, double altitude, double gpsAltitude, double pressureAltitude, double ascent, float accuracy, int hr, int cad) throws IOException {
+        flushIfLate(time);
+        if (_blockNbPoints == 0) {
+            _block.putLong(8, time); // time of the first point, for the block index
+            _time = _lat = _lon = _altitude = _gpsAltitude = _pressureAltitude = _ascent = _accuracy = _hr = _cad = 0;
+        }
+        _time = put(_time, time);
+        _lat = put(_lat, Math.round(lat * TrackFile.DEGREE_SCALE));
+        _lon = put(_lon, Math.round(lon * TrackFile.DEGREE_SCALE));
+        _altitude = put(_altitude, Math.round(altitude * TrackFile.ALTITUDE_SCALE));
+        _gpsAltitude = put(_gpsAltitude, Math.round(gpsAltitude * TrackFile.ALTITUDE_SCALE));
+        _pressureAltitude = put(_pressureAltitude, Math.round(pressureAltitude * TrackFile.ALTITUDE_SCALE));
+        _ascent = put(_ascent, Math.round(ascent * TrackFile.ALTITUDE_SCALE));
+        _accuracy = put(_accuracy, Math.round(accuracy * TrackFile.ACCURACY_SCALE));
+        _hr = put(_hr, hr > 0 ? hr : 0);
+        _cad = put(_cad, cad > 0 ? cad : 0);
+        _blockNbPoints++;
+        _nbPoints++;
+        if (_blockNbPoints == _pointsPerBlock) {
+            writeBlock();
+        }
+    }
+
+    // writes the points of the current (incomplete) block
+    public void flush() throws IOException {
+        if (_blockNbPoints > 0) {
+            writeBlock();
+        }
+    }
+
+    // writes the current block if its first point is more than maxLatency ms older than time,
+    // e.g. on each location, saved or not, so that pending points are written during a pause
+    public void flushIfLate(long time) throws IOException {
+        if (_blockNbPoints > 0 && time - _block.getLong(8) > _maxLatency) {
+            writeBlock();
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+            _channel.force(false);
+        } finally {
+            _file.close();
+        }
+    }
+
+    public int getNbPoints() {
+        return _nbPoints;
+    }
+
+    private long put(long previous, long value) {
+        TrackFile.putVarLong(_block, value - previous);
+        return value;
+    }
+
+    private void writeBlock() throws IOException {
+        _block.putInt(0, _block.position() - TrackFile.BLOCK_HEADER_SIZE);
+        _block.putInt(4, _blockNbPoints);
+        _block.flip();
+        write(_block);
+        _block.clear();
+        _block.position(TrackFile.BLOCK_HEADER_SIZE);
+        _blockNbPoints = 0;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            _channel.write(buffer);
+        }
+    }
+
+    // length of the file without an incomplete last block, 0 if empty or with an incomplete file header
+    private long validLength() throws IOException {
+        long size = _channel.size();
+        ByteBuffer header = ByteBuffer.allocate(TrackFile.BLOCK_HEADER_SIZE);
+        header.putInt(TrackFile.MAGIC).putInt(TrackFile.VERSION);
+        ByteBuffer expected = ByteBuffer.wrap(Arrays.copyOf(header.array(), (int) Math.min(size, TrackFile.FILE_HEADER_SIZE)));
+        header.clear();
+        header.limit(expected.limit());
+        while (header.hasRemaining() && _channel.read(header, header.position()) > 0) {
+        }
+        header.flip();
+        if (!header.equals(expected)) {
+            // never overwrite another file
+            throw new IOException("Not a track file (version " + TrackFile.VERSION + ")");
+        }
+        if (size < TrackFile.FILE_HEADER_SIZE) {
+            return 0;
+        }
+        long position = TrackFile.FILE_HEADER_SIZE;
+        while (position + TrackFile.BLOCK_HEADER_SIZE <= size) {
+            header.clear();
+            _channel.read(header, position);
+            long end = position + TrackFile.BLOCK_HEADER_SIZE + header.getInt(0);
+            if (end > size || end < position + TrackFile.BLOCK_HEADER_SIZE) {
+                break;
+            }
+            position = end;
+        }
+        return position;
+    }
+}
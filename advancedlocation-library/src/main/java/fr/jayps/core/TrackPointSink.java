@@ -0,0 +1,13 @@
+package fr.jayps.core;
+
+import java.io.IOException;
+
+/**
+ * Consumer of saved track points, in time order: an export format or a stage of the export pipeline.
+ */
+public interface TrackPointSink {
+
+    // time in ms, ele the best altitude, eleGps and elePressure 0 if not available
+    // hr and cad <= 0 if not available
+    void writePoint(long time, double lat, double lon, double ele, float accuracy, double ascent, double eleGps, double elePressure, int hr, int cad) throws IOException;
+}
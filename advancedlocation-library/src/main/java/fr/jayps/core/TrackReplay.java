@@ -0,0 +1,154 @@
+package fr.jayps.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Recomputes the stats of stored tracks with the current TrackStatsEngine algorithm,
+ * e.g. after a change of the ascent thresholds.
+ *
+ * Each track is replayed on its own engine and the tracks are processed in parallel
+ * on a fixed thread pool, one worker per core by default: each idle worker takes the next
+ * track of the queue, so long tracks don't hold back the short ones.
+ */
+public class TrackReplay {
+
+    public interface Track {
+        String getName();
+
+        // calls player.onPoint() for each stored point, in time order
+        void replay(Player player) throws Exception;
+    }
+
+    // feeds stored points to an engine, as AdvancedLocation.onLocationChanged() does with live fixes
+    public static class Player {
+        private final TrackStatsEngine _engine;
+        private boolean _hasPrevious = false;
+        private long _previousTime = 0; // in ms
+        private double _previousLatitude = 0;
+        private double _previousLongitude = 0;
+        private int _nbPoints = 0;
+
+        public Player(TrackStatsEngine engine) {
+            this._engine = engine;
+        }
+
+        // gpsAltitude already corrected with the geoid height, as stored by AdvancedLocation
+        // pressureAltitude 0 if not available, heartRate and cadence <= 0 if not available
+        public int onPoint(long time, double latitude, double longitude, double gpsAltitude, double pressureAltitude, float accuracy, int heartRate, int cadence) {
+            // GPS speed is not stored, use the average speed since the previous point
+            float speed = 0;
+            if (_hasPrevious && time > _previousTime) {
+                speed = (float) (Distance.distance(_engine.getDistanceMode(), _previousLatitude, _previousLongitude, latitude, longitude) / ((time - _previousTime) / 1000.0));
+            }
+            _hasPrevious = true;
+            _previousTime = time;
+            _previousLatitude = latitude;
+            _previousLongitude = longitude;
+
+            if (pressureAltitude != 0) {
+                _engine.setAltitudeFromPressure(pressureAltitude);
+            }
+            _nbPoints++;
+            return _engine.onFix(time, latitude, longitude, gpsAltitude, accuracy, speed, heartRate, cadence);
+        }
+
+        public int getNbPoints() {
+            return _nbPoints;
+        }
+
+        public TrackStatsEngine getEngine() {
+            return _engine;
+        }
+    }
+
+    public static class Summary {
+        public final String name;
+        public int nbPoints = 0;
+        public float distance = 0; // in m
+        public double ascent = 0; // in m
+        public float maxSpeed = 0; // in m/s
+        public float averageSpeed = 0; // in m/s
+        public int nbAscent = 0;
+        public long elapsedTime = 0; // in ms
+        public Exception error = null; // not null if the track could not be (fully) read
+
+        public Summary(String name) {
+            this.name = name;
+        }
+    }
+
+    private final ExecutorService _executor;
+
+    public TrackReplay() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public TrackReplay(int parallelism) {
+        this._executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TrackReplay");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // summaries in the same order as tracks, waits for all of them
+    public List<Summary> replay(List<? extends Track> tracks) throws InterruptedException {
+        List<Callable<Summary>> tasks = new ArrayList<Callable<Summary>>(tracks.size());
+        for (final Track track : tracks) {
+            tasks.add(new Callable<Summary>() {
+                @Override
+                public Summary call() {
+                    return replay(track);
+                }
+            });
+        }
+        List<Summary> summaries = new ArrayList<Summary>(tasks.size());
+        for (Future<Summary> future : _executor.invokeAll(tasks)) {
+            try {
+                summaries.add(future.get());
+            } catch (ExecutionException e) {
+                // errors of the tracks are in the summaries: only an Error can get here
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+        return summaries;
+    }
+
+    public void shutdown() {
+        _executor.shutdown();
+    }
+
+    // replays a single track on the calling thread
+    public static Summary replay(Track track) {
+        Summary summary = new Summary(track.getName());
+        TrackStatsEngine engine = new TrackStatsEngine();
+        Player player = new Player(engine);
+        try {
+            track.replay(player);
+        } catch (Exception e) {
+            summary.error = e;
+        }
+        summary.nbPoints = player.getNbPoints();
+        summary.distance = engine.getDistance();
+        summary.ascent = engine.getAscent();
+        summary.maxSpeed = engine.getMaxSpeed();
+        summary.averageSpeed = engine.getAverageSpeed();
+        summary.nbAscent = engine.getNbAscent();
+        summary.elapsedTime = engine.getElapsedTime();
+        return summary;
+    }
+}
@@ -0,0 +1,237 @@
+package fr.jayps.core;
+
+import java.io.IOException;
+
+/**
+ * Streaming Douglas-Peucker simplification, between the location rows and an export format.
+ *
+ * Points are buffered in a window of bounded size. When the window is full, Douglas-Peucker
+ * keeps the points further than horizontalTolerance from the simplified line (in m), or whose
+ * altitude is further than verticalTolerance from the interpolated altitude (in m), and the last
+ * point of the window starts the next one.
+ * A window is also closed on points where hr or cad change by hrTolerance/cadTolerance or more
+ * since the last such point, and around pauses (the last point before and the first point
+ * after), so these points are always kept.
+ * finish() must be called after the last point.
+ */
+public class TrackSimplifier implements TrackPointSink {
+
+    public static final int DEFAULT_WINDOW = 256; // in points
+
+    // points around a pause (no point for more than this) are kept
+    static final long PAUSE_DELTA_TIME = 60 * 1000; // in ms
+
+    private static final double EARTH_RADIUS = 6371008.8; // in m
+
+    private final TrackPointSink _out;
+    private final double _horizontalTolerance; // in m
+    private final double _verticalTolerance; // in m
+    private final int _hrTolerance;
+    private final int _cadTolerance;
+    private final int _window;
+
+    // window of points, [0] is the first point not written yet
+    private final long[] _time;
+    private final double[] _lat;
+    private final double[] _lon;
+    private final double[] _ele;
+    private final float[] _accuracy;
+    private final double[] _ascent;
+    private final double[] _eleGps;
+    private final double[] _elePressure;
+    private final int[] _hr;
+    private final int[] _cad;
+    private int _size = 0;
+
+    // Douglas-Peucker scratch arrays
+    private final double[] _x;
+    private final double[] _y;
+    private final boolean[] _keep;
+    private final int[] _stack;
+
+    // hr and cad of the last point kept because of them
+    private int _refHr = 0;
+    private int _refCad = 0;
+
+    private int _nbPoints = 0;
+    private int _nbWritten = 0;
+
+    public TrackSimplifier(TrackPointSink out, double horizontalTolerance, double verticalTolerance, int hrTolerance, int cadTolerance) {
+        this(out, horizontalTolerance, verticalTolerance, hrTolerance, cadTolerance, DEFAULT_WINDOW);
+    }
+
+    // horizontalTolerance > 0, verticalTolerance <= 0 to ignore altitude
+    // hrTolerance, cadTolerance <= 0 to ignore hr or cad changes
+    public TrackSimplifier(TrackPointSink out, double horizontalTolerance, double verticalTolerance, int hrTolerance, int cadTolerance, int window) {
+        this._out = out;
+        this._horizontalTolerance = horizontalTolerance;
+        this._verticalTolerance = verticalTolerance;
+        this._hrTolerance = hrTolerance;
+        this._cadTolerance = cadTolerance;
+        this._window = Math.max(3, window);
+        _time = new long[_window];
+        _lat = new double[_window];
+        _lon = new double[_window];
+        _ele = new double[_window];
+        _accuracy = new float[_window];
+        _ascent = new double[_window];
+        _eleGps = new double[_window];
+        _elePressure = new double[_window];
+        _hr = new int[_window];
+        _cad = new int[_window];
+        _x = new double[_window];
+        _y = new double[_window];
+        _keep = new boolean[_window];
+        _stack = new int[2 * _window];
+    }
+
+    // number of points received
+    public int getNbPoints() {
+        return _nbPoints;
+    }
+
+    // number of points written to the output
+    public int getNbWritten() {
+        return _nbWritten;
+    }
+
+    // number of points dropped by the simplification (exact once finish() has been called)
+    public int getNbDropped() {
+        return _nbPoints - _nbWritten - _size;
+    }
+
+    @Override
+    public void writePoint(long time, double lat, double lon, double ele, float accuracy, double ascent, double eleGps, double elePressure, int hr, int cad) throws IOException {
+        boolean pause = false;
+        if (_nbPoints == 0) {
+            _refHr = Math.max(hr, 0);
+            _refCad = Math.max(cad, 0);
+        } else if (_size > 0 && time - _time[_size - 1] > PAUSE_DELTA_TIME) {
+            // keep the last point before the pause
+            simplifyWindow();
+            pause = true;
+        }
+        _nbPoints++;
+
+        int i = _size++;
+        _time[i] = time;
+        _lat[i] = lat;
+        _lon[i] = lon;
+        _ele[i] = ele;
+        _accuracy[i] = accuracy;
+        _ascent[i] = ascent;
+        _eleGps[i] = eleGps;
+        _elePressure[i] = elePressure;
+        _hr[i] = hr;
+        _cad[i] = cad;
+
+        // not available (<= 0) counts as 0, so that hr or cad appearing or disappearing is a change
+        boolean hrChange = _hrTolerance > 0 && Math.abs(Math.max(hr, 0) - _refHr) >= _hrTolerance;
+        boolean cadChange = _cadTolerance > 0 && Math.abs(Math.max(cad, 0) - _refCad) >= _cadTolerance;
+        if (hrChange || cadChange) {
+            _refHr = Math.max(hr, 0);
+            _refCad = Math.max(cad, 0);
+            simplifyWindow();
+        } else if (pause || _size == _window) {
+            // after a pause, the window is [last point before, first point after]: both are kept
+            simplifyWindow();
+        }
+    }
+
+    // writes the remaining points, including the last one
+    public void finish() throws IOException {
+        if (_size == 0) {
+            return;
+        }
+        simplify();
+        for (int i = 0; i < _size; i++) {
+            if (_keep[i]) {
+                write(i);
+            }
+        }
+        _size = 0;
+    }
+
+    // writes the kept points of the window except the last one, which becomes the first of the next window
+    private void simplifyWindow() throws IOException {
+        if (_size < 2) {
+            return;
+        }
+        simplify();
+        int last = _size - 1;
+        for (int i = 0; i < last; i++) {
+            if (_keep[i]) {
+                write(i);
+            }
+        }
+        _time[0] = _time[last];
+        _lat[0] = _lat[last];
+        _lon[0] = _lon[last];
+        _ele[0] = _ele[last];
+        _accuracy[0] = _accuracy[last];
+        _ascent[0] = _ascent[last];
+        _eleGps[0] = _eleGps[last];
+        _elePressure[0] = _elePressure[last];
+        _hr[0] = _hr[last];
+        _cad[0] = _cad[last];
+        _size = 1;
+    }
+
+    // Douglas-Peucker on the window, with an explicit stack: sets _keep[]
+    private void simplify() {
+        int n = _size;
+        // local flat coordinates around the first point, in m
+        double cosLat = Math.cos(Math.toRadians(_lat[0]));
+        for (int i = 0; i < n; i++) {
+            _x[i] = Math.toRadians(_lon[i] - _lon[0]) * cosLat * EARTH_RADIUS;
+            _y[i] = Math.toRadians(_lat[i] - _lat[0]) * EARTH_RADIUS;
+            _keep[i] = false;
+        }
+        _keep[0] = true;
+        _keep[n - 1] = true;
+
+        int sp = 0;
+        _stack[sp++] = 0;
+        _stack[sp++] = n - 1;
+        while (sp > 0) {
+            int b = _stack[--sp];
+            int a = _stack[--sp];
+            if (b - a < 2) {
+                continue;
+            }
+            double dx = _x[b] - _x[a];
+            double dy = _y[b] - _y[a];
+            double length2 = dx * dx + dy * dy;
+            double maxError = 1; // errors are relative to the tolerances
+            int maxIndex = -1;
+            for (int i = a + 1; i < b; i++) {
+                // projection of i on [a, b]
+                double t = length2 > 0 ? ((_x[i] - _x[a]) * dx + (_y[i] - _y[a]) * dy) / length2 : 0;
+                t = Math.max(0, Math.min(1, t));
+                double ex = _x[a] + t * dx - _x[i];
+                double ey = _y[a] + t * dy - _y[i];
+                double horizontalError = Math.sqrt(ex * ex + ey * ey) / _horizontalTolerance;
+                double error = horizontalError;
+                if (_verticalTolerance > 0) {
+                    error = Math.max(error, Math.abs(_ele[a] + t * (_ele[b] - _ele[a]) - _ele[i]) / _verticalTolerance);
+                }
+                if (error > maxError) {
+                    maxError = error;
+                    maxIndex = i;
+                }
+            }
+            if (maxIndex >= 0) {
+                _keep[maxIndex] = true;
+                _stack[sp++] = a;
+                _stack[sp++] = maxIndex;
+                _stack[sp++] = maxIndex;
+                _stack[sp++] = b;
+            }
+        }
+    }
+
+    private void write(int i) throws IOException {
+        _out.writePoint(_time[i], _lat[i], _lon[i], _ele[i], _accuracy[i], _ascent[i], _eleGps[i], _elePressure[i], _hr[i], _cad[i]);
+        _nbWritten++;
+    }
+}
@@ -0,0 +1,1210 @@
+package fr.jayps.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Computes advanced statistics from a stream of GPS fixes (distance, elapsed time, average
+ * and max speed, ascent, ascent rate, slope, number of ascents), with a primitive API and
+ * without any dependency on Android.
+ *
+ * Not thread-safe: all calls must be made from the same thread (or externally synchronized),
+ * except getSnapshot(), addStatsListener() and removeStatsListener(), which can be called from any thread.
+ */
+public class TrackStatsEngine {
+
+    // return values of onFix()
+    public static final int SKIPPED = 0x0;
+    public static final int NORMAL = 0x1;
+    public static final int SAVED = 0x2;
+
+    // receives the log messages, see setLogListener()
+    public interface LogListener {
+        // level: 1 (debug) or 2 (verbose), toast: message to show to the user
+        boolean isLoggable(int level, boolean toast);
+        void log(int level, String message, boolean toast);
+    }
+
+    // A reference location, stored in primitive fields.
+    // Slots are allocated once and overwritten in place, so processing a fix doesn't allocate anything.
+    protected static class LocationSlot {
+        public boolean isSet = false;
+        public long time = 0; // in ms
+        public double latitude = 0;
+        public double longitude = 0;
+        public double gpsAltitude = 0; // in m
+        public float accuracy = 0; // in m
+        public float speed = 0; // in m/s
+        public float distance = 0; // in m, value of _distance when the slot has been set
+
+        // altitude2, a 2nd altitude, provided by a pressure sensor for example
+        public double altitude2 = 0;
+        public boolean hasAltitude2 = false;
+        public long altitude2CalibrationTime = 0;
+        public double altitude2CalibrationDelta = 0;
+
+        public double getAltitude() {
+            if (this.hasAltitude2 && this.altitude2CalibrationTime > 0) {
+                return this.altitude2 + this.altitude2CalibrationDelta;
+            }
+            return this.gpsAltitude;
+        }
+        public double getAltitudeFromGps() {
+            return this.gpsAltitude;
+        }
+        public float getAltitudeAccuracy() {
+            if (this.hasAltitude2 && this.altitude2CalibrationTime > 0) {
+                // obtained from a pressure sensor, and calibration already done
+                return 1; // should be below _minAccuracyForAltitudeChangeLevel1
+            }
+            return this.accuracy;
+        }
+
+        public void set(LocationSlot l) {
+            this.isSet = l.isSet;
+            this.time = l.time;
+            this.latitude = l.latitude;
+            this.longitude = l.longitude;
+            this.gpsAltitude = l.gpsAltitude;
+            this.accuracy = l.accuracy;
+            this.speed = l.speed;
+            this.distance = l.distance;
+            this.altitude2 = l.altitude2;
+            this.hasAltitude2 = l.hasAltitude2;
+            this.altitude2CalibrationTime = l.altitude2CalibrationTime;
+            this.altitude2CalibrationDelta = l.altitude2CalibrationDelta;
+        }
+
+        public void clear() {
+            this.isSet = false;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeBoolean(isSet);
+            out.writeLong(time);
+            out.writeDouble(latitude);
+            out.writeDouble(longitude);
+            out.writeDouble(gpsAltitude);
+            out.writeFloat(accuracy);
+            out.writeFloat(speed);
+            out.writeFloat(distance);
+            out.writeDouble(altitude2);
+            out.writeBoolean(hasAltitude2);
+            out.writeLong(altitude2CalibrationTime);
+            out.writeDouble(altitude2CalibrationDelta);
+        }
+
+        void read(DataInput in) throws IOException {
+            isSet = in.readBoolean();
+            time = in.readLong();
+            latitude = in.readDouble();
+            longitude = in.readDouble();
+            gpsAltitude = in.readDouble();
+            accuracy = in.readFloat();
+            speed = in.readFloat();
+            distance = in.readFloat();
+            altitude2 = in.readDouble();
+            hasAltitude2 = in.readBoolean();
+            altitude2CalibrationTime = in.readLong();
+            altitude2CalibrationDelta = in.readDouble();
+        }
+    }
+
+    protected final LocationSlot currentLocation = new LocationSlot();         // current location
+    protected final LocationSlot lastLocation = new LocationSlot();            // last received location
+    protected final LocationSlot lastGoodLocation = new LocationSlot();        // last location with accuracy below _minAccuracy
+    protected final LocationSlot lastGoodAscentLocation = new LocationSlot();  // last location with changed ascent
+    protected final LocationSlot lastGoodAscentLocation2 = new LocationSlot(); // other previous location with changed ascent, older and with better accuracy than lastGoodAscentLocation
+    protected final LocationSlot lastGoodAscentRateLocation = new LocationSlot();  // last location with changed ascentRate
+    protected final LocationSlot lastSavedLocation = new LocationSlot();       // last saved location
+
+    // altitude2, a 2nd altitude, provided by a pressure sensor for example
+    protected double altitude2 = 0;
+    protected boolean hasAltitude2 = false;
+    protected long altitude2CalibrationTime = 0;
+    protected float altitude2CalibrationAccuracy = 99;
+    protected double altitude2CalibrationDelta = 0;
+    // constants used to "calibrate" altitude2
+    static final float _minAccuracyForAltitude2Calibration = 5; // in m
+    static final float _minDeltaTimeForAltitude2Calibration = 20 * 60 * 1000; // in ms
+
+
+    static final float _minAccuracyIni = 20; // in m
+    protected float _minAccuracy = _minAccuracyIni;   // in m
+
+    // max value for _minAccuracy
+    static final float _maxMinAccuracy = 50;   // in m
+
+    // always remember that accuracy is 3x worth on altitude than on latitude/longitude
+    static final float _minAccuracyForAltitudeChangeLevel1 = 1; // in m
+    static final float _minAltitudeChangeLevel1 = 3; // in m
+    static final float _minAccuracyForAltitudeChangeLevel2 = 3; // in m
+    static final float _minAltitudeChangeLevel2 = 10; // in m
+    static final float _minAccuracyForAltitudeChangeLevel3 = 6; // in m
+    static final float _minAltitudeChangeLevel3 = 20; // in m
+    static final float _minAccuracyForAltitudeChangeLevel4 = 12; // in m
+    static final float _minAltitudeChangeLevel4 = 50; // in m
+    static final long _minDeltaTimeForAscentRate = 60 * 1000; // in ms
+    static final long _maxDeltaTimeForAscentRate = 3 * 60 * 1000; // in ms
+
+    static final long _minDeltaTimeToSaveLocation = 5 * 60 * 1000; // in ms
+    static final float _minDeltaDistanceToSaveLocation = 20;   // in m
+
+    static final float MAX_ACCURACY_FOR_MAX_SPEED = 12; // in m
+
+    // min speed to compute _elapsedTime or _ascent
+    // 0.3m/s <=> 1.08km/h
+    static final float _minSpeedToComputeStats = 0.3f; // in m/s
+
+    protected int _nbFixes = 0;
+    protected int _nbGoodFixes = 0;
+    protected int _nbBadAccuracyLocations = 0;
+
+    protected float _distance = 0; // in m
+    protected double _ascent = 0; // in m
+    protected long _elapsedTime = 0; // in ms
+
+    protected float _averageSpeed = 0; // in m/s
+    protected float _maxSpeed = 0; // in m/s
+    protected float _ascentRate = 0; // in m/s
+
+    protected float _slope = 0; // in %
+
+    protected int _nbAscent = 0;
+    private double _nbAscentAltitudeLocalMin = 0;
+    private double _nbAscentAltitudeLocalMax = 0;
+    private boolean _nbAscentAscentInProgress = false;
+    private boolean _nbAscentDescentInProgress = false;
+    public static final float MAX_ACCURACY_FOR_NB_ASCENT = 7; // in m
+    public static final float NB_ASCENT_DELTA_ALTITUDE = 50; // in m
+
+    private boolean _hasBearing = false;
+    private float _bearing = 0;
+
+    // Height of geoid above WGS84 ellipsoid
+    protected double _geoidHeight = 0; // in m
+
+    private int _heartRate = 0;
+    private int _cadence = 0;
+    private float _sensorSpeed = 0;
+    private long _sensorSpeedTime = 0;
+
+    // kernel used for _distance and the save distance, see Distance
+    private int _distanceMode = Distance.VINCENTY;
+
+    private LogListener _logListener = null;
+
+    // fed with each good fix (accuracy below _minAccuracy)
+    private RollingWindow[] _rollingWindows = new RollingWindow[0];
+    private LapEngine _lapEngine = null;
+
+    // statistics published after each fix, for the other threads
+    private final StatsPublisher _publisher = new StatsPublisher();
+    // copy on write, so that _publish() iterates without lock nor allocation
+    private volatile StatsSubscription[] _subscriptions = new StatsSubscription[0];
+    private final Object _subscriptionsLock = new Object();
+
+    public TrackStatsEngine() {
+    }
+
+    // consistent statistics after the last fix (or setter), can be called from any thread
+    public StatsSnapshot getSnapshot() {
+        return _publisher.read();
+    }
+
+    // e.g. new RollingWindow(RollingWindow.TIME, 30 * 1000) or new RollingWindow(RollingWindow.DISTANCE, 1000)
+    public RollingWindow addRollingWindow(RollingWindow window) {
+        RollingWindow[] windows = Arrays.copyOf(_rollingWindows, _rollingWindows.length + 1);
+        windows[windows.length - 1] = window;
+        _rollingWindows = windows;
+        return window;
+    }
+
+    // null to disable laps
+    public void setLapEngine(LapEngine lapEngine) {
+        this._lapEngine = lapEngine;
+    }
+
+    public LapEngine getLapEngine() {
+        return _lapEngine;
+    }
+
+    public void removeRollingWindow(RollingWindow window) {
+        RollingWindow[] windows = new RollingWindow[_rollingWindows.length];
+        int n = 0;
+        for (RollingWindow w : _rollingWindows) {
+            if (w != window) {
+                windows[n++] = w;
+            }
+        }
+        _rollingWindows = Arrays.copyOf(windows, n);
+    }
+
+    // listener notified on executor after any publication, at most once per minInterval (in ms)
+    public StatsSubscription addStatsListener(StatsListener listener, Executor executor, long minInterval) {
+        return addStatsListener(listener, executor, minInterval, new int[0], new double[0]);
+    }
+
+    // listener notified on executor when one of the fields (StatsSubscription.SPEED...) changed by more
+    // than its threshold since the last notification, at most once per minInterval (in ms)
+    public StatsSubscription addStatsListener(StatsListener listener, Executor executor, long minInterval, int[] fields, double[] thresholds) {
+        StatsSubscription subscription = new StatsSubscription(this, listener, executor, minInterval, fields, thresholds);
+        synchronized (_subscriptionsLock) {
+            StatsSubscription[] subscriptions = Arrays.copyOf(_subscriptions, _subscriptions.length + 1);
+            subscriptions[subscriptions.length - 1] = subscription;
+            _subscriptions = subscriptions;
+        }
+        return subscription;
+    }
+
+    // removes all the subscriptions of listener
+    public void removeStatsListener(StatsListener listener) {
+        for (StatsSubscription subscription : _subscriptions) {
+            if (subscription.getListener() == listener) {
+                removeStatsSubscription(subscription);
+            }
+        }
+    }
+
+    void removeStatsSubscription(StatsSubscription subscription) {
+        synchronized (_subscriptionsLock) {
+            subscription.setCancelled();
+            StatsSubscription[] subscriptions = new StatsSubscription[_subscriptions.length];
+            int n = 0;
+            for (StatsSubscription s : _subscriptions) {
+                if (s != subscription) {
+                    subscriptions[n++] = s;
+                }
+            }
+            _subscriptions = Arrays.copyOf(subscriptions, n);
+        }
+    }
+
+    // getters
+    public double getAltitude() {
+        if (hasAltitude2 && altitude2CalibrationTime > 0) {
+            return altitude2 + altitude2CalibrationDelta;
+        }
+
+        if (lastGoodLocation.isSet) {
+            return lastGoodLocation.getAltitude();
+        }
+        return 0;
+    }
+    public double getAltitudeFromGps() {
+        if (currentLocation.isSet) {
+            return currentLocation.getAltitudeFromGps();
+        }
+        return 0;
+    }
+    public double getAltitudeFromPressure() {
+        return altitude2;
+    }
+
+
+    public double getGoodAltitude() {
+        if (lastGoodAscentLocation.isSet) {
+            return lastGoodAscentLocation.getAltitude();
+        }
+        return 0;
+    }
+
+    public float getAccuracy() {
+        if (currentLocation.isSet) {
+            return currentLocation.accuracy;
+        }
+        return 0.0f;
+    }
+
+    public float getAltitudeAccuracy() {
+        if (currentLocation.isSet) {
+            return currentLocation.getAltitudeAccuracy();
+        }
+        return 0.0f;
+    }
+
+    public float getSpeed() {
+        if (currentLocation.isSet) {
+            Trace(1, TRACE_GET_SPEED, currentLocation.time, currentLocation.speed, _sensorSpeedTime, _sensorSpeed);
+        } else if (_sensorSpeedTime > 0) {
+            Trace(1, TRACE_GET_SENSOR_SPEED, _sensorSpeedTime, _sensorSpeed);
+        }
+        return _currentSpeed();
+    }
+
+    // without trace, for the snapshots
+    float _currentSpeed() {
+        if (currentLocation.isSet) {
+            if (_sensorSpeed != 0.0 && _sensorSpeedTime > 0 && currentLocation.time < _sensorSpeedTime + 10 * 1000) {
+                // we've got a sensor speed, and no gps speed at least 10s newer
+                return _sensorSpeed;
+            }
+            return currentLocation.speed;
+        } else if (_sensorSpeedTime > 0) {
+            return _sensorSpeed;
+        }
+        return 0.0f;
+    }
+
+    public float getAverageSpeed() {
+        _averageSpeed = _currentAverageSpeed();
+        return _averageSpeed;
+    }
+
+    float _currentAverageSpeed() {
+        if ((_averageSpeed == 0) && (_elapsedTime > 0)) {
+            // not yet calculated yet?
+            return (float) _distance / ((float) _elapsedTime / 1000f);
+        }
+        return _averageSpeed;
+    }
+    public float getMaxSpeed() {
+        return _maxSpeed;
+    }
+    public int getNbAscent() {
+        return _nbAscent;
+    }
+
+    public long getElapsedTime() {
+        return _elapsedTime;
+    }
+
+    public long getTime() {
+        if (currentLocation.isSet) {
+            return currentLocation.time;
+        }
+        return 0;
+    }
+
+    public float getDistance() {
+        return _distance;
+    }
+
+    public double getAscent() {
+        return Math.floor(_ascent);
+    }
+
+    public float getAscentRate() {
+        return _ascentRate;
+    }
+
+    public float getSlope() {
+        return _slope;
+    }
+
+    public boolean hasBearing() {
+        if (currentLocation.isSet) {
+            return _hasBearing;
+        }
+        return false;
+    }
+
+    public float getBearing() {
+        if (currentLocation.isSet) {
+            return _bearing;
+        }
+        return 0;
+    }
+
+    public static String bearingText(float bearing) {
+        String bearingText = "";
+
+        bearing = bearing % 360;
+        if (bearing < 0) {
+            bearing += 360;
+        }
+
+        if (bearing >= 0 && bearing < 22.5) {
+            bearingText = "N";
+        }
+
+        if (bearing >= 22.5 && bearing < 67.5) {
+            bearingText = "NE";
+        }
+
+        if (bearing >= 67.5 && bearing < 112.5) {
+            bearingText = "E";
+        }
+
+        if (bearing >= 112.5 && bearing < 157.5) {
+            bearingText = "SE";
+        }
+
+        if (bearing >= 157.5 && bearing < 202.5) {
+            bearingText = "S";
+        }
+
+        if (bearing >= 202.5 && bearing < 247.5) {
+            bearingText = "SW";
+        }
+
+        if (bearing >= 247.5 && bearing < 292.5) {
+            bearingText = "W";
+        }
+
+        if (bearing >= 292.5 && bearing < 337.5) {
+            bearingText = "NW";
+        }
+
+        if (bearing >= 337.5 && bearing < 360) {
+            bearingText = "N";
+        }
+
+        return bearingText;
+    }
+
+    public double getLatitude() {
+        if (currentLocation.isSet) {
+            return currentLocation.latitude;
+        }
+        return 0;
+    }
+
+    public double getLongitude() {
+        if (currentLocation.isSet) {
+            return currentLocation.longitude;
+        }
+        return 0;
+    }
+
+    public int getHeartRate() {
+        return _heartRate;
+    }
+
+    public int getCadence() {
+        return _cadence;
+    }
+
+    public int getNbFixes() {
+        return _nbFixes;
+    }
+
+    public int getNbGoodFixes() {
+        return _nbGoodFixes;
+    }
+
+    // current accuracy threshold of the good fixes, adapted to the received accuracies
+    public float getMinAccuracy() {
+        return _minAccuracy;
+    }
+
+    public int getNbBadAccuracyLocations() {
+        return _nbBadAccuracyLocations;
+    }
+
+    public boolean hasLocation() {
+        return currentLocation.isSet;
+    }
+
+    public int getDistanceMode() {
+        return _distanceMode;
+    }
+
+    public double getGeoidHeight() {
+        return this._geoidHeight;
+    }
+
+    public double getAltitudeCalibrationDelta() {
+        return this.altitude2CalibrationDelta;
+    }
+
+    // setters
+    public void setElapsedTime(long elapsedTime) {
+        this._elapsedTime = elapsedTime;
+        _publish();
+    }
+
+    public void setDistance(float distance) {
+        this._distance = distance;
+        _publish();
+    }
+
+    public void setAscent(double ascent) {
+        this._ascent = ascent;
+        _publish();
+    }
+
+    public void setGeoidHeight(double geoidHeight) {
+        if (_isLoggable(1, false)) {
+            _log(1, "setGeoidHeight:" + geoidHeight, false);
+        }
+
+        if (this._geoidHeight != geoidHeight) {
+            this._geoidHeight = geoidHeight;
+
+            // force to recalibrate altitude2 (pressure sensor, if we got one)
+            hasAltitude2 = false;
+            altitude2CalibrationTime = 0;
+        }
+    }
+
+    public void setAltitudeCalibrationDelta(double altitudeCalibrationDelta) {
+        if (_isLoggable(1, false)) {
+            _log(1, "setAltitudeCalibrationDelta:" + altitudeCalibrationDelta, false);
+        }
+        if (altitudeCalibrationDelta != 0 && this.altitude2CalibrationDelta != altitudeCalibrationDelta) {
+            this.altitude2CalibrationDelta = altitudeCalibrationDelta;
+            this.altitude2CalibrationAccuracy = _minAccuracyForAltitude2Calibration;
+            this.altitude2CalibrationTime = 1; // timestamp in the past
+        }
+    }
+
+    // Distance.VINCENTY (default), Distance.HAVERSINE or Distance.EQUIRECTANGULAR
+    public void setDistanceMode(int distanceMode) {
+        this._distanceMode = distanceMode;
+    }
+    public void setMaxSpeed(float maxSpeed) {
+        this._maxSpeed = maxSpeed;
+        _publish();
+    }
+    public void setNbAscent(int nbAscent) {
+        // reset internal data
+        _nbAscentAltitudeLocalMin = _nbAscentAltitudeLocalMax = 0;
+        this._nbAscent = nbAscent;
+        _publish();
+    }
+    // time in ms, altitude above WGS84 ellipsoid in m (corrected with geoid height if set), accuracy in m, speed in m/s
+    // heartRate and cadence <= 0 if not available
+    public int onFix(long time, double latitude, double longitude, double altitude, float accuracy, float speed, int heartRate, int cadence) {
+        return onFix(time, latitude, longitude, altitude, accuracy, speed, false, 0, heartRate, cadence);
+    }
+
+    public int onFix(long time, double latitude, double longitude, double altitude, float accuracy, float speed, boolean hasBearing, float bearing, int heartRate, int cadence) {
+        int returnValue = _onFix(time, latitude, longitude, altitude, accuracy, speed, hasBearing, bearing, heartRate, cadence);
+        _publish();
+        return returnValue;
+    }
+
+    private int _onFix(long time, double latitude, double longitude, double altitude, float accuracy, float speed, boolean hasBearing, float bearing, int heartRate, int cadence) {
+        int returnValue = NORMAL;
+        long deltaTime = 0;
+        float deltaDistance = 0;
+        double deltaAscent = 0;
+        double deltaAltitude = 0;
+        float deltaAltitudeAccuracy = 0;
+        boolean isFirstLocation = false;
+
+        if (this._geoidHeight != 0) {
+        // we get an height of geoid (above WGS84 ellipsoid), use it to correct altitude
+            altitude = altitude - this._geoidHeight;
+        }
+
+        _nbFixes++;
+        Trace(1, TRACE_LOCATION, _nbGoodFixes, _nbFixes, time / 1000, latitude, longitude, altitude, this._geoidHeight, accuracy);
+
+        if (!lastLocation.isSet) {
+            isFirstLocation = true;
+        }
+
+        if (accuracy > _minAccuracy) {
+            _nbBadAccuracyLocations++;
+            if (_nbBadAccuracyLocations > 10) {
+                float _prevMinAccuracy = _minAccuracy;
+
+                _minAccuracy = (float) Math.floor(1.5f * _minAccuracy);
+
+                if (_minAccuracy > _maxMinAccuracy) {
+                    // max value for _minAccuracy
+                    _minAccuracy = _maxMinAccuracy;
+                }
+
+                if (_minAccuracy != _prevMinAccuracy) {
+                    _nbBadAccuracyLocations = 0;
+
+                    if (_isLoggable(1, true)) {
+                        _log(1, "Accuracy to often above _minAccuracy, augment _minAccuracy to " + _minAccuracy, true);
+                    }
+                }
+            }
+        }
+        if (accuracy < MAX_ACCURACY_FOR_MAX_SPEED) {
+            _maxSpeed = Math.max(speed, _maxSpeed);
+        }
+        _heartRate = heartRate;
+        _cadence = cadence;
+
+        if ((lastGoodLocation.isSet) && ((time - lastGoodLocation.time) < 500)) {
+            // less than X ms, skip this location
+            return SKIPPED;
+        }
+
+        if (hasAltitude2) {
+            if (
+                (accuracy < altitude2CalibrationAccuracy - 0.5)
+                ||
+                ((time - altitude2CalibrationTime > _minDeltaTimeForAltitude2Calibration)
+                && (accuracy < _minAccuracyForAltitude2Calibration))
+                ) {
+                    double prevAltitude2CalibrationDelta = altitude2CalibrationDelta;
+                    altitude2CalibrationTime = time;
+                    altitude2CalibrationAccuracy = accuracy;
+                    altitude2CalibrationDelta = altitude - altitude2;
+
+                    // force to restart computations based on altitude
+                    lastGoodAscentLocation.clear();
+
+                    Trace(1, TRACE_ALTITUDE2_CALIBRATION, prevAltitude2CalibrationDelta, altitude2CalibrationDelta);
+                    if (_isLoggable(1, true)) {
+                        _log(1, "delta:" + prevAltitude2CalibrationDelta + "->" + altitude2CalibrationDelta, true);
+                    }
+                }
+        }
+
+        _setLocationSlot(currentLocation, time, latitude, longitude, altitude, accuracy, speed);
+        _hasBearing = hasBearing;
+        _bearing = bearing;
+
+        if (currentLocation.accuracy <= _minAccuracy) {
+
+            if (!lastGoodLocation.isSet) {
+                lastGoodLocation.set(currentLocation);
+            }
+
+            deltaTime = time - lastGoodLocation.time;
+            deltaDistance = _distanceBetween(currentLocation, lastGoodLocation);
+
+            if (currentLocation.accuracy <= (_minAccuracy / 1.5f)) {
+                float _prevMinAccuracy = _minAccuracy;
+
+                _minAccuracy = (float) Math.floor(_minAccuracy / 1.5f);
+
+                if (_minAccuracy < _minAccuracyIni) {
+                    _minAccuracy = _minAccuracyIni;
+                }
+
+                if (_minAccuracy != _prevMinAccuracy) {
+                    if (_isLoggable(1, true)) {
+                        _log(1, "Accuracy below _minAccuracy, decrease it to: " + _minAccuracy, true);
+                    }
+                }
+            }
+
+            float localAverageSpeed = deltaTime > 0 ? ((float) deltaDistance / ((float) deltaTime / 1000f)) : 0; // in m/s
+
+            //_log(1, "localAverageSpeed:" + localAverageSpeed + " speed=" + currentLocation.speed);
+
+            // additional conditions to compute statistics
+            if (
+                isFirstLocation
+                ||
+                (localAverageSpeed > _minSpeedToComputeStats)
+            ) {
+                _elapsedTime += deltaTime;
+                _distance += deltaDistance;
+                _averageSpeed = _elapsedTime > 0 ? ((float) _distance / ((float) _elapsedTime / 1000f)) : 0;
+
+                if (!lastGoodAscentLocation.isSet) {
+                    lastGoodAscentLocation.set(currentLocation);
+                    lastGoodAscentLocation2.set(currentLocation);
+                    lastGoodAscentRateLocation.set(currentLocation);
+                }
+
+                deltaAltitude = currentLocation.getAltitude() - lastGoodAscentLocation.getAltitude();
+                deltaAltitudeAccuracy = currentLocation.getAltitudeAccuracy() - lastGoodAscentLocation.getAltitudeAccuracy();
+
+                if (deltaAltitude < 0 && deltaAltitudeAccuracy <= -3) {
+                    // Goal: during a "climb", if altitude decreases and accuracy is better, update lastGoodAscentLocation
+                    // it will avoid use of previously "wrong" (too high) lastGoodAscentLocation with lesser accuracy to compute ascent
+                    Trace(1, TRACE_ALTITUDE_DECREASES_BETTER_ACCURACY, deltaAltitude, deltaAltitudeAccuracy);
+                    lastGoodAscentLocation.set(currentLocation);
+                    lastGoodAscentRateLocation.set(currentLocation);
+                    deltaAltitude = 0;
+                }
+
+                if (Math.abs(deltaAltitude) < 0.5 && deltaAltitudeAccuracy < 0) {
+                    Trace(2, TRACE_FLAT_BETTER_ACCURACY, deltaAltitude, deltaAltitudeAccuracy);
+                    lastGoodAscentLocation.set(currentLocation);
+                    deltaAltitude = 0;
+                }
+
+                if (_testLocationOKForAscent()) {
+                    // compute ascent
+                    // always remember that accuracy is 3x worth on altitude than on latitude/longitude
+                    deltaAscent = deltaAltitude;
+
+                    lastGoodAscentLocation.set(currentLocation);
+
+                    if (lastGoodAscentLocation2.getAltitudeAccuracy() > lastGoodAscentLocation.getAltitudeAccuracy()) {
+                        Trace(2, TRACE_UPDATE_ASCENT_LOCATION2, lastGoodAscentLocation2.getAltitudeAccuracy(), lastGoodAscentLocation.getAltitudeAccuracy());
+                        lastGoodAscentLocation2.set(currentLocation);
+                    }
+
+                    if (lastGoodAscentLocation.time - lastGoodAscentLocation2.time > 60 * 10 * 1000) {
+                        Trace(2, TRACE_ASCENT_LOCATION2_TOO_OLD);
+                        lastGoodAscentLocation2.set(currentLocation);
+                    }
+
+                    if (deltaAscent > 0) {
+                        _ascent += deltaAscent;
+                    } else {
+                        lastGoodAscentLocation2.set(currentLocation);
+                        Trace(2, TRACE_DESCENT);
+                    }
+
+                    // try to compute ascentRate if enough time has elapsed
+                    long tmpDeltaTime = currentLocation.time - lastGoodAscentRateLocation.time;
+
+                    if (tmpDeltaTime < _minDeltaTimeForAscentRate) {
+                        // not enough time since lastGoodAscentRateLocation to compute ascentRate and slope
+                        Trace(1, TRACE_ASCENT_RATE_SKIP, tmpDeltaTime, _minDeltaTimeForAscentRate);
+                    } else {
+                        double tmpDeltaAscent = Math.floor(currentLocation.getAltitude() - lastGoodAscentRateLocation.getAltitude());
+                        float tmpDeltaDistance = _distance - lastGoodAscentRateLocation.distance;
+
+                        _ascentRate = tmpDeltaTime > 0 ? ((float) tmpDeltaAscent / (tmpDeltaTime) * 1000) : 0; // m/s
+
+                        if (tmpDeltaDistance != 0) {
+                            _slope = tmpDeltaDistance > 0 ? ((float) tmpDeltaAscent / tmpDeltaDistance) : 0; // in %
+                        } else {
+                            _slope = 0;
+                        }
+
+                        Trace(1, TRACE_ASCENT_RATE, lastGoodAscentRateLocation.getAltitude(), currentLocation.getAltitude(), tmpDeltaAscent, _ascentRate, _slope, 0, 0, 0);
+
+                        lastGoodAscentRateLocation.set(currentLocation);
+                    }
+                } // if (_testLocationOKForAscent()) {
+
+                if (currentLocation.accuracy < MAX_ACCURACY_FOR_NB_ASCENT) {
+                    if (_nbAscentAltitudeLocalMin == 0 && _nbAscentAltitudeLocalMax == 0) {
+                        // first time only
+                        _nbAscentAltitudeLocalMin = _nbAscentAltitudeLocalMax = currentLocation.getAltitude();
+                        _nbAscentAscentInProgress = _nbAscentDescentInProgress = false;
+                    }
+                    _nbAscentAltitudeLocalMin = Math.min(currentLocation.getAltitude(), _nbAscentAltitudeLocalMin);
+                    _nbAscentAltitudeLocalMax = Math.max(currentLocation.getAltitude(), _nbAscentAltitudeLocalMax);
+
+                    if (!_nbAscentDescentInProgress && currentLocation.getAltitude() <= _nbAscentAltitudeLocalMax - NB_ASCENT_DELTA_ALTITUDE) {
+                        Trace(1, TRACE_NB_ASCENT_DESCENT);
+                        _nbAscentDescentInProgress = true;
+                        _nbAscentAscentInProgress = false;
+                        _nbAscentAltitudeLocalMin = currentLocation.getAltitude();
+                    }
+                    if (!_nbAscentAscentInProgress && currentLocation.getAltitude() >= _nbAscentAltitudeLocalMin + NB_ASCENT_DELTA_ALTITUDE) {
+                        Trace(1, TRACE_NB_ASCENT_ASCENT);
+                        _nbAscentAscentInProgress = true;
+                        _nbAscentDescentInProgress = false;
+                        _nbAscentAltitudeLocalMax = currentLocation.getAltitude();
+                        _nbAscent++;
+                    }
+
+                    Trace(2, TRACE_NB_ASCENT, _nbAscentAltitudeLocalMin, _nbAscentAltitudeLocalMax, currentLocation.getAltitude(), _nbAscentAscentInProgress ? 1 : 0, _nbAscentDescentInProgress ? 1 : 0, 0, 0, 0);
+                }
+
+                _nbGoodFixes++;
+
+                if (_testFlatSection(lastGoodAscentRateLocation, currentLocation)) {
+                    Trace(1, TRACE_FLAT_SECTION);
+                    _slope = 0;
+                    _ascentRate = 0;
+                    lastGoodAscentRateLocation.set(currentLocation);
+                }
+
+                long tmpDeltaTime = currentLocation.time - lastGoodAscentRateLocation.time;
+                if (tmpDeltaTime > _maxDeltaTimeForAscentRate && currentLocation.getAltitudeAccuracy() < 10) {
+                    Trace(1, TRACE_ASCENT_RATE_LOCATION_TOO_OLD, tmpDeltaTime, currentLocation.getAltitudeAccuracy());
+                    _slope = 0;
+                    _ascentRate = 0;
+                    lastGoodAscentRateLocation.set(currentLocation);
+                }
+
+                Trace(1, TRACE_STATS, currentLocation.time / 1000, deltaDistance, deltaTime, deltaAscent, _ascent, _distance, _averageSpeed, _elapsedTime);
+
+                if (_testLocationOKForSave()) {
+                    Trace(2, TRACE_SAVE);
+                    returnValue = SAVED;
+                    lastSavedLocation.set(currentLocation);
+                }
+
+            } // additional conditions to compute statistics
+
+            for (RollingWindow window : _rollingWindows) {
+                window.add(time, _distance, currentLocation.getAltitude(), _heartRate, _cadence);
+            }
+            if (_lapEngine != null) {
+                _lapEngine.onFix(time, latitude, longitude, accuracy, speed, _distance, _elapsedTime, _ascent, _nbAscent, _heartRate, _cadence);
+            }
+
+            lastGoodLocation.set(currentLocation);
+
+        } // if (currentLocation.accuracy <= _minAccuracy) {
+
+        lastLocation.set(currentLocation);
+
+        return returnValue;
+    }
+
+    // median of the last (decimated) altitudes, over ALTITUDES2_NB_DEFAULT values by default
+    public static final int ALTITUDES2_NB_DEFAULT = 5;
+    private SlidingMedian _altitudes2 = new SlidingMedian(ALTITUDES2_NB_DEFAULT);
+    // decimation: average of _altitudes2Decimation raw values before the median, 1 to disable
+    private int _altitudes2Decimation = 1;
+    private double _altitudes2DecimationSum = 0;
+    private int _altitudes2DecimationNb = 0;
+
+    // window: number of values for the median (e.g. 50 to 200 at 25-50Hz), decimation: 1 to disable
+    // resets the filter
+    public void setAltitudeFilter(int window, int decimation) {
+        _altitudes2 = new SlidingMedian(window);
+        _altitudes2Decimation = Math.max(1, decimation);
+        _altitudes2DecimationSum = 0;
+        _altitudes2DecimationNb = 0;
+    }
+
+    public void onAltitudeChanged(double altitude) {
+        Trace(2, TRACE_ALTITUDE_CHANGED, altitude, altitude2CalibrationTime, altitude2CalibrationAccuracy, altitude2CalibrationDelta);
+        if (_altitudes2Decimation > 1) {
+            _altitudes2DecimationSum += altitude;
+            _altitudes2DecimationNb++;
+            if (_altitudes2DecimationNb < _altitudes2Decimation) {
+                return;
+            }
+            altitude = _altitudes2DecimationSum / _altitudes2DecimationNb;
+            _altitudes2DecimationSum = 0;
+            _altitudes2DecimationNb = 0;
+        }
+        double median = _altitudes2.add(altitude);
+        if (_altitudes2.getCount() > _altitudes2.getWindow()) {
+            this.hasAltitude2 = true;
+            this.altitude2 = median;
+            Trace(2, TRACE_ALTITUDE2, altitude, this.altitude2);
+            _publish();
+        }
+    }
+
+    // altitude already filtered, e.g. replayed from a stored track, instead of onAltitudeChanged()
+    public void setAltitudeFromPressure(double altitude) {
+        this.altitude2 = altitude;
+        this.hasAltitude2 = true;
+    }
+
+    public void setSensorSpeed(float speed, long time) {
+        this._sensorSpeed = speed;
+        this._sensorSpeedTime = time;
+        Trace(1, TRACE_SENSOR_SPEED, _sensorSpeedTime, _sensorSpeed);
+        _publish();
+    }
+
+    // version of the writeState() format
+    public static final int STATE_VERSION = 1;
+
+    // Full state of the engine (reference locations, barometer calibration, filters, counters and stats),
+    // so that readState() gives an engine continuing exactly like this one, see EngineCheckpoint.
+    // The listeners, rolling windows, lap engine (see EngineCheckpoint) and trace are not part of the state.
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(STATE_VERSION);
+        currentLocation.write(out);
+        lastLocation.write(out);
+        lastGoodLocation.write(out);
+        lastGoodAscentLocation.write(out);
+        lastGoodAscentLocation2.write(out);
+        lastGoodAscentRateLocation.write(out);
+        lastSavedLocation.write(out);
+
+        out.writeDouble(altitude2);
+        out.writeBoolean(hasAltitude2);
+        out.writeLong(altitude2CalibrationTime);
+        out.writeFloat(altitude2CalibrationAccuracy);
+        out.writeDouble(altitude2CalibrationDelta);
+        out.writeInt(_altitudes2.getWindow());
+        _altitudes2.writeState(out);
+        out.writeInt(_altitudes2Decimation);
+        out.writeDouble(_altitudes2DecimationSum);
+        out.writeInt(_altitudes2DecimationNb);
+
+        out.writeFloat(_minAccuracy);
+        out.writeInt(_nbFixes);
+        out.writeInt(_nbGoodFixes);
+        out.writeInt(_nbBadAccuracyLocations);
+        out.writeFloat(_distance);
+        out.writeDouble(_ascent);
+        out.writeLong(_elapsedTime);
+        out.writeFloat(_averageSpeed);
+        out.writeFloat(_maxSpeed);
+        out.writeFloat(_ascentRate);
+        out.writeFloat(_slope);
+        out.writeInt(_nbAscent);
+        out.writeDouble(_nbAscentAltitudeLocalMin);
+        out.writeDouble(_nbAscentAltitudeLocalMax);
+        out.writeBoolean(_nbAscentAscentInProgress);
+        out.writeBoolean(_nbAscentDescentInProgress);
+        out.writeBoolean(_hasBearing);
+        out.writeFloat(_bearing);
+        out.writeDouble(_geoidHeight);
+        out.writeInt(_heartRate);
+        out.writeInt(_cadence);
+        out.writeFloat(_sensorSpeed);
+        out.writeLong(_sensorSpeedTime);
+        out.writeInt(_distanceMode);
+    }
+
+    // state written by writeState(), replaces the whole state of the engine
+    public void readState(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != STATE_VERSION) {
+            throw new IOException("Unsupported engine state version " + version);
+        }
+        currentLocation.read(in);
+        lastLocation.read(in);
+        lastGoodLocation.read(in);
+        lastGoodAscentLocation.read(in);
+        lastGoodAscentLocation2.read(in);
+        lastGoodAscentRateLocation.read(in);
+        lastSavedLocation.read(in);
+
+        altitude2 = in.readDouble();
+        hasAltitude2 = in.readBoolean();
+        altitude2CalibrationTime = in.readLong();
+        altitude2CalibrationAccuracy = in.readFloat();
+        altitude2CalibrationDelta = in.readDouble();
+        int window = in.readInt();
+        if (window != _altitudes2.getWindow()) {
+            _altitudes2 = new SlidingMedian(window);
+        }
+        _altitudes2.readState(in);
+        _altitudes2Decimation = in.readInt();
+        _altitudes2DecimationSum = in.readDouble();
+        _altitudes2DecimationNb = in.readInt();
+
+        _minAccuracy = in.readFloat();
+        _nbFixes = in.readInt();
+        _nbGoodFixes = in.readInt();
+        _nbBadAccuracyLocations = in.readInt();
+        _distance = in.readFloat();
+        _ascent = in.readDouble();
+        _elapsedTime = in.readLong();
+        _averageSpeed = in.readFloat();
+        _maxSpeed = in.readFloat();
+        _ascentRate = in.readFloat();
+        _slope = in.readFloat();
+        _nbAscent = in.readInt();
+        _nbAscentAltitudeLocalMin = in.readDouble();
+        _nbAscentAltitudeLocalMax = in.readDouble();
+        _nbAscentAscentInProgress = in.readBoolean();
+        _nbAscentDescentInProgress = in.readBoolean();
+        _hasBearing = in.readBoolean();
+        _bearing = in.readFloat();
+        _geoidHeight = in.readDouble();
+        _heartRate = in.readInt();
+        _cadence = in.readInt();
+        _sensorSpeed = in.readFloat();
+        _sensorSpeedTime = in.readLong();
+        _distanceMode = in.readInt();
+        _publish();
+    }
+
+    // doesn't allocate, even at the rate of the pressure sensor
+    private void _publish() {
+        _publisher.publish(this);
+        StatsSubscription[] subscriptions = _subscriptions;
+        if (subscriptions.length > 0) {
+            long now = System.nanoTime();
+            for (StatsSubscription subscription : subscriptions) {
+                subscription.onPublish(now);
+            }
+        }
+    }
+
+    private void _setLocationSlot(LocationSlot slot, long time, double latitude, double longitude, double altitude, float accuracy, float speed) {
+        slot.isSet = true;
+        slot.time = time;
+        slot.latitude = latitude;
+        slot.longitude = longitude;
+        slot.gpsAltitude = altitude;
+        slot.accuracy = accuracy;
+        slot.speed = speed;
+        slot.distance = _distance;
+        slot.altitude2 = altitude2;
+        slot.hasAltitude2 = hasAltitude2;
+        slot.altitude2CalibrationTime = altitude2CalibrationTime;
+        slot.altitude2CalibrationDelta = altitude2CalibrationDelta;
+    }
+
+    private float _distanceBetween(LocationSlot l1, LocationSlot l2) {
+        return (float) Distance.distance(_distanceMode, l1.latitude, l1.longitude, l2.latitude, l2.longitude);
+    }
+
+    private boolean _testFlatSection(LocationSlot l1, LocationSlot l2) {
+        float deltaDistance = l2.distance - l1.distance;
+        double deltaAltitude = l2.getAltitude() - l1.getAltitude();
+
+        if ((deltaDistance > 500) && (100 * Math.abs(deltaAltitude) < deltaDistance)) {
+            // distance greater than 1000m and slope below 1%: this is a flat portion
+
+            if (l2.getAltitudeAccuracy() > 5) {
+                // if l2.getAltitudeAccuracy() is bad, avoid positive result (wait a bit more for better accuracy?)
+                return false;
+            }
+            // Note: if l1.getAltitudeAccuracy() was bad, don't avoid positive result (it won't change if we wait)
+
+            return true;
+        }
+        return false;
+    }
+
+    private boolean _testLocationOKForAscent() {
+        if (!lastGoodAscentLocation.isSet) {
+            return false;
+        }
+
+        float worstAccuracy = Math.max(lastGoodAscentLocation.getAltitudeAccuracy(), currentLocation.getAltitudeAccuracy());
+        double deltaAltitude = currentLocation.getAltitude() - lastGoodAscentLocation.getAltitude();
+        float deltaAccuracy = currentLocation.getAltitudeAccuracy() - lastGoodAscentLocation.getAltitudeAccuracy();
+        boolean result = false;
+
+        if ((Math.abs(deltaAltitude) >= _minAltitudeChangeLevel1) && (worstAccuracy <= _minAccuracyForAltitudeChangeLevel1)) {
+            Trace(1, TRACE_ASCENT_LEVEL, Math.abs(deltaAltitude), _minAltitudeChangeLevel1, worstAccuracy, _minAccuracyForAltitudeChangeLevel1);
+            result = true;
+        } else if ((Math.abs(deltaAltitude) >= _minAltitudeChangeLevel2) && (worstAccuracy <= _minAccuracyForAltitudeChangeLevel2)) {
+            Trace(1, TRACE_ASCENT_LEVEL, Math.abs(deltaAltitude), _minAltitudeChangeLevel2, worstAccuracy, _minAccuracyForAltitudeChangeLevel2);
+            result = true;
+        } else if ((Math.abs(deltaAltitude) >= _minAltitudeChangeLevel3) && (worstAccuracy <= _minAccuracyForAltitudeChangeLevel3)) {
+            Trace(1, TRACE_ASCENT_LEVEL, Math.abs(deltaAltitude), _minAltitudeChangeLevel3, worstAccuracy, _minAccuracyForAltitudeChangeLevel3);
+            result = true;
+        } else if ((Math.abs(deltaAltitude) >= _minAltitudeChangeLevel4) && (worstAccuracy <= _minAccuracyForAltitudeChangeLevel4)) {
+            Trace(1, TRACE_ASCENT_LEVEL, Math.abs(deltaAltitude), _minAltitudeChangeLevel4, worstAccuracy, _minAccuracyForAltitudeChangeLevel4);
+            result = true;
+        } else if (Math.abs(deltaAltitude) >= 4 * worstAccuracy) {
+            Trace(1, TRACE_ASCENT_ACCURACY, Math.abs(deltaAltitude), worstAccuracy);
+            result = true;
+        } else if (lastGoodAscentLocation2.isSet) {
+            float worstAccuracy2 = Math.max(lastGoodAscentLocation2.getAltitudeAccuracy(), currentLocation.getAltitudeAccuracy());
+            double deltaAltitude2 = currentLocation.getAltitude() - lastGoodAscentLocation2.getAltitude();
+            if (Math.abs(deltaAltitude2) >= 4 * worstAccuracy2) {
+                Trace(1, TRACE_ASCENT_ACCURACY2, Math.abs(deltaAltitude2), worstAccuracy2);
+                result = true;
+            }
+        }
+
+        if (result) {
+            Trace(1, TRACE_ASCENT, lastGoodAscentLocation.getAltitude(), currentLocation.getAltitude(), deltaAltitude, worstAccuracy);
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean _testLocationOKForSave() {
+        if (
+        !lastSavedLocation.isSet // 1st saved location
+        ||
+        (currentLocation.time - lastSavedLocation.time >= _minDeltaTimeToSaveLocation)
+        ||
+        (_distanceBetween(currentLocation, lastSavedLocation) >= _minDeltaDistanceToSaveLocation)
+        ) {
+            return true;
+        }
+
+        return false;
+    }
+
+    // trace events, recorded in a ring buffer and formatted only on demand (or if debugLevel is high enough)
+    private static final int TRACE_LOCATION = 1;
+    private static final int TRACE_GET_SPEED = 2;
+    private static final int TRACE_GET_SENSOR_SPEED = 3;
+    private static final int TRACE_SENSOR_SPEED = 4;
+    private static final int TRACE_ALTITUDE2_CALIBRATION = 5;
+    private static final int TRACE_ALTITUDE_DECREASES_BETTER_ACCURACY = 6;
+    private static final int TRACE_FLAT_BETTER_ACCURACY = 7;
+    private static final int TRACE_UPDATE_ASCENT_LOCATION2 = 8;
+    private static final int TRACE_ASCENT_LOCATION2_TOO_OLD = 9;
+    private static final int TRACE_DESCENT = 10;
+    private static final int TRACE_ASCENT_RATE_SKIP = 11;
+    private static final int TRACE_ASCENT_RATE = 12;
+    private static final int TRACE_NB_ASCENT_DESCENT = 13;
+    private static final int TRACE_NB_ASCENT_ASCENT = 14;
+    private static final int TRACE_NB_ASCENT = 15;
+    private static final int TRACE_FLAT_SECTION = 16;
+    private static final int TRACE_ASCENT_RATE_LOCATION_TOO_OLD = 17;
+    private static final int TRACE_STATS = 18;
+    private static final int TRACE_SAVE = 19;
+    private static final int TRACE_ALTITUDE_CHANGED = 20;
+    private static final int TRACE_ALTITUDE2 = 21;
+    private static final int TRACE_ASCENT_LEVEL = 22;
+    private static final int TRACE_ASCENT_ACCURACY = 23;
+    private static final int TRACE_ASCENT_ACCURACY2 = 24;
+    private static final int TRACE_ASCENT = 25;
+    private static final String[] TRACE_FORMATS = {
+            null,
+            "onLocationChanged: %d/%d %d,%f,%f,%f(%f),%f",
+            "getSpeed currentLocation time:%d speed:%f sensor time:%d speed:%f",
+            "getSpeed sensor time:%d speed:%f",
+            "setSensorSpeed:%d speed:%f",
+            "altitude2CalibrationDelta:%f->%f",
+            "altitude decreases (%f) and accuracy is better (%f, it decreases of at least 3m), use this position as lastGoodAscentLocation",
+            "flat section (%f), and better accuracy (%f), reset lastGoodAscentLocation",
+            "Update lastGoodAscentLocation2 acc:%f->%f",
+            "lastGoodAscentLocation2 too old",
+            "descent, reset lastGoodAscentLocation2",
+            "tmpDeltaTime:%d<%d ascentRate skip",
+            "alt:%f->%f:%f _ascentRate:%f _slope:%f",
+            "nbAscent: start new descent",
+            "nbAscent: start new ascent",
+            "nbAscent: %f<%f %f asc:%d dsc:%d",
+            "slope below 1%% on the last 500m, update lastGoodAscentRateLocation",
+            "lastGoodAscentRateLocation too old (%dms) and current accuracy ok (%fm), update lastGoodAscentRateLocation",
+            "%d deltaDistance:%f deltaTime:%d deltaAscent:%f _ascent:%f _distance: %f _averageSpeed: %f _elapsedTime:%d",
+            "Location OK to be saved",
+            "onAltitudeChanged: %f altitude2CalibrationTime=%d altitude2CalibrationAccuracy=%f altitude2CalibrationDelta=%f",
+            "altitude=%f this.altitude2=%f",
+            "abs(deltaAltitude):%f>=%f & worstAccuracy:%f<=%f",
+            "abs(deltaAltitude):%f>=4*worstAccuracy: 4*%f",
+            "abs(deltaAltitude2):%f>=4*worstAccuracy2: 4*%f",
+            "alt:%f->%f:%f - acc: %f",
+    };
+    private final TraceRecorder _trace = new TraceRecorder(TRACE_FORMATS, TraceRecorder.DEFAULT_CAPACITY);
+
+    // level of the events recorded in the trace buffer, 0 to disable it
+    public void setTraceLevel(int level) {
+        _trace.setLevel(level);
+    }
+
+    public int getTraceLevel() {
+        return _trace.getLevel();
+    }
+
+    // recorded events, oldest first, for diagnostics
+    public String getTrace() {
+        return _trace.dump();
+    }
+
+    public void dumpTrace(Appendable out) throws IOException {
+        _trace.dump(out);
+    }
+
+    private void Trace(int level, int event) {
+        Trace(level, event, 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    private void Trace(int level, int event, double a, double b) {
+        Trace(level, event, a, b, 0, 0, 0, 0, 0, 0);
+    }
+
+    private void Trace(int level, int event, double a, double b, double c, double d) {
+        Trace(level, event, a, b, c, d, 0, 0, 0, 0);
+    }
+
+    private void Trace(int level, int event, double a, double b, double c, double d, double e, double f, double g, double h) {
+        _trace.record(level, event, a, b, c, d, e, f, g, h);
+        if (_isLoggable(level, false)) {
+            _log(level, _trace.format(event, a, b, c, d, e, f, g, h), false);
+        }
+    }
+
+    public void setLogListener(LogListener logListener) {
+        this._logListener = logListener;
+    }
+
+    private boolean _isLoggable(int level, boolean toast) {
+        return _logListener != null && _logListener.isLoggable(level, toast);
+    }
+
+    private void _log(int level, String message, boolean toast) {
+        if (_logListener != null) {
+            _logListener.log(level, message, toast);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package fr.jayps.core;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hosts one TrackStatsEngine per live stream (e.g. per rider on a server), keyed by stream id.
+ *
+ * Engines are not thread-safe, so each stream id is hashed to a fixed shard: a worker thread
+ * with its own bounded queue, which processes the fixes of its streams in order. offer() never
+ * blocks and rejects a fix if the queue of its shard is full; put() waits for room (backpressure).
+ * A stream without fix for idleTimeout ms is evicted, its last stats are given to the EvictionListener.
+ * A RuntimeException thrown while processing a fix (newEngine(), the engine) or by the EvictionListener
+ * is counted (getNbErrors()), given to the ErrorListener if any, and the shard goes on.
+ * If the shard thread dies anyway (Error), its shard stops accepting fixes: offer() and put(),
+ * including the ones waiting, return false.
+ */
+public class TrackerManager {
+
+    private static final String TAG = "TrackerManager";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096; // per shard
+    public static final long DEFAULT_IDLE_TIMEOUT = 30 * 60 * 1000; // in ms
+
+    private static final int BATCH_SIZE = 256; // fixes processed per lock of a queue
+
+    // called on the shard thread
+    public interface EvictionListener {
+        void onEvicted(String streamId, StatsSnapshot snapshot);
+    }
+
+    // called on the shard thread, the fix (or eviction) is skipped
+    public interface ErrorListener {
+        void onError(String streamId, RuntimeException e);
+    }
+
+    private final Shard[] _shards;
+    private final long _idleTimeout; // in ms
+    private volatile EvictionListener _evictionListener = null;
+    private volatile ErrorListener _errorListener = null; // errors only counted if null
+
+    public TrackerManager() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public TrackerManager(int nbShards, int queueCapacity, long idleTimeout) {
+        this._idleTimeout = idleTimeout;
+        this._shards = new Shard[Math.max(1, nbShards)];
+        for (int i = 0; i < _shards.length; i++) {
+            _shards[i] = new Shard(Math.max(1, queueCapacity));
+        }
+        for (int i = 0; i < _shards.length; i++) {
+            Thread thread = new Thread(_shards[i], TAG + "-" + i);
+            thread.setDaemon(true);
+            _shards[i]._thread = thread;
+            thread.start();
+        }
+    }
+
+    public void setEvictionListener(EvictionListener evictionListener) {
+        this._evictionListener = evictionListener;
+    }
+
+    public void setErrorListener(ErrorListener errorListener) {
+        this._errorListener = errorListener;
+    }
+
+    // engine of a new stream, override to configure it (distance mode, altitude filter...)
+    // called on the shard thread
+    protected TrackStatsEngine newEngine(String streamId) {
+        return new TrackStatsEngine();
+    }
+
+    // gpsAltitude in m, pressureAltitude 0 if not available, heartRate and cadence <= 0 if not available
+    // speed is derived from the previous fix of the stream, as in TrackReplay
+    // returns false if the queue of the shard is full (or the manager is shut down, or the shard has died): the fix is rejected
+    public boolean offer(String streamId, long time, double latitude, double longitude, double gpsAltitude, double pressureAltitude, float accuracy, int heartRate, int cadence) {
+        return shard(streamId).offer(streamId, time, latitude, longitude, gpsAltitude, pressureAltitude, accuracy, heartRate, cadence);
+    }
+
+    // same as offer(), but waits while the queue of the shard is full
+    // returns false if the manager is shut down or the shard has died
+    public boolean put(String streamId, long time, double latitude, double longitude, double gpsAltitude, double pressureAltitude, float accuracy, int heartRate, int cadence) throws InterruptedException {
+        return shard(streamId).put(streamId, time, latitude, longitude, gpsAltitude, pressureAltitude, accuracy, heartRate, cadence);
+    }
+
+    // last stats of a stream (up to the fixes already processed), null if unknown or evicted; any thread
+    public StatsSnapshot getSnapshot(String streamId) {
+        Tracker tracker = shard(streamId)._trackers.get(streamId);
+        return tracker != null ? tracker.engine.getSnapshot() : null;
+    }
+
+    // stops accepting fixes, processes the queued ones and stops the shard threads
+    public void shutdown() throws InterruptedException {
+        for (Shard shard : _shards) {
+            synchronized (shard) {
+                shard._running = false;
+                shard.notifyAll();
+            }
+        }
+        for (Shard shard : _shards) {
+            shard._thread.join();
+        }
+    }
+
+    // metrics, aggregated over the shards
+
+    public int getNbShards() {
+        return _shards.length;
+    }
+
+    // number of live streams
+    public int getNbTrackers() {
+        int n = 0;
+        for (Shard shard : _shards) {
+            n += shard._trackers.size();
+        }
+        return n;
+    }
+
+    public long getNbProcessed() {
+        long n = 0;
+        for (Shard shard : _shards) {
+            n += shard._nbProcessed;
+        }
+        return n;
+    }
+
+    // fixes rejected by offer() because of a full queue
+    public long getNbRejected() {
+        long n = 0;
+        for (Shard shard : _shards) {
+            synchronized (shard) {
+                n += shard._nbRejected;
+            }
+        }
+        return n;
+    }
+
+    // fixes and evictions that threw a RuntimeException
+    public long getNbErrors() {
+        long n = 0;
+        for (Shard shard : _shards) {
+            n += shard._nbErrors;
+        }
+        return n;
+    }
+
+    public long getNbEvicted() {
+        long n = 0;
+        for (Shard shard : _shards) {
+            n += shard._nbEvicted;
+        }
+        return n;
+    }
+
+    // fixes waiting in the queues
+    public int getQueueSize() {
+        int n = 0;
+        for (Shard shard : _shards) {
+            synchronized (shard) {
+                n += shard._size;
+            }
+        }
+        return n;
+    }
+
+    // fill ratio of the fullest queue, from 0 to 1
+    public float getMaxQueueLoad() {
+        float load = 0;
+        for (Shard shard : _shards) {
+            synchronized (shard) {
+                load = Math.max(load, (float) shard._size / shard._capacity);
+            }
+        }
+        return load;
+    }
+
+    private Shard shard(String streamId) {
+        int h = streamId.hashCode();
+        h ^= h >>> 16;
+        return _shards[(h & 0x7fffffff) % _shards.length];
+    }
+
+    private static class Tracker {
+        final TrackStatsEngine engine;
+        final TrackReplay.Player player;
+        long lastFix; // System.nanoTime()
+
+        Tracker(TrackStatsEngine engine) {
+            this.engine = engine;
+            this.player = new TrackReplay.Player(engine);
+        }
+    }
+
+    private static class Fixes {
+        final String[] streamId;
+        final long[] time;
+        final double[] latitude;
+        final double[] longitude;
+        final double[] gpsAltitude;
+        final double[] pressureAltitude;
+        final float[] accuracy;
+        final int[] heartRate;
+        final int[] cadence;
+
+        Fixes(int capacity) {
+            streamId = new String[capacity];
+            time = new long[capacity];
+            latitude = new double[capacity];
+            longitude = new double[capacity];
+            gpsAltitude = new double[capacity];
+            pressureAltitude = new double[capacity];
+            accuracy = new float[capacity];
+            heartRate = new int[capacity];
+            cadence = new int[capacity];
+        }
+
+        void copy(int from, Fixes to, int i) {
+            to.streamId[i] = streamId[from];
+            to.time[i] = time[from];
+            to.latitude[i] = latitude[from];
+            to.longitude[i] = longitude[from];
+            to.gpsAltitude[i] = gpsAltitude[from];
+            to.pressureAltitude[i] = pressureAltitude[from];
+            to.accuracy[i] = accuracy[from];
+            to.heartRate[i] = heartRate[from];
+            to.cadence[i] = cadence[from];
+            streamId[from] = null;
+        }
+    }
+
+    private class Shard implements Runnable {
+        private final int _capacity;
+        private Thread _thread;
+
+        // queued fixes (ring buffer), guarded by this
+        private final Fixes _queue;
+        private int _head = 0;
+        private int _size = 0;
+        private boolean _running = true;
+        private long _nbRejected = 0;
+
+        // shard thread only (read by the metrics)
+        private final Fixes _batch;
+        private final Map<String, Tracker> _trackers = new ConcurrentHashMap<String, Tracker>();
+        private volatile long _nbProcessed = 0;
+        private volatile long _nbEvicted = 0;
+        private volatile long _nbErrors = 0;
+        private long _lastEviction = System.nanoTime();
+
+        Shard(int capacity) {
+            this._capacity = capacity;
+            this._queue = new Fixes(capacity);
+            this._batch = new Fixes(Math.min(BATCH_SIZE, capacity));
+        }
+
+        synchronized boolean put(String streamId, long time, double latitude, double longitude, double gpsAltitude, double pressureAltitude, float accuracy, int heartRate, int cadence) throws InterruptedException {
+            while (_running && _size == _capacity) {
+                wait();
+            }
+            return offer(streamId, time, latitude, longitude, gpsAltitude, pressureAltitude, accuracy, heartRate, cadence);
+        }
+
+        synchronized boolean offer(String streamId, long time, double latitude, double longitude, double gpsAltitude, double pressureAltitude, float accuracy, int heartRate, int cadence) {
+            if (!_running) {
+                return false;
+            }
+            if (_size == _capacity) {
+                _nbRejected++;
+                return false;
+            }
+            int i = (_head + _size) % _capacity;
+            _queue.streamId[i] = streamId;
+            _queue.time[i] = time;
+            _queue.latitude[i] = latitude;
+            _queue.longitude[i] = longitude;
+            _queue.gpsAltitude[i] = gpsAltitude;
+            _queue.pressureAltitude[i] = pressureAltitude;
+            _queue.accuracy[i] = accuracy;
+            _queue.heartRate[i] = heartRate;
+            _queue.cadence[i] = cadence;
+            _size++;
+            if (_size == 1) {
+                notifyAll();
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } finally {
+                // shut down, interrupted or died: producers waiting in put() must not hang
+                synchronized (this) {
+                    _running = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void loop() {
+            while (true) {
+                int n;
+                synchronized (this) {
+                    if (_running && _size == 0) {
+                        try {
+                            // wake up regularly to evict idle streams
+                            wait(Math.max(1000, _idleTimeout / 4));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!_running && _size == 0) {
+                        return;
+                    }
+                    n = Math.min(_size, _batch.time.length);
+                    for (int i = 0; i < n; i++) {
+                        _queue.copy((_head + i) % _capacity, _batch, i);
+                    }
+                    _head = (_head + n) % _capacity;
+                    _size -= n;
+                    if (n > 0) {
+                        // room for the producers waiting in put()
+                        notifyAll();
+                    }
+                }
+                process(n);
+                evictIdle();
+            }
+        }
+
+        private void process(int n) {
+            long now = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                String streamId = _batch.streamId[i];
+                _batch.streamId[i] = null;
+                try {
+                    Tracker tracker = _trackers.get(streamId);
+                    if (tracker == null) {
+                        tracker = new Tracker(newEngine(streamId));
+                        _trackers.put(streamId, tracker);
+                    }
+                    tracker.lastFix = now;
+                    tracker.player.onPoint(_batch.time[i], _batch.latitude[i], _batch.longitude[i], _batch.gpsAltitude[i], _batch.pressureAltitude[i], _batch.accuracy[i], _batch.heartRate[i], _batch.cadence[i]);
+                } catch (RuntimeException e) {
+                    onError(streamId, e);
+                }
+            }
+            _nbProcessed += n;
+        }
+
+        // at most every second, idleTimeout <= 0 to disable
+        private void evictIdle() {
+            long now = System.nanoTime();
+            if (_idleTimeout <= 0 || now - _lastEviction < 1000 * 1000000L) {
+                return;
+            }
+            _lastEviction = now;
+            long idleTimeout = _idleTimeout * 1000000;
+            Iterator<Map.Entry<String, Tracker>> it = _trackers.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Tracker> entry = it.next();
+                if (now - entry.getValue().lastFix > idleTimeout) {
+                    it.remove();
+                    _nbEvicted++;
+                    EvictionListener evictionListener = _evictionListener;
+                    if (evictionListener != null) {
+                        try {
+                            evictionListener.onEvicted(entry.getKey(), entry.getValue().engine.getSnapshot());
+                        } catch (RuntimeException e) {
+                            onError(entry.getKey(), e);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void onError(String streamId, RuntimeException e) {
+            _nbErrors++;
+            ErrorListener errorListener = _errorListener;
+            if (errorListener != null) {
+                errorListener.onError(streamId, e);
+            }
+        }
+    }
+}
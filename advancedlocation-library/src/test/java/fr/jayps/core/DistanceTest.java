@@ -0,0 +1,72 @@
+package fr.jayps.core;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DistanceTest extends TestCase {
+
+    // in degrees
+    private static double dms(int degrees, int minutes, double seconds) {
+        double value = Math.abs(degrees) + minutes / 60.0 + seconds / 3600.0;
+        return degrees < 0 ? -value : value;
+    }
+
+    public void testVincentyReferences() {
+        // Flinders Peak to Buninyong, the example of Vincenty's paper
+        assertEquals(54972.271, Distance.vincenty(dms(-37, 57, 3.72030), dms(144, 25, 29.52440), dms(-37, 39, 10.15610), dms(143, 55, 35.38390)), 0.001);
+        // 1 degree along the equator: a * pi / 180
+        assertEquals(111319.491, Distance.vincenty(0, 0, 0, 1), 0.001);
+        // meridian quadrant of WGS84
+        assertEquals(10001965.729, Distance.vincenty(0, 0, 90, 0), 0.001);
+        assertEquals(0, Distance.vincenty(45, 5.7, 45, 5.7), 0);
+    }
+
+    // hop of length ~distance (in m) from a random point below 80 degrees, in a random direction
+    private static double[] hop(Random random, double distance) {
+        double lat = -80 + 160 * random.nextDouble();
+        double lon = -180 + 360 * random.nextDouble();
+        double bearing = 2 * Math.PI * random.nextDouble();
+        double dLat = distance * Math.cos(bearing) / 111000;
+        double dLon = distance * Math.sin(bearing) / (111000 * Math.cos(Math.toRadians(lat + dLat / 2)));
+        double lat2 = Math.max(-80, Math.min(80, lat + dLat));
+        return new double[] {lat, lon, lat2, lon + dLon};
+    }
+
+    // error vs vincenty of hops up to maxDistance (in m)
+    private static double maxEquirectangularError(double maxDistance) {
+        Random random = new Random(42);
+        double max = 0;
+        for (int i = 0; i < 10000; i++) {
+            double[] p = hop(random, maxDistance * random.nextDouble());
+            max = Math.max(max, Math.abs(Distance.equirectangular(p[0], p[1], p[2], p[3]) - Distance.vincenty(p[0], p[1], p[2], p[3])));
+        }
+        return max;
+    }
+
+    public void testEquirectangular() {
+        assertTrue(maxEquirectangularError(1000) < 0.001);
+        assertTrue(maxEquirectangularError(5000) < 0.01);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            double[] p = hop(random, 100000 * random.nextDouble());
+            double vincenty = Distance.vincenty(p[0], p[1], p[2], p[3]);
+            assertEquals(vincenty, Distance.equirectangular(p[0], p[1], p[2], p[3]), vincenty * 0.001);
+        }
+        // across the antimeridian
+        assertEquals(Distance.vincenty(45, 179.999, 45, -179.999), Distance.equirectangular(45, 179.999, 45, -179.999), 0.001);
+    }
+
+    public void testHaversine() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            double[] p = hop(random, 100000 * random.nextDouble());
+            double vincenty = Distance.vincenty(p[0], p[1], p[2], p[3]);
+            assertEquals(vincenty, Distance.haversine(p[0], p[1], p[2], p[3]), vincenty * 0.006);
+        }
+        assertEquals(Distance.haversine(45, 5.7, 46, 6), Distance.distance(Distance.HAVERSINE, 45, 5.7, 46, 6), 0);
+        assertEquals(Distance.equirectangular(45, 5.7, 46, 6), Distance.distance(Distance.EQUIRECTANGULAR, 45, 5.7, 46, 6), 0);
+        assertEquals(Distance.vincenty(45, 5.7, 46, 6), Distance.distance(Distance.VINCENTY, 45, 5.7, 46, 6), 0);
+    }
+}
@@ -0,0 +1,146 @@
+package fr.jayps.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+
+public class EngineCheckpointTest extends TestCase {
+
+    private static final long T0 = 1400000000000L;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("checkpoint", ".bin");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    // 1 fix per second, ~5m/s toward north, rolling terrain
+    private static void ride(TrackReplay.Player player, int from, int to) {
+        for (int i = from; i < to; i++) {
+            player.onPoint(T0 + i * 1000L, 45 + i * 0.000045, 5.7, 300 + 50 * Math.sin(i / 120.0), 0, 4, 120 + i % 10, 80);
+        }
+    }
+
+    private static TrackStatsEngine newEngine(LapEngine laps) {
+        TrackStatsEngine engine = new TrackStatsEngine();
+        engine.setLapEngine(laps);
+        return engine;
+    }
+
+    // the restored engine and its laps continue exactly like the original ones
+    public void testRoundTrip() throws IOException {
+        TrackStatsEngine engine = newEngine(new LapEngine(LapEngine.DISTANCE, 1000));
+        TrackReplay.Player player = new TrackReplay.Player(engine);
+        ride(player, 0, 600);
+        assertEquals(2, engine.getLapEngine().getNbLaps());
+
+        EngineCheckpoint checkpoint = new EngineCheckpoint(file, 60 * 1000);
+        checkpoint.write(EngineCheckpoint.serialize(engine, 42));
+        assertEquals(1, checkpoint.getNbWritten());
+
+        TrackStatsEngine restored = newEngine(new LapEngine(LapEngine.DISTANCE, 1000));
+        EngineCheckpoint restoredCheckpoint = new EngineCheckpoint(file, 60 * 1000);
+        assertTrue(restoredCheckpoint.restore(restored));
+        assertEquals(42, restoredCheckpoint.getSessionId());
+        assertEquals(2, restored.getLapEngine().getNbLaps());
+
+        // the player only derives the speed from the previous point
+        TrackReplay.Player restoredPlayer = new TrackReplay.Player(restored);
+        ride(player, 600, 1000);
+        ride(restoredPlayer, 599, 1000);
+        assertEquals(engine.getDistance(), restored.getDistance());
+        assertEquals(engine.getAscent(), restored.getAscent());
+        assertEquals(engine.getElapsedTime(), restored.getElapsedTime());
+        LapEngine laps = engine.getLapEngine();
+        LapEngine restoredLaps = restored.getLapEngine();
+        assertEquals(laps.getNbLaps(), restoredLaps.getNbLaps());
+        for (int i = 0; i <= laps.getNbLaps(); i++) {
+            assertEquals(laps.getStartTime(i), restoredLaps.getStartTime(i));
+            assertEquals(laps.getDistance(i), restoredLaps.getDistance(i));
+            assertEquals(laps.getHeartRate(i), restoredLaps.getHeartRate(i));
+        }
+    }
+
+    // laps of another mode or length are not restored, the engine is
+    public void testOtherLaps() throws IOException {
+        TrackStatsEngine engine = newEngine(new LapEngine(LapEngine.DISTANCE, 1000));
+        ride(new TrackReplay.Player(engine), 0, 600);
+        EngineCheckpoint checkpoint = new EngineCheckpoint(file, 60 * 1000);
+        checkpoint.write(engine, 0);
+
+        TrackStatsEngine restored = newEngine(new LapEngine(LapEngine.DISTANCE, 500));
+        assertTrue(checkpoint.restore(restored));
+        assertEquals(0, restored.getLapEngine().getNbLaps());
+        assertEquals(engine.getDistance(), restored.getDistance());
+
+        restored = newEngine(null);
+        assertTrue(checkpoint.restore(restored));
+        assertEquals(engine.getDistance(), restored.getDistance());
+    }
+
+    public void testInterval() throws IOException {
+        TrackStatsEngine engine = newEngine(null);
+        EngineCheckpoint checkpoint = new EngineCheckpoint(file, 10 * 1000);
+        assertNotNull(checkpoint.onFix(engine, T0, 0));
+        assertNull(checkpoint.onFix(engine, T0 + 9999, 0));
+        assertNotNull(checkpoint.onFix(engine, T0 + 10000, 0));
+        // serialized only: written by write(byte[])
+        assertEquals(0, checkpoint.getNbWritten());
+        assertFalse(file.exists());
+    }
+
+    public void testCorruptedCheckpoint() throws IOException {
+        TrackStatsEngine engine = newEngine(null);
+        ride(new TrackReplay.Player(engine), 0, 100);
+        EngineCheckpoint checkpoint = new EngineCheckpoint(file, 60 * 1000);
+        checkpoint.write(engine, 7);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(100);
+        int b = raf.read();
+        raf.seek(100);
+        raf.write(b ^ 1);
+        raf.close();
+
+        TrackStatsEngine restored = newEngine(null);
+        assertFalse(checkpoint.restore(restored));
+        assertEquals(0, restored.getNbFixes());
+    }
+
+    // checkpoints without version, session nor laps
+    public void testFirstFormatRejected() throws IOException {
+        TrackStatsEngine engine = newEngine(null);
+        ride(new TrackReplay.Player(engine), 0, 100);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(EngineCheckpoint.MAGIC);
+        engine.writeState(out);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeLong(crc.getValue());
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            bytes.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+
+        TrackStatsEngine restored = newEngine(null);
+        assertFalse(new EngineCheckpoint(file, 60 * 1000).restore(restored));
+        assertEquals(0, restored.getNbFixes());
+    }
+}
@@ -0,0 +1,112 @@
+package fr.jayps.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+public class FitWriterTest extends TestCase {
+
+    private static final long T0 = 1500000000000L;
+
+    // CRC-16/ARC, bit by bit, as a reference for the nibble table of FitWriter
+    private static int referenceCrc(byte[] bytes, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= bytes[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xa001 : crc >>> 1;
+            }
+        }
+        return crc;
+    }
+
+    private static byte[] write(int nbPoints) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FitWriter fit = new FitWriter(out);
+        fit.writeHeader(nbPoints, T0);
+        for (int i = 0; i < nbPoints; i++) {
+            fit.writePoint(T0 + i * 1000L, 45.5 + i * 1e-4, -5.25, 250.4, 5, 0, 0, 0, i % 2 == 0 ? 0 : 140, 85);
+        }
+        fit.writeFooter(nbPoints * 1000L, 1234.5f, 321.6, 12.5f, FitWriter.SPORT_CYCLING);
+        assertEquals(out.size(), fit.getNbBytes());
+        return out.toByteArray();
+    }
+
+    public void testCrc() throws IOException {
+        byte[] check = "123456789".getBytes("US-ASCII");
+        assertEquals(0xbb3d, FitWriter.crc(0, check, 0, check.length));
+        assertEquals(referenceCrc(check, check.length), FitWriter.crc(0, check, 0, check.length));
+        // continued crc
+        assertEquals(0xbb3d, FitWriter.crc(FitWriter.crc(0, check, 0, 4), check, 4, 5));
+    }
+
+    public void testHeader() throws IOException {
+        byte[] fit = write(10);
+        ByteBuffer b = ByteBuffer.wrap(fit).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(FitWriter.HEADER_SIZE, b.get(0));
+        assertEquals(FitWriter.PROTOCOL_VERSION, b.get(1));
+        assertEquals(FitWriter.PROFILE_VERSION, b.getShort(2));
+        assertEquals(FitWriter.getDataSize(10), b.getInt(4));
+        assertEquals(fit.length - FitWriter.HEADER_SIZE - 2, b.getInt(4));
+        assertEquals(".FIT", new String(fit, 8, 4, "US-ASCII"));
+        assertEquals(referenceCrc(fit, 12), b.getShort(12) & 0xffff);
+        // crc of the whole file, its own crc included, is 0
+        assertEquals(0, referenceCrc(fit, fit.length));
+    }
+
+    public void testRecordLayout() throws IOException {
+        byte[] fit = write(3);
+        ByteBuffer b = ByteBuffer.wrap(fit).order(ByteOrder.LITTLE_ENDIAN);
+        // file_id definition + message, then the record definition
+        int position = FitWriter.HEADER_SIZE;
+        position += 6 + 3 * 4 + 1 + 1 + 2 + 2 + 4;
+        assertEquals(0x40 | 1, b.get(position));
+        assertEquals(FitWriter.MESG_RECORD, b.getShort(position + 3));
+        assertEquals(6, b.get(position + 5));
+        position += 6 + 3 * 6;
+
+        // 17 bytes per record
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, b.get(position));
+            assertEquals((T0 - FitWriter.FIT_EPOCH) / 1000 + i, b.getInt(position + 1) & 0xffffffffL);
+            assertEquals(45.5 + i * 1e-4, b.getInt(position + 5) * 180.0 / 2147483648.0, 1e-7);
+            assertEquals(-5.25, b.getInt(position + 9) * 180.0 / 2147483648.0, 1e-7);
+            assertEquals((250.4 + 500) * 5, b.getShort(position + 13) & 0xffff, 0.5);
+            assertEquals(i % 2 == 0 ? FitWriter.UINT8_INVALID : 140, b.get(position + 15) & 0xff);
+            assertEquals(85, b.get(position + 16) & 0xff);
+            position += 17;
+        }
+        // lap definition follows
+        assertEquals(0x40 | 2, b.get(position));
+        assertEquals(FitWriter.MESG_LAP, b.getShort(position + 3));
+    }
+
+    public void testSizePerPoint() throws IOException {
+        assertEquals(17 * 1000, write(1000).length - write(0).length);
+    }
+
+    public void testPointCountMismatch() throws IOException {
+        FitWriter fit = new FitWriter(new ByteArrayOutputStream());
+        fit.writeHeader(1, T0);
+        fit.writePoint(T0, 45, 5, 300, 5, 0, 0, 0, 0, 0);
+        try {
+            fit.writePoint(T0 + 1000, 45, 5, 300, 5, 0, 0, 0, 0, 0);
+            fail("more points than declared");
+        } catch (IOException e) {
+            // expected
+        }
+
+        fit = new FitWriter(new ByteArrayOutputStream());
+        fit.writeHeader(2, T0);
+        fit.writePoint(T0, 45, 5, 300, 5, 0, 0, 0, 0, 0);
+        try {
+            fit.writeFooter(0, 0, 0, 0, FitWriter.SPORT_GENERIC);
+            fail("less points than declared");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package fr.jayps.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class GzipLevelOutputStreamTest extends TestCase {
+
+    private String gpx;
+
+    @Override
+    protected void setUp() throws IOException {
+        Random random = new Random(1);
+        StringWriter out = new StringWriter();
+        GpxWriter writer = new GpxWriter(out, true);
+        writer.writeHeader("test");
+        double lat = 45, lon = 5, altitude = 300;
+        for (int i = 0; i < 3600; i++) {
+            lat += 0.00005 + random.nextGaussian() * 0.000002;
+            lon += 0.00003 + random.nextGaussian() * 0.000002;
+            altitude += random.nextGaussian() * 0.3;
+            writer.writePoint(1400000000000L + i * 1000L, lat, lon, altitude, 3 + random.nextInt(5), i * 0.05, altitude + 1, altitude, 130 + random.nextInt(5), 85);
+        }
+        writer.writeFooter();
+        gpx = out.toString();
+    }
+
+    private byte[] compress(int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GzipLevelOutputStream gzip = new GzipLevelOutputStream(bytes, level, GzipLevelOutputStream.DEFAULT_BUFFER_SIZE);
+        Writer writer = new OutputStreamWriter(gzip, "UTF-8");
+        writer.write(gpx);
+        writer.flush();
+        gzip.end();
+        return bytes.toByteArray();
+    }
+
+    private static String decompress(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    public void testRoundTrip() throws IOException {
+        assertEquals(gpx, decompress(compress(Deflater.BEST_SPEED)));
+        assertEquals(gpx, decompress(compress(Deflater.BEST_COMPRESSION)));
+    }
+
+    // GPX compresses ~7x at the fastest level, better at the best one
+    public void testCompressionRatio() throws IOException {
+        int fast = compress(Deflater.BEST_SPEED).length;
+        int best = compress(Deflater.BEST_COMPRESSION).length;
+        assertTrue("ratio at level 1: " + (double) gpx.length() / fast, gpx.length() > 5 * fast);
+        assertTrue(best < fast);
+    }
+
+    // end() leaves the underlying stream open, e.g. for a multipart upload
+    public void testEndDoesNotClose() throws IOException {
+        final boolean[] closed = new boolean[1];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        GzipLevelOutputStream gzip = new GzipLevelOutputStream(bytes, Deflater.BEST_SPEED, 512);
+        gzip.write(new byte[] {1, 2, 3});
+        gzip.end();
+        assertFalse(closed[0]);
+        bytes.write(42);
+    }
+}
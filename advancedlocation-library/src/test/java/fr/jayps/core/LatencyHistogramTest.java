@@ -0,0 +1,68 @@
+package fr.jayps.core;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+    // exact below 32, then 32 sub-buckets per power of two
+    public void testBucketBoundaries() {
+        assertEquals(31, LatencyHistogram.index(31));
+        assertEquals(31, LatencyHistogram.highestValue(31));
+        assertEquals(32, LatencyHistogram.index(32));
+        assertEquals(32, LatencyHistogram.highestValue(32));
+        assertEquals(63, LatencyHistogram.index(63));
+        assertEquals(63, LatencyHistogram.highestValue(63));
+        // 2 values per bucket from 64
+        assertEquals(64, LatencyHistogram.index(64));
+        assertEquals(64, LatencyHistogram.index(65));
+        assertEquals(65, LatencyHistogram.highestValue(64));
+        assertEquals(65, LatencyHistogram.index(66));
+        // last bucket
+        assertEquals(1887, LatencyHistogram.index(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(1887));
+    }
+
+    // the highest value of the bucket of v is >= v, within 1/32
+    public void testPrecision() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long v = random.nextLong() >>> (1 + random.nextInt(63));
+            checkPrecision(v);
+        }
+        for (int exponent = 0; exponent < 63; exponent++) {
+            checkPrecision((1L << exponent) - 1);
+            checkPrecision(1L << exponent);
+            checkPrecision((1L << exponent) + 1);
+        }
+        checkPrecision(Long.MAX_VALUE);
+    }
+
+    private static void checkPrecision(long v) {
+        long highest = LatencyHistogram.highestValue(LatencyHistogram.index(v));
+        assertTrue(v + " -> " + highest, highest >= v);
+        assertTrue(v + " -> " + highest, highest - v <= v / 32);
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 10000; i >= 1; i--) {
+            histogram.record(i);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(10000, snapshot.count);
+        assertEquals(1, snapshot.min);
+        assertEquals(10000, snapshot.max);
+        assertEquals(5000.5, snapshot.mean, 1e-9);
+        assertTrue(snapshot.toString(), snapshot.p50 >= 5000 && snapshot.p50 <= 5000 + 5000 / 32);
+        assertTrue(snapshot.toString(), snapshot.p99 >= 9900 && snapshot.p99 <= 9900 + 9900 / 32);
+        // clamped to the max
+        assertTrue(snapshot.toString(), snapshot.p999 >= 9990 && snapshot.p999 <= 10000);
+
+        histogram.reset();
+        assertEquals(0, histogram.getSnapshot().count);
+        histogram.record(-5);
+        assertEquals(0, histogram.getSnapshot().max);
+    }
+}
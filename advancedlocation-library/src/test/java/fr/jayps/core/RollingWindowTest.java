@@ -0,0 +1,112 @@
+package fr.jayps.core;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RollingWindowTest extends TestCase {
+
+    private static final int N = 2000;
+
+    private final long[] time = new long[N];
+    private final float[] distance = new float[N];
+    private final double[] altitude = new double[N];
+    private final int[] hr = new int[N];
+    private final int[] cad = new int[N];
+
+    @Override
+    protected void setUp() {
+        // irregular fixes, stops (same distance), missing hr and cad
+        Random random = new Random(1);
+        for (int i = 0; i < N; i++) {
+            time[i] = (i > 0 ? time[i - 1] : 1400000000000L) + 500 + random.nextInt(2500);
+            distance[i] = (i > 0 ? distance[i - 1] : 0) + (i % 100 < 10 ? 0 : random.nextFloat() * 12);
+            altitude[i] = 300 + 50 * Math.sin(i / 50.0);
+            hr[i] = random.nextInt(10) == 0 ? 0 : 100 + random.nextInt(80);
+            cad[i] = random.nextInt(5) == 0 ? 0 : 60 + random.nextInt(40);
+        }
+    }
+
+    // in ms or m, as a double (a long/float conditional would be a float)
+    private double position(RollingWindow window, int i) {
+        if (window.getMode() == RollingWindow.TIME) {
+            return time[i];
+        }
+        return distance[i];
+    }
+
+    // checks the window after sample last against a recomputation over all the samples
+    private void checkAgainstBruteForce(RollingWindow window, int last) {
+        double start = position(window, last) - window.getLength();
+        // last sample at or before the start of the window
+        int first = 0;
+        for (int i = 0; i < last; i++) {
+            if (position(window, i) <= start) {
+                first = i;
+            }
+        }
+        long hrSum = 0, cadSum = 0;
+        int hrNb = 0, cadNb = 0;
+        for (int i = first; i <= last; i++) {
+            if (hr[i] > 0) {
+                hrSum += hr[i];
+                hrNb++;
+            }
+            if (cad[i] > 0) {
+                cadSum += cad[i];
+                cadNb++;
+            }
+        }
+        long duration = time[last] - time[first];
+        String message = "sample " + last;
+        assertEquals(message, last - first + 1, window.size());
+        assertEquals(message, duration, window.getDuration());
+        assertEquals(message, distance[last] - distance[first], window.getDistance(), 1e-3);
+        assertEquals(message, duration > 0 ? (distance[last] - distance[first]) / (duration / 1000f) : 0, window.getSpeed(), 1e-3);
+        assertEquals(message, duration > 0 ? (altitude[last] - altitude[first]) / (duration / 1000.0) : 0, window.getVerticalSpeed(), 1e-4);
+        assertEquals(message, hrNb > 0 ? (float) hrSum / hrNb : 0, window.getHeartRate(), 1e-3);
+        assertEquals(message, cadNb > 0 ? (float) cadSum / cadNb : 0, window.getCadence(), 1e-3);
+        assertEquals(message, last > first && position(window, last) - position(window, first) >= window.getLength(), window.isComplete());
+    }
+
+    private void checkWindow(int mode, double length) {
+        RollingWindow window = new RollingWindow(mode, length, N);
+        for (int i = 0; i < N; i++) {
+            window.add(time[i], distance[i], altitude[i], hr[i], cad[i]);
+            checkAgainstBruteForce(window, i);
+        }
+    }
+
+    public void testTimeWindows() {
+        checkWindow(RollingWindow.TIME, 30 * 1000);
+        checkWindow(RollingWindow.TIME, 5 * 60 * 1000);
+    }
+
+    public void testDistanceWindows() {
+        checkWindow(RollingWindow.DISTANCE, 100);
+        checkWindow(RollingWindow.DISTANCE, 1000);
+    }
+
+    // buffer full: the oldest samples are dropped
+    public void testCapacity() {
+        RollingWindow window = new RollingWindow(RollingWindow.DISTANCE, 1000, 10);
+        for (int i = 0; i < 50; i++) {
+            window.add(i * 1000L, 0, 300, 0, 0);
+        }
+        assertEquals(10, window.size());
+        assertEquals(9000, window.getDuration());
+        assertFalse(window.isComplete());
+    }
+
+    public void testClear() {
+        RollingWindow window = new RollingWindow(RollingWindow.TIME, 30 * 1000);
+        window.add(0, 0, 300, 120, 80);
+        window.add(1000, 5, 301, 130, 90);
+        window.clear();
+        assertEquals(0, window.size());
+        assertEquals(0, window.getSpeed(), 0);
+        assertEquals(0, window.getHeartRate(), 0);
+        window.add(5000, 10, 300, 0, 0);
+        assertEquals(0, window.getHeartRate(), 0);
+    }
+}
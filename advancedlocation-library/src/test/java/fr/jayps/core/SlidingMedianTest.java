@@ -0,0 +1,78 @@
+package fr.jayps.core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SlidingMedianTest extends TestCase {
+
+    // sorted[size / 2] of the last window values
+    private static double bruteForceMedian(double[] values, int end, int window) {
+        int start = Math.max(0, end - window);
+        double[] sorted = Arrays.copyOfRange(values, start, end);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void checkAgainstBruteForce(int window, double[] values) {
+        SlidingMedian median = new SlidingMedian(window);
+        for (int i = 0; i < values.length; i++) {
+            double expected = bruteForceMedian(values, i + 1, window);
+            assertEquals("window " + window + ", value " + i, expected, median.add(values[i]), 0);
+            assertEquals(expected, median.getMedian(), 0);
+            assertEquals(Math.min(i + 1, window), median.size());
+            assertEquals(i + 1, median.getCount());
+        }
+    }
+
+    public void testAgainstBruteForce() {
+        Random random = new Random(1);
+        int[] windows = {1, 2, 3, 4, 5, 50, 201};
+        for (int window : windows) {
+            double[] values = new double[1000];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = 300 + random.nextGaussian() * 5;
+            }
+            checkAgainstBruteForce(window, values);
+        }
+    }
+
+    public void testDuplicatesAndMonotonicValues() {
+        Random random = new Random(2);
+        double[] duplicates = new double[500];
+        double[] increasing = new double[500];
+        double[] decreasing = new double[500];
+        for (int i = 0; i < 500; i++) {
+            duplicates[i] = random.nextInt(4);
+            increasing[i] = i;
+            decreasing[i] = -i;
+        }
+        int[] windows = {1, 2, 5, 6, 64};
+        for (int window : windows) {
+            checkAgainstBruteForce(window, duplicates);
+            checkAgainstBruteForce(window, increasing);
+            checkAgainstBruteForce(window, decreasing);
+        }
+    }
+
+    public void testClear() {
+        SlidingMedian median = new SlidingMedian(3);
+        median.add(10);
+        median.add(20);
+        median.clear();
+        assertEquals(0, median.size());
+        assertEquals(0, median.getCount());
+        assertEquals(0, median.getMedian(), 0);
+        assertEquals(5, median.add(5), 0);
+    }
+
+    public void testInvalidWindow() {
+        try {
+            new SlidingMedian(0);
+            fail("window 0 accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
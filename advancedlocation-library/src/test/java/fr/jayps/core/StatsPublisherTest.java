@@ -0,0 +1,88 @@
+package fr.jayps.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class StatsPublisherTest extends TestCase {
+
+    private static final long T0 = 1400000000000L;
+    private static final int NB_FIXES = 200000;
+    private static final int NB_READERS = 3;
+
+    private static double latitude(int i) {
+        return 45 + (i % 1000) * 1e-4;
+    }
+
+    private static double longitude(int i) {
+        return 5 + (i % 777) * 1e-4;
+    }
+
+    // fields of a snapshot must all come from the same fix, whatever the interleaving with the engine thread
+    public void testSnapshotsAreConsistent() throws InterruptedException {
+        final TrackStatsEngine engine = new TrackStatsEngine();
+        final AtomicReference<String> error = new AtomicReference<String>();
+        final AtomicInteger nbReads = new AtomicInteger();
+        final boolean[] done = new boolean[1];
+
+        Thread[] readers = new Thread[NB_READERS];
+        for (int r = 0; r < NB_READERS; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int lastSequence = -1;
+                    while (true) {
+                        boolean stop;
+                        synchronized (done) {
+                            stop = done[0];
+                        }
+                        StatsSnapshot snapshot = engine.getSnapshot();
+                        nbReads.incrementAndGet();
+                        if (snapshot.sequence < lastSequence) {
+                            error.compareAndSet(null, "sequence went back: " + lastSequence + " -> " + snapshot.sequence);
+                        }
+                        lastSequence = snapshot.sequence;
+                        if (snapshot.hasLocation) {
+                            int i = (int) ((snapshot.time - T0) / 1000);
+                            if (snapshot.latitude != latitude(i) || snapshot.longitude != longitude(i) || snapshot.nbFixes != i + 1) {
+                                error.compareAndSet(null, "torn snapshot: time " + snapshot.time + ", latitude " + snapshot.latitude
+                                        + ", longitude " + snapshot.longitude + ", nbFixes " + snapshot.nbFixes);
+                            }
+                        }
+                        if (stop) {
+                            return;
+                        }
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        for (int i = 0; i < NB_FIXES; i++) {
+            engine.onFix(T0 + i * 1000L, latitude(i), longitude(i), 300, 3, 5, 0, 0);
+        }
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(error.get(), error.get());
+        assertTrue(nbReads.get() > NB_READERS);
+        StatsSnapshot last = engine.getSnapshot();
+        assertEquals(T0 + (NB_FIXES - 1) * 1000L, last.time);
+        assertEquals(NB_FIXES, last.nbFixes);
+    }
+
+    // no new publication: the same snapshot is returned, without allocation
+    public void testSnapshotIsCached() {
+        TrackStatsEngine engine = new TrackStatsEngine();
+        engine.onFix(T0, 45, 5, 300, 3, 5, 0, 0);
+        StatsSnapshot snapshot = engine.getSnapshot();
+        assertSame(snapshot, engine.getSnapshot());
+        engine.onFix(T0 + 1000, 45.0001, 5, 300, 3, 5, 0, 0);
+        assertTrue(engine.getSnapshot().sequence > snapshot.sequence);
+    }
+}
@@ -0,0 +1,96 @@
+package fr.jayps.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import junit.framework.TestCase;
+
+public class StatsSubscriptionTest extends TestCase {
+
+    private static final long MIN_INTERVAL = 100; // in ms
+    private static final long TIMEOUT = 2000; // in ms
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // distances of the delivered snapshots
+    private static class Distances implements StatsListener {
+        private final List<Float> distances = new ArrayList<Float>();
+
+        @Override
+        public synchronized void onStatsChanged(StatsSnapshot snapshot) {
+            distances.add(snapshot.distance);
+            notifyAll();
+        }
+
+        synchronized List<Float> await(int n) throws InterruptedException {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (distances.size() < n && System.currentTimeMillis() < end) {
+                wait(end - System.currentTimeMillis());
+            }
+            return new ArrayList<Float>(distances);
+        }
+    }
+
+    private final TrackStatsEngine engine = new TrackStatsEngine();
+    private final Distances listener = new Distances();
+
+    // the last update within minInterval is delivered when it expires, without another publication
+    private void checkTrailingDelivery(Executor executor) throws InterruptedException {
+        engine.addStatsListener(listener, executor, MIN_INTERVAL);
+        long start = System.nanoTime();
+        engine.setDistance(1);
+        assertEquals(1, listener.await(1).size());
+        engine.setDistance(2);
+        engine.setDistance(3);
+        List<Float> distances = listener.await(2);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertEquals("[1.0, 3.0]", distances.toString());
+        assertTrue("delivered after " + elapsed + " ms", elapsed >= MIN_INTERVAL);
+
+        // nothing more to deliver
+        Thread.sleep(2 * MIN_INTERVAL);
+        assertEquals(2, listener.await(2).size());
+    }
+
+    public void testTrailingDeliveryFromTimer() throws InterruptedException {
+        checkTrailingDelivery(DIRECT);
+    }
+
+    public void testTrailingDeliveryOnScheduledExecutor() throws InterruptedException {
+        ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            checkTrailingDelivery(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // changes below the threshold are neither delivered nor scheduled
+    public void testNoTrailingDeliveryBelowThreshold() throws InterruptedException {
+        engine.addStatsListener(listener, DIRECT, MIN_INTERVAL, new int[] {StatsSubscription.DISTANCE}, new double[] {5});
+        engine.setDistance(1);
+        engine.setDistance(2);
+        Thread.sleep(2 * MIN_INTERVAL);
+        assertEquals("[1.0]", listener.await(1).toString());
+
+        engine.setDistance(10);
+        assertEquals("[1.0, 10.0]", listener.await(2).toString());
+    }
+
+    public void testNoDeliveryAfterCancel() throws InterruptedException {
+        StatsSubscription subscription = engine.addStatsListener(listener, DIRECT, MIN_INTERVAL);
+        engine.setDistance(1);
+        engine.setDistance(2);
+        subscription.cancel();
+        Thread.sleep(2 * MIN_INTERVAL);
+        assertEquals("[1.0]", listener.await(1).toString());
+    }
+}
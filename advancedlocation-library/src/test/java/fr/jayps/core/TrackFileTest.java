@@ -0,0 +1,175 @@
+package fr.jayps.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TrackFileTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("track", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    // points read back from a track file
+    private static class Points implements TrackPointSink {
+        final List<double[]> points = new ArrayList<double[]>();
+
+        @Override
+        public void writePoint(long time, double lat, double lon, double ele, float accuracy, double ascent, double eleGps, double elePressure, int hr, int cad) {
+            points.add(new double[] {time, lat, lon, ele, accuracy, ascent, eleGps, elePressure, hr, cad});
+        }
+    }
+
+    public void testVarLongEdgeCases() {
+        long[] values = {0, 1, -1, 63, -64, 64, -65, 127, 128, 8191, -8192, 8192,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        int[] sizes = {1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 3,
+                5, 5, 10, 10, 10};
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int i = 0; i < values.length; i++) {
+            buffer.clear();
+            TrackFile.putVarLong(buffer, values[i]);
+            assertEquals("size of " + values[i], sizes[i], buffer.position());
+            buffer.flip();
+            assertEquals(values[i], TrackFile.getVarLong(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(1);
+        TrackFileWriter writer = new TrackFileWriter(file, 7);
+        List<double[]> expected = new ArrayList<double[]>();
+        for (int i = 0; i < 100; i++) {
+            double[] p = {1400000000000L + i * 1000L + random.nextInt(500), 45 + random.nextDouble(), -5 + random.nextDouble(),
+                    300 + random.nextGaussian() * 100, (float) (random.nextInt(500) / 10.0), i * 1.5, -20 + random.nextDouble(), 8000 * random.nextDouble(),
+                    i % 3 == 0 ? 0 : 100 + random.nextInt(100), i % 5 == 0 ? 0 : random.nextInt(200)};
+            writer.append((long) p[0], p[1], p[2], p[3], p[6], p[7], p[5], (float) p[4], (int) p[8], (int) p[9]);
+            expected.add(p);
+        }
+        writer.close();
+
+        TrackFileReader reader = new TrackFileReader(file);
+        assertEquals(100, reader.getNbPoints());
+        assertEquals(15, reader.getNbBlocks());
+        assertEquals((long) expected.get(0)[0], reader.getFirstTime());
+        Points points = new Points();
+        reader.read(points);
+        assertEquals(100, points.points.size());
+        for (int i = 0; i < 100; i++) {
+            double[] e = expected.get(i);
+            double[] a = points.points.get(i);
+            assertEquals("time", e[0], a[0], 0);
+            assertEquals("lat", e[1], a[1], 0.5 / TrackFile.DEGREE_SCALE + 1e-12);
+            assertEquals("lon", e[2], a[2], 0.5 / TrackFile.DEGREE_SCALE + 1e-12);
+            assertEquals("ele", e[3], a[3], 0.5 / TrackFile.ALTITUDE_SCALE + 1e-9);
+            assertEquals("accuracy", e[4], a[4], 0.5 / TrackFile.ACCURACY_SCALE + 1e-6);
+            assertEquals("ascent", e[5], a[5], 0.5 / TrackFile.ALTITUDE_SCALE + 1e-9);
+            assertEquals("eleGps", e[6], a[6], 0.5 / TrackFile.ALTITUDE_SCALE + 1e-9);
+            assertEquals("elePressure", e[7], a[7], 0.5 / TrackFile.ALTITUDE_SCALE + 1e-9);
+            assertEquals("hr", e[8], a[8], 0);
+            assertEquals("cad", e[9], a[9], 0);
+        }
+    }
+
+    public void testTimeRange() throws IOException {
+        TrackFileWriter writer = new TrackFileWriter(file, 10);
+        for (int i = 0; i < 95; i++) {
+            writer.append(i * 1000L, 45, 5, 300, 300, 0, 0, 5, 0, 0);
+        }
+        writer.close();
+        Points points = new Points();
+        new TrackFileReader(file).read(25000, 61000, points);
+        assertEquals(36, points.points.size());
+        assertEquals(25000, points.points.get(0)[0], 0);
+        assertEquals(60000, points.points.get(35)[0], 0);
+    }
+
+    // blocks of at most maxLatency ms, even without a new point to append
+    public void testMaxLatency() throws IOException {
+        TrackFileWriter writer = new TrackFileWriter(file, 256, 10000);
+        for (int i = 0; i < 25; i++) {
+            writer.append(i * 1000L, 45, 5, 300, 300, 0, 0, 5, 0, 0);
+        }
+        // points 0-10, then 11-21 written, 22-24 pending
+        assertEquals(22, new TrackFileReader(file).getNbPoints());
+        writer.flushIfLate(32000);
+        assertEquals(22, new TrackFileReader(file).getNbPoints());
+        writer.flushIfLate(32001);
+        assertEquals(25, new TrackFileReader(file).getNbPoints());
+        writer.close();
+        assertEquals(3, new TrackFileReader(file).getNbBlocks());
+    }
+
+    public void testAppendAfterIncompleteBlock() throws IOException {
+        TrackFileWriter writer = new TrackFileWriter(file, 4);
+        for (int i = 0; i < 8; i++) {
+            writer.append(i * 1000L, 45, 5, 300, 300, 0, 0, 5, 0, 0);
+        }
+        writer.close();
+        long length = file.length();
+
+        // interrupted write: block header announcing more bytes than written
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(length);
+        raf.writeInt(1000);
+        raf.writeInt(4);
+        raf.writeLong(8000);
+        raf.write(new byte[10]);
+        raf.close();
+        assertEquals(8, new TrackFileReader(file).getNbPoints());
+
+        writer = new TrackFileWriter(file, 4);
+        writer.append(8000, 45, 5, 300, 300, 0, 0, 5, 0, 0);
+        writer.close();
+        Points points = new Points();
+        new TrackFileReader(file).read(points);
+        assertEquals(9, points.points.size());
+        assertEquals(8000, points.points.get(8)[0], 0);
+    }
+
+    public void testNotATrackFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeBytes("<?xml version");
+        raf.close();
+        try {
+            new TrackFileWriter(file);
+            fail("other file overwritten");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(13, file.length());
+    }
+
+    // 1Hz ride: ~15 bytes per point
+    public void testSize() throws IOException {
+        Random random = new Random(2);
+        TrackFileWriter writer = new TrackFileWriter(file);
+        int n = 3600;
+        double lat = 45, lon = 5, altitude = 300;
+        for (int i = 0; i < n; i++) {
+            lat += 0.00005 + random.nextGaussian() * 0.000002;
+            lon += 0.00003 + random.nextGaussian() * 0.000002;
+            altitude += random.nextGaussian() * 0.3;
+            writer.append(1400000000000L + i * 1000L, lat, lon, altitude, altitude + random.nextGaussian() * 3, altitude + 0.1,
+                    i * 0.05, 3 + random.nextInt(5), 130 + random.nextInt(5), 85 + random.nextInt(3));
+        }
+        writer.close();
+        double bytesPerPoint = (double) file.length() / n;
+        assertTrue("bytes per point: " + bytesPerPoint, bytesPerPoint < 17);
+    }
+}
@@ -0,0 +1,63 @@
+package fr.jayps.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TrackReplayTest extends TestCase {
+
+    private static final long T0 = 1400000000000L;
+
+    // 1 fix per second toward north, ~5m/s
+    private static class RideTrack implements TrackReplay.Track {
+        private final String _name;
+        private final int _nbPoints;
+
+        RideTrack(String name, int nbPoints) {
+            this._name = name;
+            this._nbPoints = nbPoints;
+        }
+
+        @Override
+        public String getName() {
+            return _name;
+        }
+
+        @Override
+        public void replay(TrackReplay.Player player) throws Exception {
+            for (int i = 0; i < _nbPoints; i++) {
+                if (_name.equals("broken") && i == 10) {
+                    throw new Exception("truncated");
+                }
+                player.onPoint(T0 + i * 1000L, 45 + i * 0.000045, 5.7, 300, 0, 4, 0, 0);
+            }
+        }
+    }
+
+    // same summaries, in the same order, as the tracks replayed one by one
+    public void testParallelReplay() throws InterruptedException {
+        List<RideTrack> tracks = new ArrayList<RideTrack>();
+        for (int i = 0; i < 20; i++) {
+            tracks.add(new RideTrack(i == 7 ? "broken" : "track" + i, 100 + (i * 97) % 500));
+        }
+        TrackReplay replay = new TrackReplay(4);
+        try {
+            List<TrackReplay.Summary> summaries = replay.replay(tracks);
+            assertEquals(tracks.size(), summaries.size());
+            for (int i = 0; i < tracks.size(); i++) {
+                TrackReplay.Summary expected = TrackReplay.replay(tracks.get(i));
+                TrackReplay.Summary summary = summaries.get(i);
+                assertEquals(expected.name, summary.name);
+                assertEquals(expected.nbPoints, summary.nbPoints);
+                assertEquals(expected.distance, summary.distance);
+                assertEquals(expected.elapsedTime, summary.elapsedTime);
+            }
+            assertEquals(10, summaries.get(7).nbPoints);
+            assertNotNull(summaries.get(7).error);
+            assertNull(summaries.get(8).error);
+        } finally {
+            replay.shutdown();
+        }
+    }
+}
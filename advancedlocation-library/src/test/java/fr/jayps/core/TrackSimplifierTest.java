@@ -0,0 +1,85 @@
+package fr.jayps.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TrackSimplifierTest extends TestCase {
+
+    // times (in s) of the points written by the simplifier
+    private static class Times implements TrackPointSink {
+        final List<Long> times = new ArrayList<Long>();
+
+        @Override
+        public void writePoint(long time, double lat, double lon, double ele, float accuracy, double ascent, double eleGps, double elePressure, int hr, int cad) {
+            times.add(time / 1000);
+        }
+    }
+
+    private final Times out = new Times();
+    private final TrackSimplifier simplifier = new TrackSimplifier(out, 5, 0, 0, 0);
+
+    // i-th point of a straight line toward north, ~11m apart
+    private void writePoint(long time, int i, int hr) throws IOException {
+        simplifier.writePoint(time * 1000, 45 + i * 1e-4, 5, 300, 5, 0, 300, 0, hr, 0);
+    }
+
+    public void testStraightLine() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            writePoint(i, i, 0);
+        }
+        simplifier.finish();
+        // window boundaries are kept
+        assertEquals(Long.valueOf(0), out.times.get(0));
+        assertEquals(Long.valueOf(999), out.times.get(out.times.size() - 1));
+        assertTrue(out.times.size() <= 1000 / (TrackSimplifier.DEFAULT_WINDOW - 1) + 2);
+        assertEquals(1000, simplifier.getNbPoints());
+        assertEquals(1000 - out.times.size(), simplifier.getNbDropped());
+    }
+
+    // 10 points, a 10 minute stop, the line goes on: both points around the pause are kept,
+    // so that the stop isn't exported as slow movement
+    public void testPause() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            writePoint(i, i, 0);
+        }
+        for (int i = 10; i < 20; i++) {
+            writePoint(600 + i, i, 0);
+        }
+        simplifier.finish();
+        assertEquals("[0, 9, 610, 619]", out.times.toString());
+    }
+
+    public void testPauseAtEachPoint() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            writePoint(i * 120, i, 0);
+        }
+        simplifier.finish();
+        assertEquals("[0, 120, 240, 360, 480]", out.times.toString());
+    }
+
+    public void testOffsetPointKept() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            if (i == 10) {
+                // 50m east
+                simplifier.writePoint(i * 1000L, 45 + i * 1e-4, 5.00064, 300, 5, 0, 300, 0, 0, 0);
+            } else {
+                writePoint(i, i, 0);
+            }
+        }
+        simplifier.finish();
+        // its neighbours are far from the segments to the spike too
+        assertEquals("[0, 9, 10, 11, 19]", out.times.toString());
+    }
+
+    public void testHeartRateChangeKept() throws IOException {
+        TrackSimplifier hrSimplifier = new TrackSimplifier(out, 5, 0, 10, 0);
+        for (int i = 0; i < 20; i++) {
+            hrSimplifier.writePoint(i * 1000L, 45 + i * 1e-4, 5, 300, 5, 0, 300, 0, i < 12 ? 120 : 135, 0);
+        }
+        hrSimplifier.finish();
+        assertEquals("[0, 12, 19]", out.times.toString());
+    }
+}
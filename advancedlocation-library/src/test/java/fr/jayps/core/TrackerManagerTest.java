@@ -0,0 +1,135 @@
+package fr.jayps.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+public class TrackerManagerTest extends TestCase {
+
+    private static final long T0 = 1400000000000L;
+
+    // stream ids given to the ErrorListener
+    private static class Errors implements TrackerManager.ErrorListener {
+        final List<String> streamIds = new ArrayList<String>();
+
+        @Override
+        public synchronized void onError(String streamId, RuntimeException e) {
+            streamIds.add(streamId);
+        }
+    }
+
+    private static boolean put(TrackerManager manager, String streamId, int i) throws InterruptedException {
+        return manager.put(streamId, T0 + i * 1000L, 45 + i * 1e-4, 5, 300, 0, 5, 0, 0);
+    }
+
+    // a stream whose engine can't be created doesn't stop the other streams of its shard
+    public void testNewEngineFailure() throws InterruptedException {
+        TrackerManager manager = new TrackerManager(1, 16, TrackerManager.DEFAULT_IDLE_TIMEOUT) {
+            @Override
+            protected TrackStatsEngine newEngine(String streamId) {
+                if (streamId.equals("bad")) {
+                    throw new IllegalStateException("no engine for " + streamId);
+                }
+                return super.newEngine(streamId);
+            }
+        };
+        Errors errors = new Errors();
+        manager.setErrorListener(errors);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(put(manager, "good", i));
+            assertTrue(put(manager, "bad", i));
+        }
+        manager.shutdown();
+        assertEquals(100, manager.getSnapshot("good").nbFixes);
+        assertNull(manager.getSnapshot("bad"));
+        assertEquals(100, manager.getNbErrors());
+        assertEquals(100, errors.streamIds.size());
+        assertEquals("bad", errors.streamIds.get(0));
+    }
+
+    // without ErrorListener, errors are only counted
+    public void testErrorsWithoutListener() throws InterruptedException {
+        TrackerManager manager = new TrackerManager(1, 16, TrackerManager.DEFAULT_IDLE_TIMEOUT) {
+            @Override
+            protected TrackStatsEngine newEngine(String streamId) {
+                throw new IllegalStateException("no engine for " + streamId);
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            assertTrue(put(manager, "bad", i));
+        }
+        manager.shutdown();
+        assertEquals(10, manager.getNbErrors());
+        assertEquals(10, manager.getNbProcessed());
+    }
+
+    public void testEvictionListenerFailure() throws InterruptedException {
+        TrackerManager manager = new TrackerManager(1, 16, 1);
+        Errors errors = new Errors();
+        manager.setErrorListener(errors);
+        final CountDownLatch evicted = new CountDownLatch(2);
+        manager.setEvictionListener(new TrackerManager.EvictionListener() {
+            @Override
+            public void onEvicted(String streamId, StatsSnapshot snapshot) {
+                evicted.countDown();
+                throw new IllegalStateException("eviction of " + streamId);
+            }
+        });
+        assertTrue(put(manager, "a", 0));
+        assertTrue(put(manager, "b", 0));
+        assertTrue(evicted.await(5, TimeUnit.SECONDS));
+        // the shard still runs
+        assertTrue(put(manager, "c", 0));
+        manager.shutdown();
+        assertEquals(3, manager.getNbProcessed());
+        assertEquals(2, manager.getNbErrors());
+    }
+
+    // a shard thread killed by an Error doesn't leave producers waiting in put() forever
+    public void testShardDeath() throws InterruptedException {
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch die = new CountDownLatch(1);
+        final TrackerManager manager = new TrackerManager(1, 1, TrackerManager.DEFAULT_IDLE_TIMEOUT) {
+            @Override
+            protected TrackStatsEngine newEngine(String streamId) {
+                if (streamId.equals("fatal")) {
+                    processing.countDown();
+                    try {
+                        die.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new AssertionError("shard killed by " + streamId);
+                }
+                return super.newEngine(streamId);
+            }
+        };
+        assertTrue(put(manager, "fatal", 0));
+        assertTrue(processing.await(5, TimeUnit.SECONDS));
+        // fills the queue
+        assertTrue(put(manager, "a", 0));
+
+        final AtomicBoolean result = new AtomicBoolean(true);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(put(manager, "b", 0));
+                } catch (InterruptedException e) {
+                    // result stays true
+                }
+            }
+        });
+        producer.start();
+        die.countDown();
+        producer.join(5000);
+        assertFalse("put() still waiting", producer.isAlive());
+        assertFalse(result.get());
+        assertFalse(put(manager, "c", 0));
+        manager.shutdown();
+    }
+}